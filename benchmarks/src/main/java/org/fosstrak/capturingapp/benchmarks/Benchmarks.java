@@ -0,0 +1,30 @@
+package org.fosstrak.capturingapp.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * runs the benchmarks with the GC profiler, such that every result reports
+ * the throughput and the allocation rate (<code>gc.alloc.rate.norm</code>
+ * is the number of bytes allocated per operation). The results are written
+ * to <code>jmh-result.json</code>. All the JMH command line options are
+ * accepted, e.g. a regular expression selecting the benchmarks or
+ * <code>-p members=1000</code>.
+ */
+public final class Benchmarks {
+
+    private Benchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result("jmh-result.json")
+                .build()).run();
+    }
+}
@@ -0,0 +1,26 @@
+package org.fosstrak.capturingapp.benchmarks;
+
+import org.fosstrak.ale.util.DeserializerUtil;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * deserialization of the raw ECReports as done by
+ * <code>CaptureApp.receive</code> (string to bytes, JAXB unmarshalling).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeserializeBenchmark {
+
+    @Benchmark
+    public ECReports deserializeECReports(ReportsState state) throws Exception {
+        return DeserializerUtil.deserializeECReports(
+                new ByteArrayInputStream(state.payload.getBytes()));
+    }
+}
@@ -0,0 +1,151 @@
+package org.fosstrak.capturingapp.benchmarks;
+
+import org.fosstrak.ale.util.DeserializerUtil;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * generates ECReports as delivered by the fosstrak ALE for the demo
+ * warehouse (spec <code>fosstrakDemo</code>). The members are spread over
+ * the reports <code>additionsReport</code> and <code>currentTags</code> and
+ * over the readers of the demo rules plus a shelf reader no rule is
+ * interested in. Every member carries an EPC, a tag and a raw hex value and
+ * the reader statistics, such that the benchmarks exercise the same paths
+ * as real reports.<br/>
+ * All the EPCs of a report carry the sequence number of the report (as item
+ * reference resp. in the raw hex value), see {@link #sequenceOf(String)}.
+ */
+public final class ECReportsFixture {
+
+    /**
+     * the name of the spec.
+     */
+    public static final String SPEC_NAME = "fosstrakDemo";
+
+    /**
+     * the names of the reports.
+     */
+    public static final String[] REPORTS = {"additionsReport", "currentTags"};
+
+    /**
+     * the names of the readers.
+     */
+    public static final String[] READERS = {
+            "Reader_GoodsReceiving",
+            "Reader_PointOfSale",
+            "Reader_PointOfExit",
+            "Reader_Shelf"
+    };
+
+    // the date of the event cycle.
+    private static final String DATE = "2010-06-01T12:00:00.000+02:00";
+
+    private ECReportsFixture() {
+    }
+
+    /**
+     * creates a raw ECReports with the sequence number 0.
+     *
+     * @param members the total number of members.
+     * @return the ECReports as XML.
+     */
+    public static String create(int members) {
+        return create(members, 0);
+    }
+
+    /**
+     * creates a raw ECReports.
+     *
+     * @param members  the total number of members.
+     * @param sequence the sequence number of the report.
+     * @return the ECReports as XML.
+     */
+    public static String create(int members, int sequence) {
+        StringBuilder b = new StringBuilder(256 + members * 600);
+        b.append("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n");
+        b.append("<ns3:ECReports xmlns:ns2=\"urn:epcglobal:xsd:1\" ")
+                .append("xmlns:ns3=\"urn:epcglobal:ale:xsd:1\" ")
+                .append("specName=\"").append(SPEC_NAME).append("\" ")
+                .append("date=\"").append(DATE).append("\" ")
+                .append("ALEID=\"ETHZ-ALE\" totalMilliseconds=\"1000\" ")
+                .append("terminationCondition=\"DURATION\" ")
+                .append("schemaVersion=\"1.1\" ")
+                .append("creationDate=\"").append(DATE).append("\">\n");
+        b.append("<reports>\n");
+        int serial = 0;
+        for (int r = 0; r < REPORTS.length; r++) {
+            // the first report gets the remainder.
+            int n = members / REPORTS.length;
+            if (0 == r) {
+                n += members % REPORTS.length;
+            }
+            b.append("<report reportName=\"").append(REPORTS[r]).append("\">\n");
+            b.append("<group>\n<groupList>\n");
+            for (int i = 0; i < n; i++) {
+                appendMember(b, sequence, serial,
+                        READERS[serial % READERS.length]);
+                serial++;
+            }
+            b.append("</groupList>\n");
+            b.append("<groupCount><count>").append(n).append("</count></groupCount>\n");
+            b.append("</group>\n</report>\n");
+        }
+        b.append("</reports>\n");
+        b.append("</ns3:ECReports>\n");
+        return b.toString();
+    }
+
+    /**
+     * appends a member.
+     */
+    private static void appendMember(StringBuilder b, int sequence, int serial,
+                                     String reader) {
+        b.append("<member>");
+        b.append("<epc>urn:epc:id:sgtin:1234567.").append(sequence).append('.')
+                .append(serial).append("</epc>");
+        b.append("<tag>urn:epc:tag:sgtin-96:3.1234567.").append(sequence)
+                .append('.').append(serial).append("</tag>");
+        b.append("<rawHex>urn:epc:raw:96.x30742F5A")
+                .append(String.format("%08X%08X", sequence, serial))
+                .append("</rawHex>");
+        b.append("<extension><stats><stat><profile>TagTimestamps</profile>");
+        b.append("<statBlocks><statBlock><readerName>").append(reader)
+                .append("</readerName></statBlock></statBlocks>");
+        b.append("</stat></stats></extension>");
+        b.append("</member>\n");
+    }
+
+    /**
+     * extracts the sequence number of the report from one of its EPCs (pure
+     * identity, tag or raw hex).
+     *
+     * @param epc the EPC.
+     * @return the sequence number or -1 if the EPC is not from a fixture.
+     */
+    public static int sequenceOf(String epc) {
+        try {
+            final int raw = epc.indexOf(":raw:96.x");
+            if (-1 != raw) {
+                final int start = raw + ":raw:96.x".length() + 8;
+                return (int) Long.parseLong(epc.substring(start, start + 8), 16);
+            }
+            final String[] fields = epc.split("\\.");
+            return Integer.parseInt(fields[fields.length - 2]);
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * deserializes a raw ECReports the same way the capture application does.
+     *
+     * @param payload the ECReports as XML.
+     * @return the ECReports.
+     * @throws Exception when the report could not be deserialized.
+     */
+    public static ECReports parse(String payload) throws Exception {
+        return DeserializerUtil.deserializeECReports(
+                new ByteArrayInputStream(payload.getBytes()));
+    }
+}
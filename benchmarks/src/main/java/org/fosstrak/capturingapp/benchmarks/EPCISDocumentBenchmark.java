@@ -0,0 +1,105 @@
+package org.fosstrak.capturingapp.benchmarks;
+
+import org.fosstrak.capturingapp.util.SimpleEPCISDocument;
+import org.fosstrak.capturingapp.util.StreamingEPCISDocument;
+import org.fosstrak.capturingapp.util.Util;
+import org.fosstrak.epcis.model.ActionType;
+import org.fosstrak.epcis.model.EPCISDocumentType;
+import org.openjdk.jmh.annotations.*;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.Marshaller;
+import javax.xml.namespace.QName;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * assembling the EPCIS document of an event cycle (one object event with all
+ * the EPCs) with {@link SimpleEPCISDocument#getDocument()}, marshalling it
+ * the way the capture client does and, for comparison, serializing it with
+ * {@link StreamingEPCISDocument}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EPCISDocumentBenchmark {
+
+    // the root element of an EPCIS document.
+    private static final QName EPCIS_DOCUMENT =
+            new QName(StreamingEPCISDocument.EPCIS_NS, "EPCISDocument");
+
+    /**
+     * the EPCs of the reports.
+     */
+    @State(Scope.Benchmark)
+    public static class EPCState {
+
+        public List<Object> epcs;
+
+        @Setup(Level.Trial)
+        public void setup(ReportsState reports) {
+            epcs = new ArrayList<Object>(
+                    Util.extractEPC(Util.selectRawHex, reports.reports));
+        }
+    }
+
+    /**
+     * a marshaller and an output buffer per thread.
+     */
+    @State(Scope.Thread)
+    public static class MarshallerState {
+
+        public Marshaller marshaller;
+
+        public final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            marshaller = JAXBContext.newInstance(EPCISDocumentType.class)
+                    .createMarshaller();
+        }
+    }
+
+    /**
+     * adds the event of the demo rules.
+     */
+    private static <T extends SimpleEPCISDocument> T addEvent(T doc, List<Object> epcs) {
+        doc.addObjectEvent(
+                epcs,
+                ActionType.ADD,
+                "urn:fosstrak:demo:bizstep:testing",
+                "urn:fosstrak:demo:disp:testing",
+                "urn:fosstrak:demo:rp:1.1",
+                "urn:fosstrak:demo:loc:1.1");
+        return doc;
+    }
+
+    @Benchmark
+    public EPCISDocumentType getDocument(ReportsState reports, EPCState state) {
+        return addEvent(new SimpleEPCISDocument(reports.reports), state.epcs)
+                .getDocument();
+    }
+
+    @Benchmark
+    public int getDocumentAndMarshal(ReportsState reports, EPCState state,
+                                     MarshallerState m) throws Exception {
+        final EPCISDocumentType doc = addEvent(
+                new SimpleEPCISDocument(reports.reports), state.epcs)
+                .getDocument();
+        m.out.reset();
+        m.marshaller.marshal(new JAXBElement<EPCISDocumentType>(
+                EPCIS_DOCUMENT, EPCISDocumentType.class, doc), m.out);
+        return m.out.size();
+    }
+
+    @Benchmark
+    public EPCISDocumentType streamingDocument(ReportsState reports, EPCState state) {
+        return addEvent(new StreamingEPCISDocument(reports.reports), state.epcs)
+                .getDocument();
+    }
+}
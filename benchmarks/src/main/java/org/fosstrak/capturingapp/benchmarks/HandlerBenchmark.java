@@ -0,0 +1,99 @@
+package org.fosstrak.capturingapp.benchmarks;
+
+import org.fosstrak.capturingapp.DefaultECReportHandler;
+import org.fosstrak.capturingapp.util.ReportIndex;
+import org.fosstrak.epcis.model.EPCISDocumentType;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link DefaultECReportHandler#handle} with the shipped rules:
+ * <ul>
+ * <li><code>benchmark-warehouse-changeset.xml</code>: the demo warehouse
+ * rules (SimpleWareHouse-1EventCycle.drl) querying a {@link StubEPCIS} on
+ * {@link #QUERY_URL} instead of the demo repository. The build copies the
+ * rules of the capturing application and replaces the query URL (see
+ * pom.xml). The stub answers without latency, such that the benchmark
+ * measures the rule bodies, the queries on the local host and the document
+ * building.</li>
+ * <li><code>benchmark-changeset.xml</code>: SimpleEPCISDocument.drl, one
+ * object event with all the EPCs.</li>
+ * </ul>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HandlerBenchmark {
+
+    /**
+     * the port of the stub EPCIS queried by the benchmark copy of the demo
+     * rules (<code>benchmark.query.url</code> in pom.xml).
+     */
+    public static final int STUB_PORT = 18090;
+
+    /**
+     * the query interface used by the benchmark copy of the demo rules.
+     */
+    public static final String QUERY_URL =
+            "http://localhost:" + STUB_PORT + "/query";
+
+    /**
+     * the stub EPCIS answering the queries of the demo rules, shared by all
+     * the benchmark threads as it binds {@link #STUB_PORT}.
+     */
+    @State(Scope.Benchmark)
+    public static class StubState {
+
+        // answers the queries of the demo rules.
+        private StubEPCIS stub;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            stub = new StubEPCIS(STUB_PORT, 0, 0, 0);
+            stub.start(Runtime.getRuntime().availableProcessors());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            System.out.println("stub EPCIS: " + stub);
+            stub.stop();
+        }
+    }
+
+    /**
+     * the handler with compiled rules.
+     */
+    @State(Scope.Thread)
+    public static class HandlerState {
+
+        @Param({"benchmark-warehouse-changeset.xml", "benchmark-changeset.xml"})
+        public String changeSet;
+
+        public DefaultECReportHandler handler;
+
+        @Setup(Level.Trial)
+        public void setup(ReportsState reports, StubState stub) {
+            handler = new DefaultECReportHandler(changeSet);
+            // compile the rules outside of the measurement.
+            handler.handle(reports.reports);
+            handler.dispose();
+            ReportIndex.release(reports.reports);
+        }
+    }
+
+    @Benchmark
+    public LinkedList<EPCISDocumentType> handle(ReportsState reports,
+                                                HandlerState state) {
+        try {
+            return state.handler.handle(reports.reports);
+        } finally {
+            state.handler.dispose();
+            ReportIndex.release(reports.reports);
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package org.fosstrak.capturingapp.benchmarks;
+
+import org.fosstrak.capturingapp.util.LatencyHistogram;
+import org.fosstrak.capturingapp.util.ReportReplay;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * end-to-end load test of a running capture application. The generator
+ * plays the ALE: it sends synthetic ECReports (see {@link ECReportsFixture})
+ * at increasing rates to the capture application and receives the resulting
+ * EPCIS documents with a local {@link StubEPCIS}. Every report carries a
+ * sequence number in its EPCs, the stub maps the first EPC of a captured
+ * document back to the report and records the end-to-end latency.<br/>
+ * The load is open-loop: every sender thread sends at a fixed schedule and
+ * the latency is measured from the scheduled time, such that a stalled
+ * capture application does not hide its latency by slowing down the
+ * generator. Each rate of <code>rates</code> runs for <code>duration</code>
+ * seconds, the generator stops at the first rate the capture application
+ * does not sustain (less than 90% of the reports arrive at the stub within
+ * the step, or the reports are rejected). The last sustained rate is the
+ * saturation point.<br/>
+ * The arguments are <code>key=value</code> pairs:
+ * <ul>
+ * <li>target: <code>socket://HOST:PORT</code> (listen port of the capture
+ * application) or <code>http://HOST:PORT/CONTEXT/ale/NAME</code> (shared
+ * ingest endpoint). defaults to socket://localhost:9999</li>
+ * <li>rates: comma separated reports per second (0 = as fast as possible).
+ * defaults to 10,20,50,100,200,500,1000</li>
+ * <li>concurrency: number of sender threads (connections). defaults to 8</li>
+ * <li>members: members per report. defaults to 100</li>
+ * <li>duration: seconds per rate. defaults to 30</li>
+ * <li>warmup: seconds at the first rate before the measurement. defaults
+ * to 10</li>
+ * <li>drain: seconds to wait for outstanding documents after a step.
+ * defaults to 5</li>
+ * <li>stub.port: port of the stub EPCIS (0 = no stub, no end-to-end
+ * latency). defaults to 8090</li>
+ * <li>stub.latency, stub.jitter, stub.errors, stub.threads: see
+ * {@link StubEPCIS}</li>
+ * </ul>
+ * Example (the capture application configured with
+ * <code>cap.0.epcis=http://localhost:8090/capture</code>):
+ * <code>java -cp benchmarks.jar org.fosstrak.capturingapp.benchmarks.LoadGenerator
+ * target=socket://localhost:9999 rates=50,100,200,400 members=500
+ * stub.latency=20</code>
+ */
+public class LoadGenerator {
+
+    // a step is sustained when this share of the reports arrived.
+    private static final double SUSTAINED = 0.9;
+
+    // the target of the reports.
+    private final URI target;
+
+    // the number of sender threads.
+    private final int concurrency;
+
+    // the members per report.
+    private final int members;
+
+    // the sequence number of the next report.
+    private final AtomicInteger sequence = new AtomicInteger();
+
+    // the scheduled send time of the reports waiting for their document.
+    private final Map<Integer, Long> pending = new ConcurrentHashMap<Integer, Long>();
+
+    // true if the documents are received by a stub.
+    private volatile boolean tracked = false;
+
+    // the statistics of the current step.
+    private volatile Step step = null;
+
+    /**
+     * the statistics of one step.
+     */
+    public static class Step {
+        final int rate;
+        final boolean tracked;
+        final AtomicLong sent = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong completedInWindow = new AtomicLong();
+        final LatencyHistogram sendTime = new LatencyHistogram();
+        final LatencyHistogram latency = new LatencyHistogram();
+        volatile long end = Long.MAX_VALUE;
+        long seconds;
+        int lost;
+
+        Step(int rate, boolean tracked) {
+            this.rate = rate;
+            this.tracked = tracked;
+        }
+
+        /**
+         * @return the reports per second arriving at the stub.
+         */
+        public double getThroughput() {
+            return completedInWindow.get() / (double) Math.max(1, seconds);
+        }
+
+        /**
+         * @return true if the capture application kept up with the rate.
+         */
+        public boolean isSustained() {
+            if (rejected.get() + failed.get() > 0) {
+                return false;
+            }
+            if (!tracked) {
+                // without the stub only the rejections are known.
+                return true;
+            }
+            final double expected = (0 == rate) ? sent.get() : rate * seconds;
+            return completedInWindow.get() >= SUSTAINED * expected;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("rate=%s/s sent=%d rejected=%d failed=%d " +
+                    "throughput=%.1f/s lost=%d%n  end-to-end: %s%n  send: %s",
+                    (0 == rate) ? "max" : String.valueOf(rate), sent.get(),
+                    rejected.get(), failed.get(), getThroughput(), lost,
+                    latency, sendTime);
+        }
+    }
+
+    /**
+     * create a new load generator.
+     *
+     * @param target      the target (socket:// or http://).
+     * @param concurrency the number of sender threads.
+     * @param members     the members per report.
+     */
+    public LoadGenerator(URI target, int concurrency, int members) {
+        this.target = target;
+        this.concurrency = Math.max(1, concurrency);
+        this.members = members;
+    }
+
+    /**
+     * @param tracked true if the documents are received by a stub, the steps
+     *                then measure the end-to-end latency and the throughput.
+     */
+    public void setTracked(boolean tracked) {
+        this.tracked = tracked;
+    }
+
+    /**
+     * callback of the stub: maps the document to its report.
+     *
+     * @param document the captured EPCIS document.
+     */
+    public void captured(String document) {
+        final long now = System.nanoTime();
+        final int start = document.indexOf("<epc>");
+        if (-1 == start) return;
+        final int end = document.indexOf("</epc>", start);
+        if (-1 == end) return;
+        final int seq = ECReportsFixture.sequenceOf(
+                document.substring(start + "<epc>".length(), end).trim());
+        // only the first document of a report counts.
+        final Long scheduled = pending.remove(seq);
+        final Step s = step;
+        if ((null == scheduled) || (null == s)) return;
+        s.latency.record(now - scheduled);
+        s.completed.incrementAndGet();
+        if (now <= s.end) {
+            s.completedInWindow.incrementAndGet();
+        }
+    }
+
+    /**
+     * runs one step.
+     *
+     * @param rate    the reports per second (0 = as fast as possible).
+     * @param seconds the duration of the step.
+     * @param drain   the seconds to wait for outstanding documents.
+     * @return the statistics of the step.
+     * @throws InterruptedException when interrupted.
+     */
+    public Step run(final int rate, long seconds, long drain)
+            throws InterruptedException {
+        final Step s = new Step(rate, tracked);
+        s.seconds = seconds;
+        pending.clear();
+        step = s;
+
+        final long start = System.nanoTime();
+        final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        s.end = end;
+        // the interval between two reports of one sender.
+        final long interval = (0 == rate) ? 0 :
+                TimeUnit.SECONDS.toNanos(concurrency) / rate;
+
+        List<Thread> senders = new ArrayList<Thread>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            final long offset = (0 == rate) ? 0 : i * interval / concurrency;
+            Thread t = new Thread(new Runnable() {
+                public void run() {
+                    long scheduled = start + offset;
+                    // a sender falling behind its schedule stops at the end
+                    // of the step as well.
+                    while ((scheduled < end) && (System.nanoTime() < end)) {
+                        long now = System.nanoTime();
+                        if (scheduled > now) {
+                            try {
+                                TimeUnit.NANOSECONDS.sleep(scheduled - now);
+                            } catch (InterruptedException e) {
+                                return;
+                            }
+                        }
+                        if (0 == rate) {
+                            scheduled = System.nanoTime();
+                        }
+                        send(s, scheduled);
+                        scheduled += (0 == rate) ? 1 : interval;
+                    }
+                }
+            }, "LoadGenerator-" + i);
+            t.setDaemon(true);
+            senders.add(t);
+            t.start();
+        }
+        for (Thread t : senders) {
+            t.join();
+        }
+
+        // wait for the outstanding documents.
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drain);
+        while (!pending.isEmpty() && (System.nanoTime() < deadline)) {
+            TimeUnit.MILLISECONDS.sleep(50);
+        }
+        s.lost = pending.size();
+        step = null;
+        return s;
+    }
+
+    /**
+     * sends one report.
+     *
+     * @param s         the current step.
+     * @param scheduled the scheduled send time.
+     */
+    private void send(Step s, long scheduled) {
+        final int seq = sequence.getAndIncrement();
+        final byte[] payload = ECReportsFixture.create(members, seq).getBytes();
+        pending.put(seq, scheduled);
+        try {
+            final boolean accepted = ReportReplay.send(target, payload);
+            if (!accepted) {
+                pending.remove(seq);
+                s.rejected.incrementAndGet();
+                return;
+            }
+            s.sent.incrementAndGet();
+            s.sendTime.record(System.nanoTime() - scheduled);
+        } catch (IOException e) {
+            pending.remove(seq);
+            s.failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * parser of the <code>key=value</code> arguments.
+     */
+    public static class Arguments {
+
+        // the arguments by key.
+        private final Map<String, String> values = new HashMap<String, String>();
+
+        public Arguments(String[] args) {
+            for (String arg : args) {
+                final int i = arg.indexOf('=');
+                if (-1 == i) {
+                    throw new IllegalArgumentException("key=value expected: " + arg);
+                }
+                values.put(arg.substring(0, i).trim(), arg.substring(i + 1).trim());
+            }
+        }
+
+        public String getString(String key, String defaultValue) {
+            final String v = values.get(key);
+            return (null == v) ? defaultValue : v;
+        }
+
+        public int getInt(String key, int defaultValue) {
+            return Integer.parseInt(getString(key, String.valueOf(defaultValue)));
+        }
+
+        public long getLong(String key, long defaultValue) {
+            return Long.parseLong(getString(key, String.valueOf(defaultValue)));
+        }
+
+        public double getDouble(String key, double defaultValue) {
+            return Double.parseDouble(getString(key, String.valueOf(defaultValue)));
+        }
+
+        public int[] getInts(String key, String defaultValue) {
+            final String[] parts = getString(key, defaultValue).split(",");
+            final int[] ints = new int[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                ints[i] = Integer.parseInt(parts[i].trim());
+            }
+            return ints;
+        }
+    }
+
+    /**
+     * runs the load test, see the class description for the arguments.
+     *
+     * @param args the arguments.
+     * @throws Exception when the stub could not be started.
+     */
+    public static void main(String[] args) throws Exception {
+        final Arguments a = new Arguments(args);
+        final LoadGenerator generator = new LoadGenerator(
+                URI.create(a.getString("target", "socket://localhost:9999")),
+                a.getInt("concurrency", 8),
+                a.getInt("members", 100));
+        final int[] rates = a.getInts("rates", "10,20,50,100,200,500,1000");
+        final long duration = a.getLong("duration", 30);
+        final long warmup = a.getLong("warmup", 10);
+        final long drain = a.getLong("drain", 5);
+
+        StubEPCIS stub = null;
+        final int stubPort = a.getInt("stub.port", 8090);
+        if (stubPort > 0) {
+            stub = new StubEPCIS(stubPort,
+                    a.getLong("stub.latency", 0),
+                    a.getLong("stub.jitter", 0),
+                    a.getDouble("stub.errors", 0));
+            stub.setCaptureListener(new StubEPCIS.CaptureListener() {
+                public void captured(String document) {
+                    generator.captured(document);
+                }
+            });
+            generator.setTracked(true);
+            stub.start(a.getInt("stub.threads", 64));
+        }
+
+        try {
+            if (warmup > 0) {
+                System.out.println(String.format("warmup %d s at %d/s",
+                        warmup, rates[0]));
+                generator.run(rates[0], warmup, drain);
+            }
+            Step sustained = null;
+            for (int rate : rates) {
+                final Step s = generator.run(rate, duration, drain);
+                System.out.println(s);
+                if (!s.isSustained()) {
+                    break;
+                }
+                sustained = s;
+            }
+            if (null == sustained) {
+                System.out.println("saturation: below the first rate");
+            } else {
+                System.out.println(String.format(
+                        "saturation: sustained up to %s/s (throughput %.1f/s, p99 %.3f ms)",
+                        (0 == sustained.rate) ? "max" : String.valueOf(sustained.rate),
+                        sustained.getThroughput(),
+                        sustained.latency.getPercentile(99)));
+            }
+            if (null != stub) {
+                System.out.println("stub: " + stub);
+            }
+        } finally {
+            if (null != stub) {
+                stub.stop();
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.fosstrak.capturingapp.benchmarks;
+
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * the fixture shared by the benchmarks: an ECReports with a given number of
+ * members, raw and deserialized.
+ */
+@State(Scope.Benchmark)
+public class ReportsState {
+
+    /**
+     * the total number of members.
+     */
+    @Param({"10", "100", "1000", "10000"})
+    public int members;
+
+    /**
+     * the raw ECReports.
+     */
+    public String payload;
+
+    /**
+     * the deserialized ECReports.
+     */
+    public ECReports reports;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        payload = ECReportsFixture.create(members);
+        reports = ECReportsFixture.parse(payload);
+    }
+}
@@ -0,0 +1,331 @@
+package org.fosstrak.capturingapp.benchmarks;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.fosstrak.capturingapp.util.LatencyHistogram;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * local stand-in for an EPCIS repository. The stub accepts EPCIS documents
+ * at <code>http://HOST:PORT/capture</code> and answers queries at
+ * <code>http://HOST:PORT/query</code> with empty results. Each request is
+ * delayed by a configurable latency (plus a uniform jitter) and fails with a
+ * configurable probability (HTTP 500 resp. a SOAP fault), such that the
+ * behaviour of the capture application against a slow or unhealthy
+ * repository can be tested without a real one.<br/>
+ * Configure the capture application with
+ * <code>cap.N.epcis=http://localhost:PORT/capture</code>. The demo rules
+ * have the URL of their query interface built in, change it to
+ * <code>http://localhost:PORT/query</code> to include the queries (as the
+ * benchmark copy of the rules used by {@link HandlerBenchmark} does).<br/>
+ * Standalone usage:
+ * <code>java -cp benchmarks.jar org.fosstrak.capturingapp.benchmarks.StubEPCIS
+ * port=8090 latency=20 jitter=10 errors=0.01</code>
+ */
+public class StubEPCIS {
+
+    /**
+     * callback for the captured documents.
+     */
+    public interface CaptureListener {
+        /**
+         * invoked for every accepted EPCIS document.
+         *
+         * @param document the document.
+         */
+        void captured(String document);
+    }
+
+    // the empty result of a query.
+    private static final String QUERY_RESULT =
+            "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+                    "<soap:Body>" +
+                    "<ns3:QueryResults xmlns:ns3=\"urn:epcglobal:epcis-query:xsd:1\">" +
+                    "<queryName>SimpleEventQuery</queryName>" +
+                    "<resultsBody><EventList/></resultsBody>" +
+                    "</ns3:QueryResults>" +
+                    "</soap:Body>" +
+                    "</soap:Envelope>";
+
+    // the result of a failed query.
+    private static final String QUERY_FAULT =
+            "<soap:Envelope xmlns:soap=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+                    "<soap:Body><soap:Fault>" +
+                    "<faultcode>soap:Server</faultcode>" +
+                    "<faultstring>stub failure</faultstring>" +
+                    "</soap:Fault></soap:Body>" +
+                    "</soap:Envelope>";
+
+    // the port to listen on.
+    private final int port;
+
+    // the base latency of a request in ms.
+    private final long latency;
+
+    // the maximum additional random latency in ms.
+    private final long jitter;
+
+    // the probability of a failed request (0 - 1).
+    private final double errorRate;
+
+    // the http server.
+    private HttpServer server;
+
+    // the threads serving the requests.
+    private ExecutorService executor;
+
+    // the listener for the captured documents (may be null).
+    private volatile CaptureListener listener = null;
+
+    // counters.
+    private final AtomicLong captured = new AtomicLong();
+    private final AtomicLong captureErrors = new AtomicLong();
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong queryErrors = new AtomicLong();
+
+    // the size of the captured documents in bytes.
+    private final AtomicLong capturedBytes = new AtomicLong();
+
+    // the time the requests spend in the stub (including the latency).
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+
+    /**
+     * create a new stub.
+     *
+     * @param port      the port to listen on.
+     * @param latency   the base latency of a request in ms.
+     * @param jitter    the maximum additional random latency in ms.
+     * @param errorRate the probability of a failed request (0 - 1).
+     */
+    public StubEPCIS(int port, long latency, long jitter, double errorRate) {
+        this.port = port;
+        this.latency = latency;
+        this.jitter = jitter;
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * starts the stub.
+     *
+     * @param threads the number of threads serving the requests.
+     * @throws IOException when the port could not be opened.
+     */
+    public void start(int threads) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 1024);
+        executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        server.setExecutor(executor);
+        server.createContext("/capture", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                capture(exchange);
+            }
+        });
+        server.createContext("/query", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                query(exchange);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * stops the stub.
+     */
+    public void stop() {
+        if (null != server) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * handles a capture request.
+     */
+    private void capture(HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            final String document = read(exchange.getRequestBody());
+            delay();
+            if (fail()) {
+                captureErrors.incrementAndGet();
+                respond(exchange, 500, "text/plain", "stub failure");
+                return;
+            }
+            captured.incrementAndGet();
+            capturedBytes.addAndGet(document.length());
+            final CaptureListener l = listener;
+            if (null != l) {
+                l.captured(document);
+            }
+            respond(exchange, 200, "text/plain", "");
+        } finally {
+            serviceTime.recordSince(start);
+        }
+    }
+
+    /**
+     * handles a query request.
+     */
+    private void query(HttpExchange exchange) throws IOException {
+        final long start = System.nanoTime();
+        try {
+            read(exchange.getRequestBody());
+            delay();
+            queries.incrementAndGet();
+            if (fail()) {
+                queryErrors.incrementAndGet();
+                respond(exchange, 500, "text/xml", QUERY_FAULT);
+                return;
+            }
+            respond(exchange, 200, "text/xml", QUERY_RESULT);
+        } finally {
+            serviceTime.recordSince(start);
+        }
+    }
+
+    /**
+     * waits for the configured latency.
+     */
+    private void delay() {
+        long ms = latency;
+        if (jitter > 0) {
+            ms += ThreadLocalRandom.current().nextLong(jitter + 1);
+        }
+        if (ms > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(ms);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return true if the request shall fail.
+     */
+    private boolean fail() {
+        return (errorRate > 0) &&
+                (ThreadLocalRandom.current().nextDouble() < errorRate);
+    }
+
+    /**
+     * reads a request body completely.
+     */
+    private static String read(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(8192);
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * sends a response.
+     */
+    private static void respond(HttpExchange exchange, int code,
+                                String contentType, String body)
+            throws IOException {
+        final byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(code, (0 == bytes.length) ? -1 : bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    /**
+     * @param listener the listener for the captured documents (null to
+     *                 remove it).
+     */
+    public void setCaptureListener(CaptureListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the number of accepted EPCIS documents.
+     */
+    public long getCaptured() {
+        return captured.get();
+    }
+
+    /**
+     * @return the number of failed capture requests.
+     */
+    public long getCaptureErrors() {
+        return captureErrors.get();
+    }
+
+    /**
+     * @return the number of queries.
+     */
+    public long getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * @return the number of failed queries.
+     */
+    public long getQueryErrors() {
+        return queryErrors.get();
+    }
+
+    /**
+     * @return the size of the accepted documents in bytes.
+     */
+    public long getCapturedBytes() {
+        return capturedBytes.get();
+    }
+
+    /**
+     * @return the time the requests spend in the stub.
+     */
+    public LatencyHistogram getServiceTime() {
+        return serviceTime;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("captured=%d, captureErrors=%d, queries=%d, " +
+                "queryErrors=%d, service time: %s", getCaptured(),
+                getCaptureErrors(), getQueries(), getQueryErrors(), serviceTime);
+    }
+
+    /**
+     * runs the stub until the process is killed. arguments are
+     * <code>key=value</code> pairs: port (8090), latency (0 ms), jitter
+     * (0 ms), errors (0.0), threads (64).
+     *
+     * @param args the arguments.
+     * @throws Exception when the stub could not be started.
+     */
+    public static void main(String[] args) throws Exception {
+        final LoadGenerator.Arguments a = new LoadGenerator.Arguments(args);
+        final StubEPCIS stub = new StubEPCIS(
+                a.getInt("port", 8090),
+                a.getLong("latency", 0),
+                a.getLong("jitter", 0),
+                a.getDouble("errors", 0));
+        stub.start(a.getInt("threads", 64));
+        System.out.println(String.format(
+                "stub EPCIS: http://localhost:%d/capture, http://localhost:%d/query",
+                a.getInt("port", 8090), a.getInt("port", 8090)));
+        while (true) {
+            TimeUnit.SECONDS.sleep(10);
+            System.out.println(stub);
+        }
+    }
+}
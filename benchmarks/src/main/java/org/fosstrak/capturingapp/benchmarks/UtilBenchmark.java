@@ -0,0 +1,73 @@
+package org.fosstrak.capturingapp.benchmarks;
+
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReport;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReportGroupListMember;
+import org.fosstrak.ale.xsd.epcglobal.EPC;
+import org.fosstrak.capturingapp.util.ReportIndex;
+import org.fosstrak.capturingapp.util.Util;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * the report helpers used by the rules: {@link Util#extractReportMembers},
+ * {@link Util#extractEPC}, {@link Util#fromReader} and the reader lookup of
+ * the demo rules ({@link Util#extractEPCFromReader}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+    /**
+     * the members of the reports.
+     */
+    @State(Scope.Benchmark)
+    public static class MembersState {
+
+        public List<ECReportGroupListMember> members;
+
+        @Setup(Level.Trial)
+        public void setup(ReportsState reports) {
+            members = Util.extractReportMembers(reports.reports);
+        }
+    }
+
+    @Benchmark
+    public List<ECReportGroupListMember> extractReportMembers(ReportsState state) {
+        return Util.extractReportMembers(state.reports);
+    }
+
+    @Benchmark
+    public List<EPC> extractEPC(ReportsState state) {
+        return Util.extractEPC(Util.selectEPC, state.reports);
+    }
+
+    @Benchmark
+    public int fromReader(MembersState state) {
+        int n = 0;
+        for (ECReportGroupListMember member : state.members) {
+            if (Util.fromReader("Reader_PointOfExit", member)) n++;
+        }
+        return n;
+    }
+
+    /**
+     * the lookups of the demo rules: every reader of every report, the
+     * index is built once per report like in the capture application.
+     */
+    @Benchmark
+    public void extractEPCFromReader(ReportsState state, Blackhole bh) {
+        for (ECReport report : state.reports.getReports().getReport()) {
+            for (String reader : ECReportsFixture.READERS) {
+                bh.consume(Util.extractEPCFromReader(Util.selectEPC, reader,
+                        report));
+            }
+        }
+        ReportIndex.release(state.reports);
+    }
+}
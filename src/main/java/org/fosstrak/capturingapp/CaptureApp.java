@@ -4,14 +4,32 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
 import org.fosstrak.ale.util.DeserializerUtil;
 import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+import org.fosstrak.capturingapp.util.AdmissionControl;
+import org.fosstrak.capturingapp.util.CircuitBreaker;
+import org.fosstrak.capturingapp.util.PriorityLanes;
+import org.fosstrak.capturingapp.util.ReportIndex;
+import org.fosstrak.capturingapp.util.ReportRecorder;
+import org.fosstrak.capturingapp.util.SharedScheduler;
+import org.fosstrak.capturingapp.util.SightingStore;
+import org.fosstrak.capturingapp.util.Snapshotable;
+import org.fosstrak.capturingapp.util.StateSnapshot;
+import org.fosstrak.capturingapp.util.VirtualThreads;
+import org.fosstrak.capturingapp.util.StreamedEPCISDocument;
+import org.fosstrak.capturingapp.util.Trace;
+import org.fosstrak.capturingapp.util.Tracer;
 import org.fosstrak.epcis.captureclient.CaptureClient;
 import org.fosstrak.epcis.model.EPCISDocumentType;
 
+import javax.xml.namespace.QName;
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.LinkedList;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * the capture application retrieves an ECReports from a specified socket. Then
@@ -30,8 +48,28 @@ public class CaptureApp implements Runnable {
     // the EPCIS capture client.
     private CaptureClient client = null;
 
+    /**
+     * the default time in ms a stopping capture application waits for the
+     * items in progress before it interrupts them.
+     */
+    public static final long DEFAULT_STOP_TIMEOUT = 30000;
+
     // execute the capture app.
-    private boolean execute = true;
+    private volatile boolean execute = true;
+
+    // accept new reports.
+    private volatile boolean accepting = true;
+
+    // the number of reports being received.
+    private final AtomicInteger receiving = new AtomicInteger();
+
+    // the number of reports, retries and EPCIS documents queued or in
+    // process.
+    private final AtomicInteger pending = new AtomicInteger();
+
+    // the number of reports, retries and EPCIS documents left over by a
+    // stop.
+    private final AtomicLong leftOver = new AtomicLong();
 
     // logger
     private static final Logger log = Logger.getLogger(CaptureApp.class);
@@ -39,17 +77,87 @@ public class CaptureApp implements Runnable {
     // server socket accepting incoming reports.
     private ServerSocket ss = null;
 
-    // a queue holding the received reports.
-    private ConcurrentLinkedQueue<ECReports> reports =
-            new ConcurrentLinkedQueue<ECReports>();
+    // the priority lanes holding the received reports.
+    private PriorityLanes<ECReports> reports = new PriorityLanes<ECReports>();
 
     // the ECReport handlers.
     private ConcurrentLinkedQueue<ECReportsHandler> handlers =
             new ConcurrentLinkedQueue<ECReportsHandler>();
 
-    // the EPCIS documents.
-    private ConcurrentLinkedQueue<EPCISDocumentType> epcisDocs =
-            new ConcurrentLinkedQueue<EPCISDocumentType>();
+    // the filters applied to the reports before the handlers are invoked.
+    private ConcurrentLinkedQueue<ECReportsFilter> filters =
+            new ConcurrentLinkedQueue<ECReportsFilter>();
+
+    // the priority lanes holding the EPCIS documents.
+    private PriorityLanes<EPCISDocumentType> epcisDocs =
+            new PriorityLanes<EPCISDocumentType>();
+
+    // the configured lanes (none: all the reports share one lane).
+    private final List<Lane> lanes = new ArrayList<Lane>();
+
+    // the lane of the reports matching no lane.
+    private int defaultLane = 0;
+
+    // run connections and capture requests on virtual threads.
+    private boolean virtualThreads = false;
+
+    // the maximum number of outstanding capture requests in virtual mode.
+    private int deliveryConcurrency = 256;
+
+    // executes one task per connection resp. capture request (virtual mode).
+    private ExecutorService ioExecutor = null;
+
+    // limits the outstanding capture requests (virtual mode).
+    private Semaphore deliveries = null;
+
+    // serializes the executions of a handler when a deadline is set.
+    private final ConcurrentHashMap<ECReportsHandler, ReentrantLock> handlerLocks =
+            new ConcurrentHashMap<ECReportsHandler, ReentrantLock>();
+
+    // the shared scheduler running the stages (null = dedicated threads).
+    private SharedScheduler scheduler = null;
+
+    // the admission control of the incoming reports (null = admit all).
+    private AdmissionControl admission = null;
+
+    // the source and spec name of the admitted reports in flight.
+    private final Map<ECReports, String[]> admitted =
+            Collections.synchronizedMap(new WeakHashMap<ECReports, String[]>());
+
+    // records the raw incoming reports (null = off).
+    private volatile ReportRecorder recorder = null;
+
+    // traces the reports through the pipeline (null = off).
+    private volatile Tracer tracer = null;
+
+    // the snapshot of the state of the filters and handlers (null = off).
+    private StateSnapshot snapshot = null;
+
+    // the interval between the periodic snapshots in ms.
+    private long snapshotInterval = StateSnapshot.DEFAULT_INTERVAL;
+
+    // the traces of the reports in flight.
+    private final Map<ECReports, Trace> traces =
+            Collections.synchronizedMap(new WeakHashMap<ECReports, Trace>());
+
+    // the traces of the EPCIS documents in flight.
+    private final Map<EPCISDocumentType, Trace> documentTraces =
+            Collections.synchronizedMap(
+                    new WeakHashMap<EPCISDocumentType, Trace>());
+
+    // the handler executions producing the EPCIS documents in flight.
+    private final Map<EPCISDocumentType, Retry> origins =
+            Collections.synchronizedMap(
+                    new WeakHashMap<EPCISDocumentType, Retry>());
+
+    /**
+     * the attribute of an EPCIS document carrying the trace ID.
+     */
+    public static final QName TRACE_ID_ATTRIBUTE =
+            new QName("urn:fosstrak:capturingapp", "traceId");
+
+    // the spec name attribute in a raw report.
+    private static final String SPEC_NAME_ATTRIBUTE = "specName=\"";
 
     // the reports queue worker.
     private Thread reportsQueueWorker = null;
@@ -60,6 +168,160 @@ public class CaptureApp implements Runnable {
     // flag whether capture app is up and running.
     private boolean up = false;
 
+    // flag whether the stages have been started.
+    private volatile boolean started = false;
+
+    // the statistics of the pipeline.
+    private final CaptureAppStatistics statistics = new CaptureAppStatistics(this);
+
+    // the deadline of one handler execution in ms (0 = no deadline).
+    private long handlerTimeout = 0;
+
+    /**
+     * the default number of retries of a timed out or failed handler
+     * execution.
+     */
+    public static final int DEFAULT_MAX_RETRIES = 3;
+
+    /**
+     * the default delay before a handler execution is retried in ms. the
+     * retries outlast an open circuit breaker of the repository (see
+     * {@link CircuitBreaker#DEFAULT_OPEN_TIME}).
+     */
+    public static final long DEFAULT_RETRY_DELAY = 15000;
+
+    // the number of retries of a timed out or failed handler execution.
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+
+    // the delay before a timed out or failed handler execution is retried
+    // in ms.
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+
+    // the number of reports kept in the dead-letter queue.
+    private int deadLetterCapacity = 100;
+
+    // executes the handlers when a deadline is set.
+    private ExecutorService handlerExecutor = null;
+
+    // the handler executions waiting for a retry (ordered by due time).
+    private final ConcurrentLinkedQueue<Retry> retries =
+            new ConcurrentLinkedQueue<Retry>();
+
+    // the reports that could not be handled (deadline exceeded or handler
+    // failed).
+    private final ConcurrentLinkedQueue<DeadLetter> deadLetters =
+            new ConcurrentLinkedQueue<DeadLetter>();
+
+    // the number of handler executions exceeding the deadline.
+    private final AtomicLong timeouts = new AtomicLong();
+
+    // the number of reports put into the dead-letter queue.
+    private final AtomicLong deadLettered = new AtomicLong();
+
+    // the number of dead letters dropped because the queue was full.
+    private final AtomicLong deadLettersDropped = new AtomicLong();
+
+    /**
+     * a handler execution waiting for a retry (resp. producing an EPCIS
+     * document).
+     */
+    private static class Retry {
+        final ECReportsHandler handler;
+        final ECReports reports;
+        final int lane;
+        final int attempt;
+        final long due;
+
+        Retry(ECReportsHandler handler, ECReports reports, int lane,
+              int attempt, long due) {
+            this.handler = handler;
+            this.reports = reports;
+            this.lane = lane;
+            this.attempt = attempt;
+            this.due = due;
+        }
+    }
+
+    /**
+     * reports that could not be handled: the retries of the handler are
+     * exhausted. the dead letters can be replayed with
+     * {@link CaptureApp#replayDeadLetters()}.
+     */
+    public static class DeadLetter {
+
+        // the failed handler (null = all the handlers).
+        private final ECReportsHandler handler;
+
+        // the reports as passed on by the filters.
+        private final ECReports reports;
+
+        // the reason of the failure.
+        private final String reason;
+
+        // the time of the failure in ms.
+        private final long time;
+
+        DeadLetter(ECReportsHandler handler, ECReports reports,
+                   String reason, long time) {
+            this.handler = handler;
+            this.reports = reports;
+            this.reason = reason;
+            this.time = time;
+        }
+
+        /**
+         * @return the failed handler (null = all the handlers, eg. after a
+         *         reconfiguration).
+         */
+        public ECReportsHandler getHandler() {
+            return handler;
+        }
+
+        /**
+         * @return the reports as passed on by the filters.
+         */
+        public ECReports getReports() {
+            return reports;
+        }
+
+        /**
+         * @return the reason of the failure.
+         */
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return the time of the failure in ms.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%tFT%<tT %s [%s]: %s", time,
+                    reports.getSpecName(), (null == handler) ? "*" :
+                    handler.getClass().getSimpleName() + "[" +
+                            handler.getChangeSet() + "]", reason);
+        }
+    }
+
+    /**
+     * a priority lane: the reports of the given specs or readers.
+     */
+    private static class Lane {
+        final int weight;
+        final Set<String> specs;
+        final Set<String> readers;
+
+        Lane(int weight, Set<String> specs, Set<String> readers) {
+            this.weight = weight;
+            this.specs = specs;
+            this.readers = readers;
+        }
+    }
+
     /**
      * construct a new capture application.
      *
@@ -83,13 +345,273 @@ public class CaptureApp implements Runnable {
     }
 
     /**
-     * stops the execution of the capture app.
+     * stops the execution of the capture app, waiting up to
+     * {@link #DEFAULT_STOP_TIMEOUT} for the queued items.
      */
     public void stopCaptureApp() throws IOException {
+        stopCaptureApp(DEFAULT_STOP_TIMEOUT);
+    }
+
+    /**
+     * stops the execution of the capture app. the ingest is stopped first
+     * (reports arriving afterwards are rejected), then the stages work off
+     * the queued reports, retries and EPCIS documents within the timeout.
+     * the retries and EPCIS documents left over are put into the dead-letter
+     * queue (and the filters forget their tags) before the final snapshot,
+     * the reports left over are kept and can be handed over with
+     * {@link #transferTo(CaptureApp)}.
+     *
+     * @param timeout the maximum time in ms to wait for the queued items.
+     * @throws IOException when the listen socket could not be closed.
+     */
+    public void stopCaptureApp(long timeout) throws IOException {
+        stopCaptureApp(timeout, true);
+    }
+
+    /**
+     * stops the execution of the capture app. the ingest is stopped first
+     * (reports arriving afterwards are rejected). when draining, the stages
+     * work off the queued items (see {@link #stopCaptureApp(long)}),
+     * otherwise they only finish the report resp. EPCIS document they are
+     * working on and the queued items are kept to be handed over with
+     * {@link #transferTo(CaptureApp)}. the executions that do not finish
+     * within the timeout are interrupted.
+     *
+     * @param timeout the maximum time in ms to wait for the items in
+     *                progress.
+     * @param drain   true to work off the queued items, false to keep them
+     *                for a handover.
+     * @throws IOException when the listen socket could not be closed.
+     */
+    public void stopCaptureApp(long timeout, boolean drain)
+            throws IOException {
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        // stop the ingest and wait for the reports being received.
+        accepting = false;
+        if (null != ss) {
+            ss.close();
+        }
+        while ((receiving.get() > 0) && (System.currentTimeMillis() < deadline)) {
+            sleep(10);
+        }
+        if (drain && started) {
+            // work off the queued items.
+            while ((pending.get() > 0) &&
+                    (System.currentTimeMillis() < deadline)) {
+                sleep(10);
+            }
+        }
+
+        // let the stages finish their current item.
         this.execute = false;
-        reportsQueueWorker.interrupt();
-        epcisQueueWorker.interrupt();
-        ss.close();
+        reports.wakeUp();
+        epcisDocs.wakeUp();
+        join(reportsQueueWorker, deadline);
+        join(epcisQueueWorker, deadline);
+        while ((reportsDrain.isScheduled() || deliveryDrain.isScheduled()) &&
+                (System.currentTimeMillis() < deadline)) {
+            sleep(10);
+        }
+        // the outstanding capture requests (virtual mode).
+        if (null != ioExecutor) {
+            ioExecutor.shutdown();
+            awaitTermination(ioExecutor, deadline);
+        }
+        if (null != handlerExecutor) {
+            handlerExecutor.shutdown();
+            awaitTermination(handlerExecutor, deadline);
+        }
+
+        // interrupt what did not finish in time.
+        if (isAlive(reportsQueueWorker) || isAlive(epcisQueueWorker) ||
+                reportsDrain.isScheduled() || deliveryDrain.isScheduled() ||
+                (receiving.get() > 0)) {
+            log.warn(String.format("CaptureApp 未能在 %d ms 内停止, 中断执行.",
+                    timeout));
+        }
+        if (null != reportsQueueWorker) {
+            reportsQueueWorker.interrupt();
+        }
+        if (null != epcisQueueWorker) {
+            epcisQueueWorker.interrupt();
+        }
+        if (null != handlerExecutor) {
+            handlerExecutor.shutdownNow();
+        }
+        if (null != ioExecutor) {
+            ioExecutor.shutdownNow();
+        }
+        if (drain) {
+            // before the final snapshot.
+            discardLeftOver();
+        }
+        if (null != recorder) {
+            recorder.close();
+        }
+        if ((null != snapshot) && started) {
+            // a capture application that never ran has nothing to save.
+            snapshot.stop();
+        }
+        up = false;
+    }
+
+    /**
+     * puts the retries and EPCIS documents left over by a stop into the
+     * dead-letter queue, such that the filters forget their tags and the
+     * reports can be replayed (e.g. after a reconfiguration). an EPCIS
+     * document is dead-lettered as the reports and handler producing it.
+     * the reports left over stay queued.
+     */
+    private void discardLeftOver() {
+        final List<Retry> lost = new ArrayList<Retry>();
+        Retry retry;
+        while (null != (retry = retries.poll())) {
+            lost.add(retry);
+            releaseTrace(retry.reports);
+        }
+        int documents = 0;
+        EPCISDocumentType doc;
+        while (null != (doc = epcisDocs.poll())) {
+            documents++;
+            final Retry origin = origins.remove(doc);
+            completeTrace(doc, "discarded");
+            if ((null != origin) && !contains(lost, origin)) {
+                lost.add(origin);
+            }
+        }
+        final int queued = reports.size();
+        if (lost.isEmpty() && (0 == documents) && (0 == queued)) {
+            return;
+        }
+        leftOver.addAndGet(lost.size() + documents + queued);
+        log.warn(String.format("CaptureApp 停止时剩余: %d 个 EPCIS 文档, " +
+                "%d 个处理放入死信队列, %d 个报告保留在队列中.", documents,
+                lost.size(), queued));
+        for (Retry r : lost) {
+            deadLetter(r.handler, r.reports, "CaptureApp 已停止");
+        }
+    }
+
+    /**
+     * @param executions handler executions.
+     * @param execution  a handler execution.
+     * @return true if the executions contain the handler execution of the
+     *         same handler and reports.
+     */
+    private static boolean contains(List<Retry> executions, Retry execution) {
+        for (Retry r : executions) {
+            if ((r.handler == execution.handler) &&
+                    (r.reports == execution.reports)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * sleeps, an interrupt ends the sleep and is kept for the caller.
+     *
+     * @param millis the time to sleep in ms.
+     */
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * waits for a thread to terminate.
+     *
+     * @param t        the thread (may be null).
+     * @param deadline the time in ms when to give up.
+     */
+    private static void join(Thread t, long deadline) {
+        final long wait = deadline - System.currentTimeMillis();
+        if ((null == t) || (wait <= 0)) {
+            return;
+        }
+        try {
+            t.join(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * waits for the tasks of an executor to terminate.
+     *
+     * @param executor the executor (shut down).
+     * @param deadline the time in ms when to give up.
+     */
+    private static void awaitTermination(ExecutorService executor,
+                                         long deadline) {
+        final long wait = deadline - System.currentTimeMillis();
+        if (wait <= 0) {
+            return;
+        }
+        try {
+            executor.awaitTermination(wait, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the thread is running.
+     */
+    private static boolean isAlive(Thread t) {
+        return (null != t) && t.isAlive();
+    }
+
+    /**
+     * hands the queued reports and EPCIS documents over to another capture
+     * application (e.g. the replacement of a reconfigured capture
+     * application). the handler executions waiting for a retry and the dead
+     * letters are put into the dead-letter queue of the target, as the
+     * target has other handlers (they are replayed to all its handlers).
+     * must be called after the capture application has been stopped (see
+     * {@link #stopCaptureApp(long)}), such that no stage is working on the
+     * queues any more.
+     *
+     * @param target the capture application taking over the queued items.
+     * @return the number of items handed over.
+     */
+    public int transferTo(CaptureApp target) {
+        int n = 0;
+        ECReports r;
+        while (null != (r = reports.poll())) {
+            releaseAdmission(r);
+            target.handleReports(r);
+            n++;
+        }
+        final long now = System.currentTimeMillis();
+        Retry retry;
+        while (null != (retry = retries.poll())) {
+            target.addDeadLetter(new DeadLetter(null, retry.reports,
+                    "处理程序已替换", now));
+            n++;
+        }
+        DeadLetter d;
+        while (null != (d = deadLetters.poll())) {
+            target.addDeadLetter(new DeadLetter(null, d.reports, d.reason,
+                    d.time));
+            n++;
+        }
+        EPCISDocumentType doc;
+        while (null != (doc = epcisDocs.poll())) {
+            final Retry origin = origins.remove(doc);
+            if (null != origin) {
+                target.origins.put(doc, origin);
+            }
+            target.pending.incrementAndGet();
+            target.epcisDocs.offer(target.defaultLane, doc);
+            n++;
+        }
+        target.deliveryDrain.signal();
+        return n;
     }
 
     /**
@@ -113,10 +635,70 @@ public class CaptureApp implements Runnable {
      */
     private void handleReports(ECReports reports) {
         log.debug("处理传入的报告");
-        synchronized (this.reports) {
-            this.reports.add(reports);
-            this.reports.notifyAll();
+        pending.incrementAndGet();
+        this.reports.offer(laneOf(reports), reports);
+        reportsDrain.signal();
+    }
+
+    /**
+     * adds a priority lane. the reports and the resulting EPCIS documents of
+     * the lanes are served by weighted round-robin, so the reports of a lane
+     * with a high weight overtake the reports of a lane with a low weight,
+     * while every lane is guaranteed its share. a report goes to the first
+     * lane matching its spec name or one of its readers; reports matching no
+     * lane go to the first lane without criteria (resp. the last lane).<br/>
+     * <strong>NOTICE:</strong> lanes must be added before the capture
+     * application is started.
+     *
+     * @param weight  the weight of the lane.
+     * @param specs   the spec names of the lane (may be null).
+     * @param readers the reader names of the lane (may be null).
+     */
+    public void addLane(int weight, Collection<String> specs,
+                        Collection<String> readers) {
+        lanes.add(new Lane(weight,
+                (null == specs) ? null : new HashSet<String>(specs),
+                (null == readers) ? null : new HashSet<String>(readers)));
+
+        int[] weights = new int[lanes.size()];
+        defaultLane = lanes.size() - 1;
+        for (int i = lanes.size() - 1; i >= 0; i--) {
+            Lane l = lanes.get(i);
+            weights[i] = l.weight;
+            if ((null == l.specs) && (null == l.readers)) {
+                defaultLane = i;
+            }
+        }
+        reports = new PriorityLanes<ECReports>(weights);
+        epcisDocs = new PriorityLanes<EPCISDocumentType>(weights);
+    }
+
+    /**
+     * @param r the reports.
+     * @return the lane of the reports.
+     */
+    private int laneOf(ECReports r) {
+        if (lanes.size() <= 1) {
+            return 0;
+        }
+        Set<String> readers = null;
+        for (int i = 0; i < lanes.size(); i++) {
+            Lane l = lanes.get(i);
+            if ((null != l.specs) && l.specs.contains(r.getSpecName())) {
+                return i;
+            }
+            if (null != l.readers) {
+                if (null == readers) {
+                    readers = ReportIndex.of(r).getReaderNames();
+                }
+                for (String reader : readers) {
+                    if (l.readers.contains(reader)) {
+                        return i;
+                    }
+                }
+            }
         }
+        return defaultLane;
     }
 
     /**
@@ -141,127 +723,967 @@ public class CaptureApp implements Runnable {
         }
     }
 
-    public void run() {
-        if ((null == client) && (null == getEpcisRepositoryURL())) {
-            log.error("EPCIS 库参数丢失");
-            throw new RuntimeException("EPCIS 库参数丢失");
+    /**
+     * register a filter for incoming ECReports. the filters are applied in
+     * the order of their registration.
+     *
+     * @param filter the filter.
+     */
+    public void registerFilter(ECReportsFilter filter) {
+        filters.add(filter);
+    }
+
+    /**
+     * removes a filter.
+     *
+     * @param filter the filter.
+     */
+    public void deregisterFilter(ECReportsFilter filter) {
+        filters.remove(filter);
+    }
+
+    /**
+     * passes the reports through all the registered filters.
+     *
+     * @param r the reports.
+     * @return the filtered reports or null if a filter dropped the reports.
+     */
+    private ECReports applyFilters(ECReports r) {
+        for (ECReportsFilter filter : filters) {
+            if (null == r) {
+                break;
+            }
+            try {
+                r = filter.filter(r);
+            } catch (Exception ex) {
+                log.error("过滤器触发的异常." + ex.getMessage());
+            }
         }
-        if (null == client) {
-            client = new CaptureClient(getEpcisRepositoryURL());
+        return r;
+    }
+
+    /**
+     * invokes a handler and puts the resulting EPCIS documents into the
+     * delivery queue. when a deadline is set and the handler exceeds it, the
+     * execution is cancelled. an overdue or failed execution is either
+     * scheduled for a retry or the reports are put into the dead-letter
+     * queue.
+     *
+     * @param handler the handler.
+     * @param r       the reports.
+     * @param lane    the lane of the reports.
+     * @param attempt the number of the attempt (0 for the first one).
+     */
+    private void invokeHandler(ECReportsHandler handler, ECReports r,
+                               int lane, int attempt) {
+        final long start = System.nanoTime();
+        final Trace trace = traces.get(r);
+        if (null != trace) {
+            trace.mark(Trace.Stage.RULES_START);
         }
+        try {
+            // retrieve the EPCIS document
+            LinkedList<EPCISDocumentType> docs = (handlerTimeout > 0) ?
+                    handleWithDeadline(handler, r) : handle(handler, r);
+            statistics.recordHandler(handler, start);
 
-        // queue worker...
-        reportsQueueWorker = new Thread(new Runnable() {
-            public void run() {
-                while (execute) {
-                    try {
-                        ECReports r = null;
-                        synchronized (reports) {
-                            while (0 == reports.size()) {
-                                reports.wait();
-                            }
-                            // remove the first report to work on.
-                            r = reports.remove();
-                        }
-                        synchronized (handlers) {
-                            for (ECReportsHandler handler : handlers) {
-                                try {
-                                    // retrieve the EPCIS document
-                                    LinkedList<EPCISDocumentType> docs =
-                                            handler.handle(
-                                                    r);
-
-                                    if (null != docs) {
-                                        // add it to the queue
-                                        synchronized (epcisDocs) {
-                                            for (EPCISDocumentType doc : docs) {
-                                                if (null != doc) {
-                                                    epcisDocs.add(doc);
-                                                }
-                                            }
-                                            epcisDocs.notifyAll();
-                                        }
-                                    }
-                                } catch (Exception ex) {
-                                    log.debug("处理程序触发的异常." +
-                                            ex.getMessage());
-                                }
-                            }
+            if (null != docs) {
+                // add it to the queue
+                for (EPCISDocumentType doc : docs) {
+                    if (null != doc) {
+                        if (null != trace) {
+                            trace.acquire();
+                            trace.addDocument();
+                            doc.getOtherAttributes().put(TRACE_ID_ATTRIBUTE,
+                                    trace.getId());
+                            documentTraces.put(doc, trace);
                         }
-                    } catch (InterruptedException e) {
-                        log.debug("接收到中断.");
+                        origins.put(doc, new Retry(handler, r, lane, attempt,
+                                0));
+                        pending.incrementAndGet();
+                        epcisDocs.offer(lane, doc);
+                        statistics.documentsProduced.incrementAndGet();
                     }
                 }
-                log.info("停止消费队列.");
+                deliveryDrain.signal();
             }
-        });
-        reportsQueueWorker.start();
+        } catch (TimeoutException ex) {
+            timeouts.incrementAndGet();
+            retryOrDeadLetter(handler, r, lane, attempt, String.format(
+                    "处理程序超时 (%d ms)", handlerTimeout));
+        } catch (Exception ex) {
+            statistics.handlerFailures.incrementAndGet();
+            if (null != trace) {
+                trace.setOutcome("failed");
+            }
+            log.debug("处理程序触发的异常.", ex);
+            retryOrDeadLetter(handler, r, lane, attempt,
+                    "处理程序触发的异常: " + ex.getMessage());
+        } finally {
+            if (null != trace) {
+                trace.markLast(Trace.Stage.RULES_END);
+            }
+        }
+    }
 
-        // EPCIS documents queue worker...
-        epcisQueueWorker = new Thread(new Runnable() {
-            public void run() {
-                while (execute) {
-                    try {
-                        EPCISDocumentType doc = null;
-                        synchronized (epcisDocs) {
-                            while (0 == epcisDocs.size()) {
-                                epcisDocs.wait();
-                            }
-                            // remove the first report to work on.
-                            doc = epcisDocs.remove();
-                        }
+    /**
+     * invokes a handler with the trace of the reports as the current trace.
+     *
+     * @param handler the handler.
+     * @param r       the reports.
+     * @return the EPCIS documents of the handler.
+     * @throws Exception when the handler failed.
+     */
+    private LinkedList<EPCISDocumentType> handle(ECReportsHandler handler,
+                                                 ECReports r) throws Exception {
+        final Trace trace = traces.get(r);
+        if (null == trace) {
+            return handler.handle(r);
+        }
+        Trace.setCurrent(trace);
+        try {
+            return handler.handle(r);
+        } finally {
+            Trace.setCurrent(null);
+        }
+    }
+
+    /**
+     * executes a handler within the deadline. the executions of one handler
+     * are serialized with a lock, as the handlers are not thread-safe. an
+     * overdue execution is interrupted and its session halted.
+     *
+     * @param handler the handler.
+     * @param r       the reports.
+     * @return the EPCIS documents of the handler.
+     * @throws TimeoutException when the handler exceeded the deadline.
+     * @throws Exception        when the handler failed.
+     */
+    private LinkedList<EPCISDocumentType> handleWithDeadline(
+            final ECReportsHandler handler, final ECReports r)
+            throws Exception {
+
+        ReentrantLock lock = handlerLocks.get(handler);
+        if (null == lock) {
+            handlerLocks.putIfAbsent(handler, new ReentrantLock());
+            lock = handlerLocks.get(handler);
+        }
+        final ReentrantLock handlerLock = lock;
+        Future<LinkedList<EPCISDocumentType>> f = handlerExecutor.submit(
+                new Callable<LinkedList<EPCISDocumentType>>() {
+                    public LinkedList<EPCISDocumentType> call()
+                            throws InterruptedException {
+                        handlerLock.lockInterruptibly();
                         try {
-                            int httpResponseCode = client.capture(doc);
-                            if (httpResponseCode != 200) {
-                                log.error("该事件无法被捕获!");
-                            }
-                        } catch (Exception e) {
-                            e.printStackTrace();
+                            return handle(handler, r);
+                        } finally {
+                            handlerLock.unlock();
                         }
-                    } catch (InterruptedException e) {
-                        log.debug("接收到中断.");
                     }
-                }
-                log.info("停止消费队列.");
+                });
+        try {
+            return f.get(handlerTimeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            f.cancel(true);
+            handler.cancel();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * schedules a retry of an overdue or failed handler execution or puts
+     * the reports into the dead-letter queue when the retries are exhausted.
+     *
+     * @param handler the handler.
+     * @param r       the reports.
+     * @param lane    the lane of the reports.
+     * @param attempt the number of the failed attempt (0 for the first one).
+     * @param reason  the reason of the failure.
+     */
+    private void retryOrDeadLetter(ECReportsHandler handler, ECReports r,
+                                   int lane, int attempt, String reason) {
+        if (attempt >= maxRetries) {
+            deadLetter(handler, r, reason);
+            return;
+        }
+        log.warn(String.format("%s, 稍后重试 (%d/%d).", reason, attempt + 1,
+                maxRetries));
+        final Trace trace = traces.get(r);
+        if (null != trace) {
+            trace.acquire();
+        }
+        pending.incrementAndGet();
+        retries.add(new Retry(handler, r, lane, attempt + 1,
+                System.currentTimeMillis() + retryDelay));
+        if (null != scheduler) {
+            scheduler.schedule(new Runnable() {
+                public void run() {
+                    reportsDrain.signal();
+                }
+            }, retryDelay);
+        }
+    }
+
+    /**
+     * puts reports into the dead-letter queue and reverts the state the
+     * filters recorded for them (see {@link RevertibleFilter}), such that
+     * the tags are not suppressed by the next cycles.
+     *
+     * @param handler the failed handler.
+     * @param r       the reports.
+     * @param reason  the reason why the reports could not be handled.
+     */
+    private void deadLetter(ECReportsHandler handler, ECReports r,
+                            String reason) {
+        log.error(String.format("%s, 报告 %s 放入死信队列.", reason,
+                r.getSpecName()));
+        final Trace trace = traces.get(r);
+        if (null != trace) {
+            trace.setOutcome("dead-lettered");
+        }
+        for (ECReportsFilter filter : filters) {
+            if (filter instanceof RevertibleFilter) {
+                try {
+                    ((RevertibleFilter) filter).revert(r);
+                } catch (Exception ex) {
+                    log.error("过滤器触发的异常." + ex.getMessage());
+                }
+            }
+        }
+        addDeadLetter(new DeadLetter(handler, r, reason,
+                System.currentTimeMillis()));
+    }
+
+    /**
+     * adds a dead letter to the queue. the oldest dead letters are dropped
+     * when the queue is full.
+     *
+     * @param d the dead letter.
+     */
+    private void addDeadLetter(DeadLetter d) {
+        deadLettered.incrementAndGet();
+        deadLetters.add(d);
+        while (deadLetters.size() > deadLetterCapacity) {
+            final DeadLetter dropped = deadLetters.poll();
+            if (null != dropped) {
+                deadLettersDropped.incrementAndGet();
+                log.error("死信队列已满, 丢弃: " + dropped);
+            }
+        }
+    }
+
+    /**
+     * replays the dead letters: the reports are handed to their failed
+     * handler again (resp. to all the handlers accepting them), without
+     * passing the filters again. a replay failing again goes through the
+     * retries and back into the dead-letter queue. the capture application
+     * must be running.
+     *
+     * @return the replayed dead letters.
+     */
+    public List<DeadLetter> replayDeadLetters() {
+        final List<DeadLetter> replayed = new ArrayList<DeadLetter>();
+        int n = 0;
+        final long now = System.currentTimeMillis();
+        DeadLetter d;
+        while (null != (d = deadLetters.poll())) {
+            replayed.add(d);
+            // not traced again.
+            traces.remove(d.reports);
+            final int lane = laneOf(d.reports);
+            if (null != d.handler) {
+                pending.incrementAndGet();
+                retries.add(new Retry(d.handler, d.reports, lane, 0, now));
+                n++;
+                continue;
+            }
+            synchronized (handlers) {
+                for (ECReportsHandler handler : handlers) {
+                    if (handler.accepts(d.reports)) {
+                        pending.incrementAndGet();
+                        retries.add(new Retry(handler, d.reports, lane, 0,
+                                now));
+                        n++;
+                    }
+                }
+            }
+        }
+        log.info(String.format("重放 %d 个死信 (%d 次处理).",
+                replayed.size(), n));
+        reports.wakeUp();
+        reportsDrain.signal();
+        return replayed;
+    }
+
+    /**
+     * extracts the spec name from a raw report without parsing it.
+     *
+     * @param raw the raw report.
+     * @return the spec name or null if not found.
+     */
+    static String peekSpecName(CharSequence raw) {
+        final String head = raw.subSequence(0, Math.min(raw.length(), 2048))
+                .toString();
+        final int start = head.indexOf(SPEC_NAME_ATTRIBUTE);
+        if (-1 == start) {
+            return null;
+        }
+        final int from = start + SPEC_NAME_ATTRIBUTE.length();
+        final int end = head.indexOf('"', from);
+        return (-1 == end) ? null : head.substring(from, end);
+    }
+
+    /**
+     * releases the admission slots of handled reports.
+     *
+     * @param r the reports.
+     */
+    private void releaseAdmission(ECReports r) {
+        if (null == admission) {
+            return;
+        }
+        final String[] key = admitted.remove(r);
+        if (null != key) {
+            admission.release(key[0], key[1]);
+        }
+    }
+
+    /**
+     * processes the next due retry or the next report.
+     *
+     * @return false if there was nothing to process.
+     */
+    private boolean processReport() {
+        Retry retry = pollRetry();
+        if (null != retry) {
+            try {
+                invokeHandler(retry.handler, retry.reports, retry.lane,
+                        retry.attempt);
+                releaseTrace(retry.reports);
+            } finally {
+                pending.decrementAndGet();
+            }
+            return true;
+        }
+
+        // remove the next report to work on.
+        ECReports r = reports.poll();
+        if (null == r) {
+            return false;
+        }
+        try {
+            processReport(r);
+        } finally {
+            pending.decrementAndGet();
+        }
+        return true;
+    }
+
+    /**
+     * passes reports through the filters and the handlers.
+     *
+     * @param r the reports.
+     */
+    private void processReport(ECReports r) {
+        // the lane of the original reports (the reader index is cached
+        // alongside the reports).
+        final int lane = laneOf(r);
+        final ECReports received = r;
+        final Trace trace = traces.get(received);
+        if (null != trace) {
+            trace.mark(Trace.Stage.DEQUEUED);
+        }
+        r = applyFilters(r);
+        if (null != trace) {
+            trace.mark(Trace.Stage.FILTERED);
+        }
+        if (null == r) {
+            statistics.reportsDropped.incrementAndGet();
+            releaseAdmission(received);
+            if (null != trace) {
+                trace.setOutcome("dropped");
+            }
+            releaseTrace(received);
+            return;
+        }
+        if ((null != trace) && (r != received)) {
+            // the handlers see the filtered reports.
+            traces.put(r, trace);
+        }
+        synchronized (handlers) {
+            for (ECReportsHandler handler : handlers) {
+                if (!handler.accepts(r)) {
+                    // no rule of the handler can match.
+                    continue;
+                }
+                invokeHandler(handler, r, lane, 0);
+            }
+        }
+        // after the handlers, such that the rules see the previous sightings.
+        final SightingStore store = SightingStore.getInstance();
+        if (null != store) {
+            store.recordSightings(received, System.currentTimeMillis());
+        }
+        ReportIndex.release(r);
+        releaseAdmission(received);
+        releaseTrace(received);
+    }
+
+    /**
+     * the reports resp. a retry leave the rule stage.
+     *
+     * @param r the reports.
+     */
+    private void releaseTrace(ECReports r) {
+        final Trace trace = traces.get(r);
+        if (null != trace) {
+            trace.release();
+        }
+    }
+
+    /**
+     * delivers the next EPCIS document to the repository.
+     *
+     * @return false if there was nothing to deliver.
+     */
+    private boolean deliverDocument() {
+        if (null != deliveries) {
+            // one capture request per task, bounded by the semaphore.
+            if (null == scheduler) {
+                deliveries.acquireUninterruptibly();
+            } else if (!deliveries.tryAcquire()) {
+                // the drain task is signaled again when a permit is released.
+                return false;
+            }
+        }
+        final EPCISDocumentType doc = epcisDocs.poll();
+        if (null == doc) {
+            if (null != deliveries) {
+                deliveries.release();
+            }
+            return false;
+        }
+        final Trace trace = documentTraces.get(doc);
+        if (null != trace) {
+            trace.mark(Trace.Stage.DELIVERY_START);
+        }
+        if (null == deliveries) {
+            capture(doc);
+            return true;
+        }
+        try {
+            ioExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        capture(doc);
+                    } finally {
+                        releaseDelivery();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            releaseDelivery();
+            log.error("不能提交捕获请求: " + e.getMessage());
+            completeTrace(doc, "failed");
+            delivered(doc);
+        }
+        return true;
+    }
+
+    /**
+     * releases the permit of a capture request and signals the delivery
+     * stage, which may be waiting for a permit.
+     */
+    private void releaseDelivery() {
+        deliveries.release();
+        deliveryDrain.signal();
+    }
+
+    /**
+     * sends an EPCIS document to the repository.
+     *
+     * @param doc the EPCIS document.
+     */
+    private void capture(EPCISDocumentType doc) {
+        final long start = System.nanoTime();
+        try {
+            int httpResponseCode;
+            if (doc instanceof StreamedEPCISDocument) {
+                // already serialized, skip the marshalling.
+                httpResponseCode = client.capture(
+                        ((StreamedEPCISDocument) doc).getInputStream());
+            } else {
+                httpResponseCode = client.capture(doc);
+            }
+            statistics.captureLatency.recordSince(start);
+            statistics.recordStatus(httpResponseCode);
+            if (httpResponseCode != 200) {
+                statistics.capturesFailed.incrementAndGet();
+                log.error("该事件无法被捕获!");
+                completeTrace(doc, "failed");
+            } else {
+                statistics.capturesSucceeded.incrementAndGet();
+                final SightingStore store = SightingStore.getInstance();
+                if (null != store) {
+                    store.recordDocument(doc, System.currentTimeMillis());
+                }
+                completeTrace(doc, null);
+            }
+        } catch (Exception e) {
+            statistics.capturesFailed.incrementAndGet();
+            e.printStackTrace();
+            completeTrace(doc, "failed");
+        } finally {
+            delivered(doc);
+        }
+    }
+
+    /**
+     * an EPCIS document leaves the delivery stage (captured or not).
+     *
+     * @param doc the EPCIS document.
+     */
+    private void delivered(EPCISDocumentType doc) {
+        origins.remove(doc);
+        pending.decrementAndGet();
+    }
+
+    /**
+     * an EPCIS document leaves the delivery stage.
+     *
+     * @param doc     the EPCIS document.
+     * @param outcome the outcome (null if captured).
+     */
+    private void completeTrace(EPCISDocumentType doc, String outcome) {
+        final Trace trace = documentTraces.remove(doc);
+        if (null == trace) {
+            return;
+        }
+        if (null != outcome) {
+            trace.setOutcome(outcome);
+        }
+        trace.markLast(Trace.Stage.CAPTURED);
+        trace.release();
+    }
+
+    /**
+     * registers the filters and handlers keeping state with the snapshot,
+     * restores their state from the last snapshot and starts the periodic
+     * snapshots. called before the stages are started.
+     */
+    private void restoreSnapshot() {
+        snapshot.clear();
+        int i = 0;
+        for (ECReportsFilter filter : filters) {
+            if (filter instanceof Snapshotable) {
+                snapshot.register("filter." + i + "." +
+                        filter.getClass().getName(), (Snapshotable) filter);
+            }
+            i++;
+        }
+        i = 0;
+        synchronized (handlers) {
+            for (ECReportsHandler handler : handlers) {
+                if (handler instanceof Snapshotable) {
+                    snapshot.register("handler." + i + "." +
+                            handler.getClass().getName(), (Snapshotable) handler);
+                }
+                i++;
+            }
+        }
+        snapshot.restore();
+        snapshot.start(snapshotInterval);
+    }
+
+    /**
+     * starts the dedicated worker threads of the rule and delivery stages.
+     */
+    private void startWorkers() {
+        // queue worker...
+        reportsQueueWorker = new Thread(new Runnable() {
+            public void run() {
+                while (execute) {
+                    try {
+                        if (processReport()) {
+                            continue;
+                        }
+                        // wake up for the pending retries.
+                        reports.awaitElements(retries.isEmpty() ? 0 : retryDelay);
+                    } catch (InterruptedException e) {
+                        log.debug("接收到中断.");
+                    }
+                }
+                log.info("停止消费队列.");
+            }
+        });
+        reportsQueueWorker.start();
+
+        // EPCIS documents queue worker...
+        epcisQueueWorker = new Thread(new Runnable() {
+            public void run() {
+                while (execute) {
+                    try {
+                        if (deliverDocument()) {
+                            continue;
+                        }
+                        epcisDocs.awaitElements(0);
+                    } catch (InterruptedException e) {
+                        log.debug("接收到中断.");
+                    }
+                }
+                log.info("停止消费队列.");
             }
         });
         epcisQueueWorker.start();
+    }
+
+    /**
+     * drain task of a stage on the shared scheduler. at most one drain task
+     * per stage is queued or running. it processes up to the quota of the
+     * scheduler and re-submits itself if work is left.
+     */
+    private abstract class Drain implements Runnable {
+
+        // whether the task is queued or running.
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
 
+        /**
+         * @return false if there was nothing to process.
+         */
+        abstract boolean step();
+
+        /**
+         * @return true if there is work to process.
+         */
+        abstract boolean hasWork();
+
+        /**
+         * @return true if the task is queued or running.
+         */
+        boolean isScheduled() {
+            return scheduled.get();
+        }
+
+        /**
+         * submits the task unless it is already queued or running.
+         */
+        void signal() {
+            if ((null != scheduler) && started && execute &&
+                    scheduled.compareAndSet(false, true)) {
+                scheduler.execute(this);
+            }
+        }
+
+        public void run() {
+            try {
+                int n = 0;
+                while (execute && (n < scheduler.getQuota()) && step()) {
+                    n++;
+                }
+            } finally {
+                scheduled.set(false);
+                if (hasWork()) {
+                    signal();
+                }
+            }
+        }
+    }
+
+    // the drain task of the rule stage.
+    private final Drain reportsDrain = new Drain() {
+        boolean step() {
+            return processReport();
+        }
+
+        boolean hasWork() {
+            final Retry retry = retries.peek();
+            return !reports.isEmpty() || ((null != retry) &&
+                    (retry.due <= System.currentTimeMillis()));
+        }
+    };
+
+    // the drain task of the delivery stage.
+    private final Drain deliveryDrain = new Drain() {
+        boolean step() {
+            return deliverDocument();
+        }
+
+        boolean hasWork() {
+            // without a free permit the release signals the task.
+            return !epcisDocs.isEmpty() && ((null == deliveries) ||
+                    (deliveries.availablePermits() > 0));
+        }
+    };
+
+    /**
+     * @return the next retry that is due or null if there is none.
+     */
+    private Retry pollRetry() {
+        Retry retry = retries.peek();
+        if ((null != retry) && (retry.due <= System.currentTimeMillis())) {
+            return retries.poll();
+        }
+        return null;
+    }
+
+    /**
+     * reads an ECReports from a connection and queues it for the handlers.
+     *
+     * @param s        the connection of the ALE.
+     * @param accepted the time the connection has been accepted in ns.
+     * @param shared   true if the report is received on the accept thread
+     *                 (the admission control must not delay it).
+     * @throws Exception when the report could not be read.
+     */
+    private void receive(Socket s, long accepted, boolean shared)
+            throws Exception {
+        receiving.incrementAndGet();
         try {
-            log.debug(String.format("绑定 CaptureApp 到端口 %d", getPort()));
-            ss = new ServerSocket(getPort());
-            up = true;
-            while (execute) {
-                try {
-                    Socket s = ss.accept();
-                    BufferedReader in = new BufferedReader(
-                            new InputStreamReader(s.getInputStream()));
+            StringBuffer buffer = new StringBuffer();
+            try {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(s.getInputStream(), "UTF-8"));
 
-                    String data = in.readLine();
-                    // ignore the HTTP header
-                    data = in.readLine();
-                    data = in.readLine();
-                    data = in.readLine();
+                String data = in.readLine();
+                // ignore the HTTP header
+                data = in.readLine();
+                data = in.readLine();
+                data = in.readLine();
+                data = in.readLine();
+
+                while (null != data) {
+                    buffer.append(data);
                     data = in.readLine();
+                }
+            } finally {
+                s.close();
+            }
+            receive(buffer, s.getInetAddress().getHostAddress(), accepted,
+                    shared);
+        } finally {
+            receiving.decrementAndGet();
+        }
+    }
+
+    /**
+     * deserializes a raw ECReports and queues it for the handlers. this is
+     * the entry point of the shared ingest endpoint (see {@link IngestServlet}),
+     * the listen socket of the capture application uses it as well.
+     *
+     * @param payload the raw ECReports (without HTTP header).
+     * @param source  the address of the ALE.
+     * @return false if the report has been rejected by the admission control.
+     * @throws Exception when the report could not be deserialized.
+     */
+    public boolean receive(CharSequence payload, String source)
+            throws Exception {
+        return receive(payload, source, System.nanoTime(), false);
+    }
+
+    /**
+     * deserializes a raw ECReports and queues it for the handlers.
+     *
+     * @param payload  the raw ECReports (without HTTP header).
+     * @param source   the address of the ALE.
+     * @param accepted the time the report has been accepted in ns (the
+     *                 start of its trace).
+     * @param shared   true if the report is received on a thread shared by
+     *                 all the sources (the admission control rejects
+     *                 instead of delaying the report).
+     * @return false if the report has been rejected by the admission control
+     *         or the capture application is stopping.
+     * @throws Exception when the report could not be deserialized.
+     */
+    private boolean receive(CharSequence payload, String source, long accepted,
+                            boolean shared) throws Exception {
+        // counted before the check, such that stop either sees the report
+        // or the report sees the stop.
+        receiving.incrementAndGet();
+        try {
+            if (!accepting) {
+                statistics.reportsRejected.incrementAndGet();
+                log.warn(String.format("CaptureApp 正在停止, 拒绝报告来自 %s.",
+                        source));
+                return false;
+            }
+            return ingest(payload, source, accepted, shared);
+        } finally {
+            receiving.decrementAndGet();
+        }
+    }
+
+    /**
+     * deserializes a raw ECReports and queues it for the handlers.
+     *
+     * @param payload  the raw ECReports (without HTTP header).
+     * @param source   the address of the ALE.
+     * @param accepted the time the report has been accepted in ns.
+     * @param shared   true if the report is received on a thread shared by
+     *                 all the sources.
+     * @return false if the report has been rejected by the admission control.
+     * @throws Exception when the report could not be deserialized.
+     */
+    private boolean ingest(CharSequence payload, String source, long accepted,
+                           boolean shared) throws Exception {
+        final long arrival = System.currentTimeMillis();
+        final Tracer t = tracer;
+        final Trace trace = (null == t) ? null : t.start(source, accepted);
+        if (null != trace) {
+            trace.mark(Trace.Stage.RECEIVED);
+        }
+        statistics.reportsReceived.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug(payload.toString());
+        }
+
+        // record all the incoming reports, including the rejected ones (the
+        // reports are encoded as UTF-8 regardless of the platform charset).
+        byte[] raw = null;
+        final ReportRecorder r = recorder;
+        if (null != r) {
+            raw = payload.toString().getBytes("UTF-8");
+            r.record(arrival, source, raw);
+        }
 
-                    StringBuffer buffer = new StringBuffer();
-                    while (null != data) {
-                        buffer.append(data);
-                        data = in.readLine();
+        // admission control before the costly deserialization.
+        String spec = null;
+        if (null != admission) {
+            spec = peekSpecName(payload);
+            final boolean admit = shared ? admission.admit(source, spec, 0) :
+                    admission.admit(source, spec);
+            if (!admit) {
+                statistics.reportsRejected.incrementAndGet();
+                log.warn(String.format("拒绝报告 %s 来自 %s.",
+                        spec, source));
+                if (null != trace) {
+                    trace.setSpecName(spec);
+                    trace.setOutcome("rejected");
+                    trace.release();
+                }
+                return false;
+            }
+        }
+
+        // create a stream from the buffer
+        if (null == raw) {
+            raw = payload.toString().getBytes("UTF-8");
+        }
+        InputStream parseStream = new ByteArrayInputStream(raw);
+
+        // parse the string
+        ECReports reports = null;
+        final long start = System.nanoTime();
+        try {
+            reports = DeserializerUtil
+                    .deserializeECReports(parseStream);
+            statistics.parseTime.recordSince(start);
+        } finally {
+            if (null == reports) {
+                statistics.parseFailures.incrementAndGet();
+                if (null != admission) {
+                    admission.release(source, spec);
+                }
+                if (null != trace) {
+                    trace.setOutcome("unparseable");
+                    trace.release();
+                }
+            }
+        }
+        if (null != reports) {
+            if (null != admission) {
+                admitted.put(reports, new String[]{source, spec});
+            }
+            if (null != trace) {
+                trace.mark(Trace.Stage.PARSED);
+                trace.setSpecName(reports.getSpecName());
+                traces.put(reports, trace);
+                trace.mark(Trace.Stage.QUEUED);
+            }
+            handleReports(reports);
+        }
+        return true;
+    }
+
+    public void run() {
+        if ((null == client) && (null == getEpcisRepositoryURL())) {
+            log.error("EPCIS 库参数丢失");
+            throw new RuntimeException("EPCIS 库参数丢失");
+        }
+        if (null == client) {
+            client = new CaptureClient(getEpcisRepositoryURL());
+        }
+        if (virtualThreads && (null == ioExecutor)) {
+            ioExecutor = VirtualThreads.newThreadPerTaskExecutor();
+            deliveries = new Semaphore(Math.max(1, deliveryConcurrency));
+        }
+        if ((handlerTimeout > 0) && (null == handlerExecutor)) {
+            if (virtualThreads) {
+                handlerExecutor = VirtualThreads.newThreadPerTaskExecutor();
+            } else {
+                handlerExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "CaptureApp-handler");
+                        t.setDaemon(true);
+                        return t;
                     }
-                    log.debug(buffer.toString());
+                });
+            }
+        }
+
+        reports.setWaitHistogram(statistics.queueWait);
+        epcisDocs.setWaitHistogram(statistics.deliveryWait);
+        if (null != snapshot) {
+            restoreSnapshot();
+        }
+        started = true;
+        if (null == scheduler) {
+            startWorkers();
+        } else {
+            // work queued before the start.
+            reportsDrain.signal();
+            deliveryDrain.signal();
+        }
 
-                    // create a stream from the buffer
-                    InputStream parseStream = new ByteArrayInputStream(
-                            buffer.toString().getBytes());
+        if (getPort() < 0) {
+            // reports are received through the shared ingest endpoint.
+            log.debug("CaptureApp 没有监听端口, 使用共享入口.");
+            up = true;
+            return;
+        }
 
-                    // parse the string
-                    ECReports reports = DeserializerUtil
-                            .deserializeECReports(parseStream);
-                    if (null != reports) {
-                        handleReports(reports);
+        try {
+            log.debug(String.format("绑定 CaptureApp 到端口 %d", getPort()));
+            ss = new ServerSocket(getPort());
+            up = true;
+            while (execute && accepting) {
+                try {
+                    final Socket s = ss.accept();
+                    final long accepted = System.nanoTime();
+                    if (null == ioExecutor) {
+                        receive(s, accepted, true);
+                    } else {
+                        // one task per connection.
+                        ioExecutor.execute(new Runnable() {
+                            public void run() {
+                                try {
+                                    receive(s, accepted, false);
+                                } catch (Exception e) {
+                                    log.error(String.format("不能接收报告: %s",
+                                            e.getMessage()));
+                                }
+                            }
+                        });
                     }
                 } catch (Exception e) {
+                    if (!accepting) {
+                        // the listen socket has been closed by stop.
+                        break;
+                    }
                     log.error(String.format("不能接收报告: %s",
                             e.getMessage()));
                 }
@@ -271,7 +1693,6 @@ public class CaptureApp implements Runnable {
                     bindException.getMessage()));
         }
         ss = null;
-        execute = false;
         up = false;
     }
 
@@ -304,6 +1725,238 @@ public class CaptureApp implements Runnable {
         return epcisRepositoryURL;
     }
 
+    /**
+     * @param handlerTimeout the deadline of one handler execution in ms
+     *                       (0 = no deadline).
+     */
+    public void setHandlerTimeout(long handlerTimeout) {
+        this.handlerTimeout = handlerTimeout;
+    }
+
+    /**
+     * @return the deadline of one handler execution in ms (0 = no deadline).
+     */
+    public long getHandlerTimeout() {
+        return handlerTimeout;
+    }
+
+    /**
+     * @param maxRetries the number of retries of a timed out or failed
+     *                   handler execution before the reports are
+     *                   dead-lettered.
+     */
+    public void setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * @return the number of retries of a timed out or failed handler
+     *         execution.
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param retryDelay the delay before a timed out or failed handler
+     *                   execution is retried in ms.
+     */
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = Math.max(1, retryDelay);
+    }
+
+    /**
+     * @return the delay before a timed out or failed handler execution is
+     *         retried in ms.
+     */
+    public long getRetryDelay() {
+        return retryDelay;
+    }
+
+    /**
+     * @param deadLetterCapacity the number of reports kept in the dead-letter
+     *                           queue.
+     */
+    public void setDeadLetterCapacity(int deadLetterCapacity) {
+        this.deadLetterCapacity = deadLetterCapacity;
+    }
+
+    /**
+     * @return the reports that could not be handled within the deadline or
+     *         whose handler failed (oldest first).
+     */
+    public List<DeadLetter> getDeadLetters() {
+        return new ArrayList<DeadLetter>(deadLetters);
+    }
+
+    /**
+     * @return the number of dead letters dropped because the dead-letter
+     *         queue was full.
+     */
+    public long getDeadLettersDropped() {
+        return deadLettersDropped.get();
+    }
+
+    /**
+     * @return the statistics of the pipeline.
+     */
+    public CaptureAppStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @return the number of reports waiting for the handlers.
+     */
+    public int getReportsQueueDepth() {
+        return reports.size();
+    }
+
+    /**
+     * @return the number of EPCIS documents waiting for delivery.
+     */
+    public int getDocumentsQueueDepth() {
+        return epcisDocs.size();
+    }
+
+    /**
+     * @return the number of handler executions exceeding the deadline.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the number of reports put into the dead-letter queue.
+     */
+    public long getDeadLettered() {
+        return deadLettered.get();
+    }
+
+    /**
+     * @return the number of reports, retries and EPCIS documents left over
+     *         by a stop.
+     */
+    public long getLeftOver() {
+        return leftOver.get();
+    }
+
+    /**
+     * runs every incoming connection and every capture request on its own
+     * virtual thread. runtimes without virtual threads (before Java 21) stay
+     * in platform mode. must be set before the capture application is
+     * started.
+     *
+     * @param virtualThreads true to enable the virtual thread mode.
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        if (virtualThreads && !VirtualThreads.isAvailable()) {
+            log.error("运行环境不支持虚拟线程 (需要 Java 21), 使用平台线程.");
+            this.virtualThreads = false;
+            return;
+        }
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * @return true if the virtual thread mode is enabled.
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * @param deliveryConcurrency the maximum number of outstanding capture
+     *                            requests in virtual thread mode.
+     */
+    public void setDeliveryConcurrency(int deliveryConcurrency) {
+        this.deliveryConcurrency = deliveryConcurrency;
+    }
+
+    /**
+     * runs the rule and delivery stages on a shared scheduler instead of two
+     * dedicated threads. must be set before the capture application is
+     * started.
+     *
+     * @param scheduler the shared scheduler (null for dedicated threads).
+     */
+    public void setScheduler(SharedScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the shared scheduler or null if the stages run on dedicated
+     *         threads.
+     */
+    public SharedScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * @param admission the admission control of the incoming reports (null
+     *                  admits all the reports).
+     */
+    public void setAdmissionControl(AdmissionControl admission) {
+        this.admission = admission;
+    }
+
+    /**
+     * @return the admission control of the incoming reports (may be null).
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admission;
+    }
+
+    /**
+     * @param recorder records the raw incoming reports (null = off).
+     */
+    public void setRecorder(ReportRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * @return the recorder of the raw incoming reports (may be null).
+     */
+    public ReportRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * sets the snapshot of the state of the filters and handlers. the state
+     * is restored when the capture application starts, saved periodically
+     * and when it stops.<br/>
+     * <strong>NOTICE:</strong> must be set before the capture application
+     * is started.
+     *
+     * @param snapshot the snapshot (null = off).
+     * @param interval the interval between the periodic snapshots in ms
+     *                 (0 = only on stop).
+     */
+    public void setSnapshot(StateSnapshot snapshot, long interval) {
+        this.snapshot = snapshot;
+        this.snapshotInterval = interval;
+    }
+
+    /**
+     * @return the snapshot of the state (may be null).
+     */
+    public StateSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @param tracer traces the reports through the pipeline (null = off).
+     */
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    /**
+     * @return the tracer of the reports (may be null).
+     */
+    public Tracer getTracer() {
+        return tracer;
+    }
+
     /**
      * starts the CaptureApp in event sink mode (means no relay to EPCIS).
      *
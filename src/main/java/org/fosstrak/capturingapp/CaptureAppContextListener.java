@@ -0,0 +1,20 @@
+package org.fosstrak.capturingapp;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+/**
+ * stops the capture applications when the web application is shut down or
+ * redeployed, such that the capture applications write their final
+ * snapshots (see {@link CaptureAppPortTypeImpl#shutdown()}).
+ */
+public class CaptureAppContextListener implements ServletContextListener {
+
+    public void contextInitialized(ServletContextEvent event) {
+        // the capture applications are created by the web service.
+    }
+
+    public void contextDestroyed(ServletContextEvent event) {
+        CaptureAppPortTypeImpl.shutdown();
+    }
+}
@@ -1,13 +1,26 @@
 package org.fosstrak.capturingapp;
 
 import org.apache.log4j.Logger;
+import org.fosstrak.capturingapp.util.AdmissionControl;
 import org.fosstrak.capturingapp.util.CaptureAppWorker;
-import org.fosstrak.capturingapp.wsdl.ArrayOfString;
-import org.fosstrak.capturingapp.wsdl.CaptureAppPortType;
-import org.fosstrak.capturingapp.wsdl.EmptyParms;
-
+import org.fosstrak.capturingapp.util.CircuitBreaker;
+import org.fosstrak.capturingapp.util.QueryClients;
+import org.fosstrak.capturingapp.util.ReportRecorder;
+import org.fosstrak.capturingapp.util.RoutingTable;
+import org.fosstrak.capturingapp.util.SharedScheduler;
+import org.fosstrak.capturingapp.util.SightingStore;
+import org.fosstrak.capturingapp.util.StateSnapshot;
+import org.fosstrak.capturingapp.util.Tracer;
+import org.fosstrak.capturingapp.wsdl.*;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
@@ -16,10 +29,12 @@ import java.util.concurrent.Future;
 
 /**
  * entry point for the Fosstrak capturing application service. the service has been
- * implemented as a fully blown WS-service. Therefore if someone likes to
- * implement the service with an interface providing creation, deletion and
- * modification of capture applications, feel free to go ahead...<br/>
- * The service currently exports the names of the capture applications.
+ * implemented as a fully blown WS-service. The service exports the names of
+ * the capture applications and allows to create, stop, remove and
+ * reconfigure capture applications at runtime. The configuration of a
+ * capture application consists of the parameters of
+ * <code>captureapplication.properties</code> without the prefix
+ * <code>cap.N.</code>.
  */
 public class CaptureAppPortTypeImpl implements CaptureAppPortType {
 
@@ -27,9 +42,24 @@ public class CaptureAppPortTypeImpl implements CaptureAppPortType {
     private static ExecutorService pool = java.util.concurrent.
             Executors.newCachedThreadPool();
 
+    // the scheduler shared by the capture applications (null = dedicated threads).
+    private static SharedScheduler scheduler = null;
+
+    // the directory of the snapshots (null = no snapshots).
+    private static File snapshotDir = null;
+
+    // the interval between the periodic snapshots in ms.
+    private static long snapshotInterval = StateSnapshot.DEFAULT_INTERVAL;
+
+    // the snapshot of the sighting store (null = off).
+    private static StateSnapshot sightingsSnapshot = null;
+
     // a hash map maintaining the different capture applications.
     private static Map<String, CaptureAppWorker> captureApps = new ConcurrentHashMap<String, CaptureAppWorker>();
 
+    // the configurations of the capture applications.
+    private static Map<String, Properties> configs = new ConcurrentHashMap<String, Properties>();
+
     // logger.
     private static final Logger log = Logger.getLogger(CaptureAppPortTypeImpl.class);
 
@@ -44,6 +74,11 @@ public class CaptureAppPortTypeImpl implements CaptureAppPortType {
     public static final String DEFAULT_HANDLER_CLASS_NAME =
             "org.fosstrak.capturingapp.DefaultECReportHandler";
 
+    /**
+     * the default number of sightings remembered by the de-duplication.
+     */
+    public static final String DEFAULT_DEDUP_CAPACITY = "65536";
+
     // flag whether the capture app is initialized or not.
     private static boolean initialized = false;
 
@@ -89,57 +124,62 @@ public class CaptureAppPortTypeImpl implements CaptureAppPortType {
                             CONFIG_FILE));
 
             final int n = Integer.parseInt(props.getProperty("n"));
-            // create capture apps for all the configurations...
-            for (int i = 0; i < n; i++) {
-
-                final int port = Integer.parseInt(
-                        props.getProperty("cap." + i + ".port", "-1"));
 
-                final String name = props.getProperty(
-                        "cap." + i + ".name", "cap." + i + ".name");
-
-                final String epcis = props.getProperty(
-                        "cap." + i + ".epcis", "tcp://localhost:1234");
-
-                final String changeSet = props.getProperty(
-                        "cap." + i + ".changeset", null);
-
-                String handlerClzzName = props.getProperty(
-                        "cap." + i + ".handler", null);
-
-                log.info(String.format("创建新的 CaptureApp: (%s,%d,%s)",
-                        name, port, epcis));
-                captureApps.put(name, new CaptureAppWorker(
-                        name,
-                        new org.fosstrak.capturingapp.CaptureApp(port,
-                                epcis)));
-
-                if (null == handlerClzzName) {
-                    handlerClzzName = DEFAULT_HANDLER_CLASS_NAME;
+            CircuitBreaker.configure(
+                    Integer.parseInt(props.getProperty("circuit.failures",
+                            String.valueOf(CircuitBreaker.DEFAULT_FAILURE_THRESHOLD))),
+                    Long.parseLong(props.getProperty("circuit.open",
+                            String.valueOf(CircuitBreaker.DEFAULT_OPEN_TIME))));
+            QueryClients.configure(Long.parseLong(props.getProperty(
+                    "query.timeout",
+                    String.valueOf(QueryClients.DEFAULT_TIMEOUT))));
+
+            SightingStore.configure(
+                    Integer.parseInt(props.getProperty("sightings.capacity",
+                            "0")),
+                    Long.parseLong(props.getProperty("sightings.ttl",
+                            String.valueOf(SightingStore.DEFAULT_TTL))));
+
+            final String dir = props.getProperty("snapshot.dir", null);
+            if (null != dir) {
+                snapshotDir = new File(dir);
+                snapshotInterval = Long.parseLong(props.getProperty(
+                        "snapshot.interval",
+                        String.valueOf(StateSnapshot.DEFAULT_INTERVAL)));
+                log.info(String.format("快照: %s (%d ms)", snapshotDir,
+                        snapshotInterval));
+                if (null != SightingStore.getInstance()) {
+                    sightingsSnapshot = new StateSnapshot(new File(snapshotDir,
+                            "sightings" + StateSnapshot.SUFFIX));
+                    sightingsSnapshot.register("sightings",
+                            SightingStore.getInstance());
+                    sightingsSnapshot.restore();
+                    sightingsSnapshot.start(snapshotInterval);
                 }
-                log.info("处理类: " + handlerClzzName);
+            }
 
+            final int schedulerThreads = Integer.parseInt(props.getProperty(
+                    "scheduler.threads", "0"));
+            if (schedulerThreads > 0) {
+                scheduler = new SharedScheduler(schedulerThreads,
+                        Integer.parseInt(props.getProperty("scheduler.quota",
+                                String.valueOf(SharedScheduler.DEFAULT_QUOTA))));
+            }
+
+            // create capture apps for all the configurations...
+            for (int i = 0; i < n; i++) {
+                final Properties config = configOf(props, "cap." + i + ".");
+                final String name = config.getProperty(
+                        "name", "cap." + i + ".name");
                 try {
-                    Class cls = Class.forName(handlerClzzName);
-                    Object obj = null;
-                    if (null == changeSet) {
-                        obj = cls.newInstance();
-                    } else {
-                        log.debug(String.format("变更集: %s", changeSet));
-                        Constructor ctor = cls.getConstructor(String.class);
-                        obj = ctor.newInstance(changeSet);
-                    }
-
-                    if (obj instanceof ECReportsHandler) {
-                        captureApps.get(name).getCaptureApp().
-                                registerHandler((ECReportsHandler) obj);
-
-                    } else {
-                        throw new Exception("无效类型: " + obj.getClass());
-                    }
-                } catch (Exception e) {
-                    log.error("无法创建处理句柄: " + e.getMessage());
+                    captureApps.put(name, createCaptureApp(name, config));
+                } catch (IllegalArgumentException e) {
+                    log.error(String.format("忽略 CaptureApp %s: %s", name,
+                            e.getMessage()));
+                    continue;
                 }
+                configs.put(name, config);
+                registerStatistics(name);
             }
 
             // start the capture apps
@@ -161,6 +201,248 @@ public class CaptureAppPortTypeImpl implements CaptureAppPortType {
         initialized = true;
     }
 
+    /**
+     * creates a capture application (without starting it).
+     *
+     * @param name   the name of the capture application.
+     * @param config the configuration of the capture application: the
+     *               parameters of <code>captureapplication.properties</code>
+     *               without the prefix <code>cap.N.</code>.
+     * @return the worker of the capture application.
+     * @throws IllegalArgumentException when the handler could not be created.
+     */
+    private static CaptureAppWorker createCaptureApp(String name,
+                                                     Properties config) {
+        final int port = Integer.parseInt(
+                config.getProperty("port", "-1"));
+
+        final String epcis = config.getProperty(
+                "epcis", "tcp://localhost:1234");
+
+        final String changeSet = config.getProperty(
+                "changeset", null);
+
+        String handlerClzzName = config.getProperty(
+                "handler", null);
+
+        log.info(String.format("创建新的 CaptureApp: (%s,%d,%s)",
+                name, port, epcis));
+        final CaptureAppWorker worker = new CaptureAppWorker(
+                name,
+                new org.fosstrak.capturingapp.CaptureApp(port,
+                        epcis));
+
+        if (null == handlerClzzName) {
+            handlerClzzName = DEFAULT_HANDLER_CLASS_NAME;
+        }
+        log.info("处理类: " + handlerClzzName);
+
+        try {
+            Class cls = Class.forName(handlerClzzName);
+            Object obj = null;
+            if (null == changeSet) {
+                obj = cls.newInstance();
+            } else {
+                log.debug(String.format("变更集: %s", changeSet));
+                Constructor ctor = cls.getConstructor(String.class);
+                obj = ctor.newInstance(changeSet);
+            }
+
+            if (obj instanceof ECReportsHandler) {
+                ECReportsHandler handler = (ECReportsHandler) obj;
+                final String routing = config.getProperty(
+                        "routing", null);
+                if ("auto".equalsIgnoreCase(routing)) {
+                    handler.setRoutingTable(handler.deriveRoutingTable());
+                } else if (null != routing) {
+                    handler.setRoutingTable(RoutingTable.parse(
+                            routing, config.getProperty(
+                            "routing.reports", null)));
+                }
+                log.info("路由表: " + handler.getRoutingTable());
+                worker.getCaptureApp().
+                        registerHandler(handler);
+
+            } else {
+                throw new Exception("无效类型: " + obj.getClass());
+            }
+        } catch (Exception e) {
+            // fail before the capture application is used (or replaces
+            // the current one).
+            throw new IllegalArgumentException(
+                    "无法创建处理句柄: " + e.getMessage(), e);
+        }
+
+        worker.getCaptureApp().setScheduler(scheduler);
+        if ("virtual".equalsIgnoreCase(config.getProperty(
+                "threads", "platform"))) {
+            worker.getCaptureApp().setVirtualThreads(true);
+            worker.getCaptureApp().setDeliveryConcurrency(
+                    Integer.parseInt(config.getProperty(
+                            "delivery.concurrency", "256")));
+        }
+
+        final int lanes = Integer.parseInt(config.getProperty(
+                "lanes", "0"));
+        for (int j = 0; j < lanes; j++) {
+            final String prefix = "lane." + j + ".";
+            final int weight = Integer.parseInt(config.getProperty(
+                    prefix + "weight", "1"));
+            final List<String> specs = split(config.getProperty(
+                    prefix + "specs", null));
+            final List<String> readers = split(config.getProperty(
+                    prefix + "readers", null));
+            log.info(String.format("通道 %d: 权重 %d, specs=%s, readers=%s",
+                    j, weight, specs, readers));
+            worker.getCaptureApp().addLane(
+                    weight, specs, readers);
+        }
+
+        final String admission = "admission.";
+        final double sourceRate = Double.parseDouble(config.getProperty(
+                admission + "source.rate", "0"));
+        final int sourceConcurrency = Integer.parseInt(config.getProperty(
+                admission + "source.concurrency", "0"));
+        final double specRate = Double.parseDouble(config.getProperty(
+                admission + "spec.rate", "0"));
+        final int specConcurrency = Integer.parseInt(config.getProperty(
+                admission + "spec.concurrency", "0"));
+        if ((sourceRate > 0) || (sourceConcurrency > 0) ||
+                (specRate > 0) || (specConcurrency > 0)) {
+            AdmissionControl ac = new AdmissionControl();
+            ac.setSourceLimits(sourceRate, Integer.parseInt(
+                    config.getProperty(admission + "source.burst", "1")),
+                    sourceConcurrency);
+            ac.setSpecLimits(specRate, Integer.parseInt(
+                    config.getProperty(admission + "spec.burst", "1")),
+                    specConcurrency);
+            ac.setMaxDelay(Long.parseLong(config.getProperty(
+                    admission + "delay", "0")));
+            if ((ac.getMaxDelay() > 0) && (worker.getCaptureApp().getPort() >= 0)
+                    && !worker.getCaptureApp().isVirtualThreads()) {
+                log.warn("准入延迟不适用于监听端口的接收线程, 超限的报告立即被拒绝.");
+            }
+            log.info(String.format("准入控制: source=%.1f/s (%d), spec=%.1f/s (%d)",
+                    sourceRate, sourceConcurrency, specRate, specConcurrency));
+            worker.getCaptureApp().setAdmissionControl(ac);
+        }
+
+        final CaptureApp cap = worker.getCaptureApp();
+        cap.setMaxRetries(Integer.parseInt(config.getProperty(
+                "retries", String.valueOf(CaptureApp.DEFAULT_MAX_RETRIES))));
+        cap.setRetryDelay(Long.parseLong(config.getProperty(
+                "retry.delay", String.valueOf(CaptureApp.DEFAULT_RETRY_DELAY))));
+        cap.setDeadLetterCapacity(Integer.parseInt(config.getProperty(
+                "deadletters", "100")));
+        final long timeout = Long.parseLong(config.getProperty(
+                "timeout", "0"));
+        if (timeout > 0) {
+            cap.setHandlerTimeout(timeout);
+            log.info(String.format("处理期限: %d ms", timeout));
+        }
+        log.info(String.format("重试: %d 次, 间隔 %d ms",
+                cap.getMaxRetries(), cap.getRetryDelay()));
+
+        final String deltaReports = config.getProperty(
+                "delta.reports", null);
+        if (null != deltaReports) {
+            log.info("增量报告: " + deltaReports);
+            worker.getCaptureApp().registerFilter(
+                    new DeltaFilter(Arrays.asList(
+                            deltaReports.trim().split("\\s*,\\s*"))));
+        }
+
+        final long dedupWindow = Long.parseLong(config.getProperty(
+                "dedup.window", "0"));
+        if (dedupWindow > 0) {
+            final int dedupCapacity = Integer.parseInt(
+                    config.getProperty("dedup.capacity",
+                            DEFAULT_DEDUP_CAPACITY));
+            log.info(String.format("去重窗口: %d ms (%d)",
+                    dedupWindow, dedupCapacity));
+            worker.getCaptureApp().registerFilter(
+                    new DeduplicationFilter(dedupCapacity, dedupWindow));
+        }
+
+        final String recordDir = config.getProperty("record.dir", null);
+        if (null != recordDir) {
+            final ReportRecorder recorder = new ReportRecorder(
+                    new File(recordDir), name,
+                    Long.parseLong(config.getProperty("record.size", "64"))
+                            * 1024 * 1024,
+                    Integer.parseInt(config.getProperty("record.files",
+                            String.valueOf(ReportRecorder.DEFAULT_FILES))));
+            log.info("录制报告: " + recorder);
+            worker.getCaptureApp().setRecorder(recorder);
+        }
+
+        if (null != snapshotDir) {
+            worker.getCaptureApp().setSnapshot(new StateSnapshot(
+                    new File(snapshotDir, "cap-" + name + StateSnapshot.SUFFIX)),
+                    snapshotInterval);
+        }
+
+        final double traceSample = Double.parseDouble(config.getProperty(
+                "trace.sample", "0"));
+        final long traceSlow = Long.parseLong(config.getProperty(
+                "trace.slow", "0"));
+        if ((traceSample > 0) || (traceSlow > 0)) {
+            final Tracer tracer = new Tracer(name, traceSample, traceSlow);
+            log.info("跟踪报告: " + tracer);
+            worker.getCaptureApp().setTracer(tracer);
+        }
+
+        return worker;
+    }
+
+    /**
+     * extracts the parameters with a prefix.
+     *
+     * @param props  the properties.
+     * @param prefix the prefix.
+     * @return the parameters without the prefix.
+     */
+    private static Properties configOf(Properties props, String prefix) {
+        Properties config = new Properties();
+        for (String key : props.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                config.setProperty(key.substring(prefix.length()),
+                        props.getProperty(key));
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @param list a comma separated list.
+     * @return the values of the list or null if the list is empty.
+     */
+    private static List<String> split(String list) {
+        if ((null == list) || (0 == list.trim().length())) {
+            return null;
+        }
+        return Arrays.asList(list.trim().split("\\s*,\\s*"));
+    }
+
+    /**
+     * looks up a capture application by name.
+     *
+     * @param name the name of the capture application.
+     * @return the capture application or null if there is none.
+     */
+    public static CaptureApp getCaptureApp(String name) {
+        final CaptureAppWorker worker = captureApps.get(name);
+        return (null == worker) ? null : worker.getCaptureApp();
+    }
+
+    /**
+     * @return the scheduler shared by the capture applications or null if
+     *         every capture application runs dedicated threads.
+     */
+    public static SharedScheduler getScheduler() {
+        return scheduler;
+    }
+
     // --------- \\ WS definition
 
     /* (non-Javadoc)
@@ -174,6 +456,313 @@ public class CaptureAppPortTypeImpl implements CaptureAppPortType {
         return aos;
     }
 
+    /**
+     * creates and starts a new capture application.
+     *
+     * @param config the configuration of the capture application.
+     * @return the names of the capture applications.
+     * @throws IllegalArgumentException when the name is already in use or
+     *                                  the handler could not be created.
+     */
+    public ArrayOfString createCaptureApp(CaptureAppConfig config) {
+        final String name = config.getName();
+        final Properties props = toProperties(config);
+        synchronized (captureApps) {
+            if (captureApps.containsKey(name)) {
+                throw new IllegalArgumentException("CaptureApp 已经存在: " + name);
+            }
+            final CaptureAppWorker worker = createCaptureApp(name, props);
+            captureApps.put(name, worker);
+            configs.put(name, props);
+            registerStatistics(name);
+            log.info(String.format("开启 CaptureApp: %s", name));
+            worker.start();
+        }
+        return getCaptureAppNames(null);
+    }
+
+    /**
+     * stops a capture application. the capture application keeps its
+     * configuration and can be restarted with a reconfiguration.
+     *
+     * @param name the name of the capture application.
+     * @return the names of the capture applications.
+     * @throws IllegalArgumentException when there is no such capture application.
+     */
+    public ArrayOfString stopCaptureApp(CaptureAppName name) {
+        synchronized (captureApps) {
+            final CaptureAppWorker worker = lookup(name.getName());
+            log.info(String.format("停止 CaptureApp: %s", name.getName()));
+            worker.stop();
+        }
+        return getCaptureAppNames(null);
+    }
+
+    /**
+     * stops and removes a capture application.
+     *
+     * @param name the name of the capture application.
+     * @return the names of the capture applications.
+     * @throws IllegalArgumentException when there is no such capture application.
+     */
+    public ArrayOfString removeCaptureApp(CaptureAppName name) {
+        synchronized (captureApps) {
+            final CaptureAppWorker worker = lookup(name.getName());
+            log.info(String.format("删除 CaptureApp: %s", name.getName()));
+            if (worker.getCaptureApp().isExecuting()) {
+                worker.stop();
+            }
+            unregisterStatistics(name.getName());
+            captureApps.remove(name.getName());
+            configs.remove(name.getName());
+        }
+        return getCaptureAppNames(null);
+    }
+
+    /**
+     * reconfigures a capture application. the given parameters replace the
+     * ones of the current configuration, the other parameters are kept. a new
+     * capture application is created with the merged configuration first, if
+     * this fails the current one keeps running. the current one is then
+     * stopped gracefully (see {@link CaptureApp#stopCaptureApp(long, boolean)}): it
+     * rejects new reports, the reports and EPCIS documents in process are
+     * completed and the queued ones are handed over to the new capture
+     * application, which is started afterwards. reports arriving during the
+     * handover are rejected (503 on the ingest endpoint). the other capture
+     * applications are not affected.
+     *
+     * @param config the changed parameters of the capture application.
+     * @return the names of the capture applications.
+     * @throws IllegalArgumentException when there is no such capture
+     *                                  application or the handler of the new
+     *                                  configuration could not be created.
+     */
+    public ArrayOfString reconfigureCaptureApp(CaptureAppConfig config) {
+        final String name = config.getName();
+        synchronized (captureApps) {
+            final CaptureAppWorker old = lookup(name);
+            final Properties props = new Properties();
+            props.putAll(configs.get(name));
+            props.putAll(toProperties(config));
+
+            // throws before the current capture application is touched.
+            final CaptureAppWorker worker = createCaptureApp(name, props);
+            log.info(String.format("重新配置 CaptureApp: %s", name));
+            if (old.getCaptureApp().isExecuting()) {
+                // the queued items are handed over.
+                old.stop(false);
+            }
+            final int moved = old.getCaptureApp().transferTo(
+                    worker.getCaptureApp());
+            log.debug(String.format("转移 %d 个排队的项.", moved));
+
+            unregisterStatistics(name);
+            captureApps.put(name, worker);
+            configs.put(name, props);
+            registerStatistics(name);
+            worker.start();
+        }
+        return getCaptureAppNames(null);
+    }
+
+    /**
+     * returns the statistics of a capture application.
+     *
+     * @param name the name of the capture application.
+     * @return the statistics as <code>name=value</code> strings.
+     * @throws IllegalArgumentException when there is no such capture application.
+     */
+    public ArrayOfString getStatistics(CaptureAppName name) {
+        final CaptureAppWorker worker = lookup(name.getName());
+        ArrayOfString aos = new ArrayOfString();
+        for (Map.Entry<String, String> e : worker.getCaptureApp()
+                .getStatistics().getStatistics().entrySet()) {
+            aos.getString().add(e.getKey() + "=" + e.getValue());
+        }
+        return aos;
+    }
+
+    /**
+     * returns the dead letters of a capture application: the reports whose
+     * handler failed for good.
+     *
+     * @param name the name of the capture application.
+     * @return the dead letters, oldest first.
+     * @throws IllegalArgumentException when there is no such capture application.
+     */
+    public ArrayOfString getDeadLetters(CaptureAppName name) {
+        final CaptureAppWorker worker = lookup(name.getName());
+        ArrayOfString aos = new ArrayOfString();
+        for (CaptureApp.DeadLetter d : worker.getCaptureApp().getDeadLetters()) {
+            aos.getString().add(d.toString());
+        }
+        return aos;
+    }
+
+    /**
+     * hands the dead letters of a capture application to the handlers again.
+     *
+     * @param name the name of the capture application.
+     * @return the replayed dead letters.
+     * @throws IllegalArgumentException when there is no such capture application.
+     * @throws IllegalStateException    when the capture application is stopped.
+     */
+    public ArrayOfString replayDeadLetters(CaptureAppName name) {
+        final CaptureAppWorker worker = lookup(name.getName());
+        if (!worker.getCaptureApp().isExecuting()) {
+            throw new IllegalStateException("CaptureApp 已停止: " +
+                    name.getName());
+        }
+        log.info(String.format("重放死信: %s", name.getName()));
+        ArrayOfString aos = new ArrayOfString();
+        for (CaptureApp.DeadLetter d :
+                worker.getCaptureApp().replayDeadLetters()) {
+            aos.getString().add(d.toString());
+        }
+        return aos;
+    }
+
+    /**
+     * returns the recent history of EPCs kept by the sighting store.
+     *
+     * @param epcs the EPCs.
+     * @return the history of the known EPCs (unknown EPCs are omitted).
+     * @throws IllegalStateException when the sighting store is off.
+     */
+    public ArrayOfSighting getSightings(ArrayOfString epcs) {
+        final SightingStore store = SightingStore.getInstance();
+        if (null == store) {
+            throw new IllegalStateException("没有启用目击存储.");
+        }
+        final long now = System.currentTimeMillis();
+        ArrayOfSighting aos = new ArrayOfSighting();
+        for (String epc : epcs.getString()) {
+            final SightingStore.Sighting s = store.get(epc, now);
+            if (null == s) {
+                continue;
+            }
+            Sighting sighting = new Sighting();
+            sighting.setEpc(epc);
+            sighting.setReader(s.getReader());
+            sighting.setSpecName(s.getSpecName());
+            if (0 != s.getSeen()) {
+                sighting.setSeen(s.getSeen());
+            }
+            sighting.setBizStep(s.getBizStep());
+            sighting.setDisposition(s.getDisposition());
+            sighting.setReadPoint(s.getReadPoint());
+            sighting.setBizLocation(s.getBizLocation());
+            if (s.isCaptured()) {
+                sighting.setEventTime(s.getEventTime());
+            }
+            aos.getSighting().add(sighting);
+        }
+        return aos;
+    }
+
+    /**
+     * stops all the capture applications, writes the final snapshots and
+     * stops the shared scheduler and the thread pool, such that no thread
+     * of the web application survives a redeployment. called when the web
+     * application is shut down or redeployed (see
+     * {@link CaptureAppContextListener}).
+     */
+    public static void shutdown() {
+        log.info("关闭所有 CaptureApp");
+        synchronized (captureApps) {
+            for (CaptureAppWorker worker : captureApps.values()) {
+                if (worker.getCaptureApp().isExecuting()) {
+                    worker.stop();
+                }
+            }
+        }
+        if (null != sightingsSnapshot) {
+            sightingsSnapshot.stop();
+        }
+        // the capture applications are stopped, their drain tasks are done.
+        if (null != scheduler) {
+            scheduler.shutdown();
+        }
+        pool.shutdownNow();
+    }
+
+    /**
+     * @param name the name of a capture application.
+     * @return the JMX name of the statistics of the capture application.
+     * @throws Exception when the name is invalid.
+     */
+    private static ObjectName statisticsName(String name) throws Exception {
+        return new ObjectName("org.fosstrak.capturingapp:type=CaptureApp,name=" +
+                ObjectName.quote(name));
+    }
+
+    /**
+     * registers the statistics of a capture application as MBean.
+     *
+     * @param name the name of the capture application.
+     */
+    private static void registerStatistics(String name) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName on = statisticsName(name);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+            server.registerMBean(captureApps.get(name).getCaptureApp()
+                    .getStatistics(), on);
+        } catch (Exception e) {
+            log.error("不能注册 MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * unregisters the statistics of a capture application.
+     *
+     * @param name the name of the capture application.
+     */
+    private static void unregisterStatistics(String name) {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName on = statisticsName(name);
+            if (server.isRegistered(on)) {
+                server.unregisterMBean(on);
+            }
+        } catch (Exception e) {
+            log.error("不能注销 MBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @param name the name of a capture application.
+     * @return the worker of the capture application.
+     * @throws IllegalArgumentException when there is no such capture application.
+     */
+    private static CaptureAppWorker lookup(String name) {
+        final CaptureAppWorker worker = captureApps.get(name);
+        if (null == worker) {
+            throw new IllegalArgumentException("未知的 CaptureApp: " + name);
+        }
+        return worker;
+    }
+
+    /**
+     * @param config the configuration from the WS.
+     * @return the configuration as properties.
+     */
+    private static Properties toProperties(CaptureAppConfig config) {
+        if ((null == config.getName()) || (0 == config.getName().length())) {
+            throw new IllegalArgumentException("缺少 CaptureApp 名称");
+        }
+        Properties props = new Properties();
+        for (Property p : config.getProperty()) {
+            if ((null != p.getName()) && (null != p.getValue())) {
+                props.setProperty(p.getName(), p.getValue());
+            }
+        }
+        props.setProperty("name", config.getName());
+        return props;
+    }
+
     // --------- \\ end of WS definition
 
     protected void finalize() throws Throwable {
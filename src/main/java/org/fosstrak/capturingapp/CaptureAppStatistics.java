@@ -0,0 +1,282 @@
+package org.fosstrak.capturingapp;
+
+import org.fosstrak.capturingapp.util.AdmissionControl;
+import org.fosstrak.capturingapp.util.LatencyHistogram;
+import org.fosstrak.capturingapp.util.SharedScheduler;
+import org.fosstrak.capturingapp.util.SightingStore;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * statistics of the pipeline of a capture application: counters of the
+ * received, dropped and produced items, the HTTP status codes of the
+ * capture requests, the counters of the admission control by source and
+ * spec name, the load of the shared scheduler, the depths of the queues and latency histograms of the
+ * stages (deserialization, queue wait, rules per handler, delivery wait and
+ * capture). All the values are recorded with atomic counters, so recording
+ * does not block the pipeline. The statistics are registered as MBean and
+ * exported by the web service operation <code>getStatistics</code>.
+ */
+public class CaptureAppStatistics implements CaptureAppStatisticsMBean {
+
+    // the capture application.
+    private final CaptureApp captureApp;
+
+    // counters.
+    final AtomicLong reportsReceived = new AtomicLong();
+    final AtomicLong reportsRejected = new AtomicLong();
+    final AtomicLong parseFailures = new AtomicLong();
+    final AtomicLong reportsDropped = new AtomicLong();
+    final AtomicLong documentsProduced = new AtomicLong();
+    final AtomicLong handlerFailures = new AtomicLong();
+    final AtomicLong capturesSucceeded = new AtomicLong();
+    final AtomicLong capturesFailed = new AtomicLong();
+
+    // the HTTP status codes of the capture requests.
+    private final ConcurrentHashMap<Integer, AtomicLong> statusCodes =
+            new ConcurrentHashMap<Integer, AtomicLong>();
+
+    // histograms.
+    final LatencyHistogram parseTime = new LatencyHistogram();
+    final LatencyHistogram queueWait = new LatencyHistogram();
+    final LatencyHistogram ruleTime = new LatencyHistogram();
+    final LatencyHistogram deliveryWait = new LatencyHistogram();
+    final LatencyHistogram captureLatency = new LatencyHistogram();
+
+    // the rule time by handler.
+    private final ConcurrentHashMap<String, LatencyHistogram> handlerTime =
+            new ConcurrentHashMap<String, LatencyHistogram>();
+
+    /**
+     * create the statistics of a capture application.
+     *
+     * @param captureApp the capture application.
+     */
+    CaptureAppStatistics(CaptureApp captureApp) {
+        this.captureApp = captureApp;
+    }
+
+    /**
+     * records the rule time of a handler.
+     *
+     * @param handler    the handler.
+     * @param startNanos the start of the execution.
+     */
+    void recordHandler(ECReportsHandler handler, long startNanos) {
+        final long nanos = System.nanoTime() - startNanos;
+        ruleTime.record(nanos);
+        final String key = handler.getClass().getSimpleName() + "[" +
+                handler.getChangeSet() + "]";
+        LatencyHistogram h = handlerTime.get(key);
+        if (null == h) {
+            handlerTime.putIfAbsent(key, new LatencyHistogram());
+            h = handlerTime.get(key);
+        }
+        h.record(nanos);
+    }
+
+    /**
+     * records the HTTP status code of a capture request.
+     *
+     * @param code the status code.
+     */
+    void recordStatus(int code) {
+        AtomicLong c = statusCodes.get(code);
+        if (null == c) {
+            statusCodes.putIfAbsent(code, new AtomicLong());
+            c = statusCodes.get(code);
+        }
+        c.incrementAndGet();
+    }
+
+    public long getReportsReceived() {
+        return reportsReceived.get();
+    }
+
+    public long getReportsRejected() {
+        return reportsRejected.get();
+    }
+
+    public long getParseFailures() {
+        return parseFailures.get();
+    }
+
+    public long getReportsDropped() {
+        return reportsDropped.get();
+    }
+
+    public long getDocumentsProduced() {
+        return documentsProduced.get();
+    }
+
+    public long getHandlerFailures() {
+        return handlerFailures.get();
+    }
+
+    public long getHandlerTimeouts() {
+        return captureApp.getTimeouts();
+    }
+
+    public long getCapturesSucceeded() {
+        return capturesSucceeded.get();
+    }
+
+    public long getCapturesFailed() {
+        return capturesFailed.get();
+    }
+
+    public int getReportsQueueDepth() {
+        return captureApp.getReportsQueueDepth();
+    }
+
+    public int getDocumentsQueueDepth() {
+        return captureApp.getDocumentsQueueDepth();
+    }
+
+    public int getDeadLetterQueueDepth() {
+        return captureApp.getDeadLetters().size();
+    }
+
+    public String[] getDeadLetters() {
+        final List<CaptureApp.DeadLetter> letters = captureApp.getDeadLetters();
+        final String[] s = new String[letters.size()];
+        for (int i = 0; i < s.length; i++) {
+            s[i] = letters.get(i).toString();
+        }
+        return s;
+    }
+
+    public int replayDeadLetters() {
+        return captureApp.replayDeadLetters().size();
+    }
+
+    public int getSchedulerPoolSize() {
+        final SharedScheduler scheduler = captureApp.getScheduler();
+        return (null == scheduler) ? 0 : scheduler.getPoolSize();
+    }
+
+    public int getSchedulerActiveCount() {
+        final SharedScheduler scheduler = captureApp.getScheduler();
+        return (null == scheduler) ? 0 : scheduler.getActiveCount();
+    }
+
+    public int getSchedulerLargestPoolSize() {
+        final SharedScheduler scheduler = captureApp.getScheduler();
+        return (null == scheduler) ? 0 : scheduler.getLargestPoolSize();
+    }
+
+    public int getSchedulerQueueSize() {
+        final SharedScheduler scheduler = captureApp.getScheduler();
+        return (null == scheduler) ? 0 : scheduler.getQueueSize();
+    }
+
+    public double getParseTimeP99() {
+        return parseTime.getPercentile(99);
+    }
+
+    public double getQueueWaitP99() {
+        return queueWait.getPercentile(99);
+    }
+
+    public double getRuleTimeP99() {
+        return ruleTime.getPercentile(99);
+    }
+
+    public double getCaptureLatencyP99() {
+        return captureLatency.getPercentile(99);
+    }
+
+    public Map<String, String> getStatistics() {
+        Map<String, String> stats = new TreeMap<String, String>();
+        stats.put("reports.received", String.valueOf(getReportsReceived()));
+        stats.put("reports.rejected", String.valueOf(getReportsRejected()));
+        stats.put("reports.parseFailures", String.valueOf(getParseFailures()));
+        stats.put("reports.dropped", String.valueOf(getReportsDropped()));
+        stats.put("reports.queueDepth", String.valueOf(getReportsQueueDepth()));
+        stats.put("handlers.failures", String.valueOf(getHandlerFailures()));
+        stats.put("handlers.timeouts", String.valueOf(getHandlerTimeouts()));
+        stats.put("handlers.deadLettered",
+                String.valueOf(captureApp.getDeadLettered()));
+        stats.put("handlers.deadLetterQueueDepth",
+                String.valueOf(getDeadLetterQueueDepth()));
+        stats.put("handlers.deadLettersDropped",
+                String.valueOf(captureApp.getDeadLettersDropped()));
+        stats.put("documents.produced", String.valueOf(getDocumentsProduced()));
+        stats.put("documents.queueDepth",
+                String.valueOf(getDocumentsQueueDepth()));
+        stats.put("captures.succeeded", String.valueOf(getCapturesSucceeded()));
+        stats.put("captures.failed", String.valueOf(getCapturesFailed()));
+        stats.put("stop.leftOver", String.valueOf(captureApp.getLeftOver()));
+        for (Map.Entry<Integer, AtomicLong> e : statusCodes.entrySet()) {
+            stats.put("captures.status." + e.getKey(),
+                    String.valueOf(e.getValue().get()));
+        }
+        stats.put("time.parse", parseTime.toString());
+        stats.put("time.queueWait", queueWait.toString());
+        stats.put("time.rules", ruleTime.toString());
+        for (Map.Entry<String, LatencyHistogram> e : handlerTime.entrySet()) {
+            stats.put("time.rules." + e.getKey(), e.getValue().toString());
+        }
+        stats.put("time.deliveryWait", deliveryWait.toString());
+        stats.put("time.capture", captureLatency.toString());
+        final SharedScheduler scheduler = captureApp.getScheduler();
+        if (null != scheduler) {
+            stats.put("scheduler.poolSize",
+                    String.valueOf(scheduler.getPoolSize()));
+            stats.put("scheduler.activeCount",
+                    String.valueOf(scheduler.getActiveCount()));
+            stats.put("scheduler.largestPoolSize",
+                    String.valueOf(scheduler.getLargestPoolSize()));
+            stats.put("scheduler.queueSize",
+                    String.valueOf(scheduler.getQueueSize()));
+            stats.put("scheduler.submitted",
+                    String.valueOf(scheduler.getSubmittedCount()));
+            stats.put("scheduler.completed",
+                    String.valueOf(scheduler.getCompletedCount()));
+        }
+        final AdmissionControl admission = captureApp.getAdmissionControl();
+        if (null != admission) {
+            putAdmission(stats, "admission.source.",
+                    admission.getSourceCounters());
+            putAdmission(stats, "admission.spec.",
+                    admission.getSpecCounters());
+        }
+        if (null != captureApp.getRecorder()) {
+            stats.put("recorder", captureApp.getRecorder().toString());
+        }
+        if (null != SightingStore.getInstance()) {
+            stats.put("sightings", SightingStore.getInstance().toString());
+        }
+        if (null != captureApp.getSnapshot()) {
+            stats.put("snapshot", captureApp.getSnapshot().toString());
+        }
+        if (null != captureApp.getTracer()) {
+            stats.put("tracer", captureApp.getTracer().toString());
+        }
+        return stats;
+    }
+
+    /**
+     * adds the counters of the admission control by source resp. spec name.
+     *
+     * @param stats    the statistics.
+     * @param prefix   the prefix of the names.
+     * @param counters the counters by source resp. spec name.
+     */
+    private static void putAdmission(Map<String, String> stats, String prefix,
+                                     Map<String, AdmissionControl.Counters> counters) {
+        for (Map.Entry<String, AdmissionControl.Counters> e :
+                counters.entrySet()) {
+            final String name = prefix + e.getKey() + ".";
+            final AdmissionControl.Counters c = e.getValue();
+            stats.put(name + "admitted", String.valueOf(c.getAdmitted()));
+            stats.put(name + "delayed", String.valueOf(c.getDelayed()));
+            stats.put(name + "rejected", String.valueOf(c.getRejected()));
+            stats.put(name + "inFlight", String.valueOf(c.getInFlight()));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package org.fosstrak.capturingapp;
+
+import java.util.Map;
+
+/**
+ * JMX interface of the statistics of a capture application. The durations
+ * are given in milliseconds.
+ */
+public interface CaptureAppStatisticsMBean {
+
+    /**
+     * @return the number of received reports.
+     */
+    long getReportsReceived();
+
+    /**
+     * @return the number of reports rejected by the admission control.
+     */
+    long getReportsRejected();
+
+    /**
+     * @return the number of reports that could not be deserialized.
+     */
+    long getParseFailures();
+
+    /**
+     * @return the number of reports dropped by the filters.
+     */
+    long getReportsDropped();
+
+    /**
+     * @return the number of EPCIS documents produced by the handlers.
+     */
+    long getDocumentsProduced();
+
+    /**
+     * @return the number of failed handler executions.
+     */
+    long getHandlerFailures();
+
+    /**
+     * @return the number of handler executions exceeding the deadline.
+     */
+    long getHandlerTimeouts();
+
+    /**
+     * @return the number of successful capture requests.
+     */
+    long getCapturesSucceeded();
+
+    /**
+     * @return the number of failed capture requests.
+     */
+    long getCapturesFailed();
+
+    /**
+     * @return the number of reports waiting for the handlers.
+     */
+    int getReportsQueueDepth();
+
+    /**
+     * @return the number of EPCIS documents waiting for delivery.
+     */
+    int getDocumentsQueueDepth();
+
+    /**
+     * @return the number of threads of the shared scheduler (0 if the stages
+     *         run on dedicated threads).
+     */
+    int getSchedulerPoolSize();
+
+    /**
+     * @return the number of threads of the shared scheduler executing a
+     *         task.
+     */
+    int getSchedulerActiveCount();
+
+    /**
+     * @return the largest number of threads that have been in the pool of
+     *         the shared scheduler.
+     */
+    int getSchedulerLargestPoolSize();
+
+    /**
+     * @return the number of tasks waiting for a thread of the shared
+     *         scheduler.
+     */
+    int getSchedulerQueueSize();
+
+    /**
+     * @return the 99th percentile of the deserialization time.
+     */
+    double getParseTimeP99();
+
+    /**
+     * @return the 99th percentile of the time the reports wait for the
+     *         handlers.
+     */
+    double getQueueWaitP99();
+
+    /**
+     * @return the 99th percentile of the rule time of all the handlers.
+     */
+    double getRuleTimeP99();
+
+    /**
+     * @return the 99th percentile of the capture request latency.
+     */
+    double getCaptureLatencyP99();
+
+    /**
+     * @return the number of reports in the dead-letter queue.
+     */
+    int getDeadLetterQueueDepth();
+
+    /**
+     * @return the dead letters, oldest first.
+     */
+    String[] getDeadLetters();
+
+    /**
+     * hands the dead letters to the handlers again.
+     *
+     * @return the number of replayed dead letters.
+     */
+    int replayDeadLetters();
+
+    /**
+     * @return all the statistics (counters, status codes and histograms) by
+     *         name.
+     */
+    Map<String, String> getStatistics();
+}
@@ -0,0 +1,192 @@
+package org.fosstrak.capturingapp;
+
+import org.apache.log4j.Logger;
+import org.fosstrak.ale.xsd.ale.epcglobal.*;
+import org.fosstrak.capturingapp.util.EPCValue;
+import org.fosstrak.capturingapp.util.LongHashWindow;
+import org.fosstrak.capturingapp.util.Snapshotable;
+import org.fosstrak.capturingapp.util.Util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * filter removing members from the ECReports that have already been seen
+ * within a time window. A sighting is identified by the spec name, the report
+ * name, the EPC and the reader that read the tag. A member read by several
+ * readers is kept as long as one of its readers did not report the tag within
+ * the window. The sightings are kept in a {@link LongHashWindow}, so the
+ * memory used by the filter is bounded by its capacity.<br/>
+ * When all the members of an ECReports are removed, the whole ECReports is
+ * dropped. ECReports without any members are passed on unchanged.<br/>
+ * The window is part of the snapshots of the capture application, so the
+ * repetitions do not pass the filter after a restart. The sightings of
+ * reports that end up in the dead-letter queue are forgotten, so the tags
+ * pass the filter again the next time they are read.
+ */
+public class DeduplicationFilter implements RevertibleFilter, Snapshotable {
+
+    // logger
+    private static final Logger log = Logger.getLogger(DeduplicationFilter.class);
+
+    // the recorded sightings.
+    private final LongHashWindow sightings;
+
+    /**
+     * create a new de-duplication filter.
+     *
+     * @param capacity the maximum number of sightings to remember.
+     * @param window   the time window in milliseconds.
+     */
+    public DeduplicationFilter(int capacity, long window) {
+        sightings = new LongHashWindow(capacity, window);
+    }
+
+    public ECReports filter(ECReports reports) {
+        if ((null == reports) || (null == reports.getReports())) {
+            return reports;
+        }
+        final long now = System.currentTimeMillis();
+        final long spec = Util.fingerprint(Util.FINGERPRINT_SEED,
+                reports.getSpecName());
+
+        int kept = 0;
+        int removed = 0;
+        for (ECReport report : reports.getReports().getReport()) {
+            if ((null == report) || (null == report.getGroup())) continue;
+            final long rep = Util.fingerprint(spec, report.getReportName());
+
+            for (ECReportGroup group : report.getGroup()) {
+                if ((null == group) || (null == group.getGroupList())) continue;
+
+                List<ECReportGroupListMember> members =
+                        group.getGroupList().getMember();
+                int removedFromGroup = 0;
+                Iterator<ECReportGroupListMember> it = members.iterator();
+                while (it.hasNext()) {
+                    if (isNew(rep, it.next(), now)) {
+                        kept++;
+                    } else {
+                        it.remove();
+                        removedFromGroup++;
+                    }
+                }
+                if ((removedFromGroup > 0) && (null != group.getGroupCount())) {
+                    group.getGroupCount().setCount(members.size());
+                }
+                removed += removedFromGroup;
+            }
+        }
+
+        if (removed > 0) {
+            log.debug(String.format("移除重复的标签: %d (保留 %d)",
+                    removed, kept));
+        }
+        if ((removed > 0) && (0 == kept)) {
+            return null;
+        }
+        return reports;
+    }
+
+    public void revert(ECReports reports) {
+        if ((null == reports) || (null == reports.getReports())) {
+            return;
+        }
+        final long spec = Util.fingerprint(Util.FINGERPRINT_SEED,
+                reports.getSpecName());
+        for (ECReport report : reports.getReports().getReport()) {
+            if ((null == report) || (null == report.getGroup())) continue;
+            final long rep = Util.fingerprint(spec, report.getReportName());
+
+            for (ECReportGroup group : report.getGroup()) {
+                if ((null == group) || (null == group.getGroupList())) continue;
+                for (ECReportGroupListMember member :
+                        group.getGroupList().getMember()) {
+                    forget(rep, member);
+                }
+            }
+        }
+    }
+
+    /**
+     * records the sightings of a member.
+     *
+     * @param report the fingerprint of spec and report name.
+     * @param member the member.
+     * @param now    the current time.
+     * @return true if at least one sighting of the member is new.
+     */
+    private boolean isNew(long report, ECReportGroupListMember member, long now) {
+        EPCValue epc = EPCValue.of(member);
+        if (null == epc) {
+            return true;
+        }
+        final long key = epc.fingerprint(report);
+
+        boolean fresh = false;
+        boolean hasReader = false;
+        if ((null != member.getExtension()) &&
+                (null != member.getExtension().getStats())) {
+            for (ECTagStat stat : member.getExtension().getStats().getStat()) {
+                if (null == stat.getStatBlocks()) continue;
+                for (ECReaderStat rstat : stat.getStatBlocks().getStatBlock()) {
+                    hasReader = true;
+                    fresh |= sightings.add(
+                            Util.fingerprint(key, rstat.getReaderName()), now);
+                }
+            }
+        }
+        if (!hasReader) {
+            fresh = sightings.add(key, now);
+        }
+        return fresh;
+    }
+
+    /**
+     * removes the sightings of a member.
+     *
+     * @param report the fingerprint of spec and report name.
+     * @param member the member.
+     */
+    private void forget(long report, ECReportGroupListMember member) {
+        EPCValue epc = EPCValue.of(member);
+        if (null == epc) {
+            return;
+        }
+        final long key = epc.fingerprint(report);
+
+        boolean hasReader = false;
+        if ((null != member.getExtension()) &&
+                (null != member.getExtension().getStats())) {
+            for (ECTagStat stat : member.getExtension().getStats().getStat()) {
+                if (null == stat.getStatBlocks()) continue;
+                for (ECReaderStat rstat : stat.getStatBlocks().getStatBlock()) {
+                    hasReader = true;
+                    sightings.remove(
+                            Util.fingerprint(key, rstat.getReaderName()));
+                }
+            }
+        }
+        if (!hasReader) {
+            sightings.remove(key);
+        }
+    }
+
+    public void writeState(DataOutput out) throws IOException {
+        sightings.writeState(out);
+    }
+
+    public void readState(ByteBuffer in) {
+        sightings.readState(in);
+    }
+
+    /**
+     * @return the underlying sightings window.
+     */
+    public LongHashWindow getSightings() {
+        return sightings;
+    }
+}
@@ -0,0 +1,183 @@
+package org.fosstrak.capturingapp;
+
+import org.apache.log4j.Logger;
+import org.fosstrak.ale.xsd.ale.epcglobal.*;
+import org.fosstrak.capturingapp.util.ReportDelta;
+import org.fosstrak.capturingapp.util.Snapshotable;
+import org.fosstrak.capturingapp.util.StateSnapshot;
+import org.fosstrak.capturingapp.util.Util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * filter turning full tag population reports (eg. <code>currentTags</code>)
+ * into delta reports. For every configured report name the filter keeps the
+ * population of the previous event cycle per spec name. The original report
+ * is reduced to the tags that have been added since the previous cycle and a
+ * synthetic report named <code>reportName + DELETIONS_SUFFIX</code> holding
+ * the tags that have disappeared is appended to the ECReports.<br/>
+ * Rules working on the original report name therefore only see the
+ * additions, rules interested in removed tags can match on the synthetic
+ * report.<br/>
+ * The populations are part of the snapshots of the capture application, so
+ * the first cycle after a restart is not reported as all additions. The
+ * changes of reports that end up in the dead-letter queue are reverted, so
+ * the next cycle reports the additions and deletions again.
+ */
+public class DeltaFilter implements RevertibleFilter, Snapshotable {
+
+    /**
+     * suffix of the synthetic report holding the deletions.
+     */
+    public static final String DELETIONS_SUFFIX = ".deletions";
+
+    // logger
+    private static final Logger log = Logger.getLogger(DeltaFilter.class);
+
+    // the report names to transform.
+    private final Set<String> reportNames;
+
+    // the state per spec name and report name.
+    private final Map<String, ReportDelta> states =
+            new HashMap<String, ReportDelta>();
+
+    /**
+     * create a new delta filter.
+     *
+     * @param reportNames the names of the reports to transform.
+     */
+    public DeltaFilter(Collection<String> reportNames) {
+        this.reportNames = new HashSet<String>(reportNames);
+    }
+
+    public synchronized ECReports filter(ECReports reports) {
+        if ((null == reports) || (null == reports.getReports())) {
+            return reports;
+        }
+        List<ECReport> synthetic = null;
+        for (ECReport report : reports.getReports().getReport()) {
+            if ((null == report) ||
+                    !reportNames.contains(report.getReportName())) {
+                continue;
+            }
+            ECReport deletions = delta(reports.getSpecName(), report);
+            if (null != deletions) {
+                if (null == synthetic) {
+                    synthetic = new ArrayList<ECReport>(reportNames.size());
+                }
+                synthetic.add(deletions);
+            }
+        }
+        if (null != synthetic) {
+            reports.getReports().getReport().addAll(synthetic);
+        }
+        return reports;
+    }
+
+    public synchronized void revert(ECReports reports) {
+        if ((null == reports) || (null == reports.getReports())) {
+            return;
+        }
+        final List<ECReport> all = reports.getReports().getReport();
+        for (ECReport report : all) {
+            if ((null == report) ||
+                    !reportNames.contains(report.getReportName())) {
+                continue;
+            }
+            final ReportDelta state = states.get(
+                    reports.getSpecName() + "/" + report.getReportName());
+            if (null == state) {
+                continue;
+            }
+            List<ECReportGroupListMember> deleted =
+                    new ArrayList<ECReportGroupListMember>();
+            for (ECReport r : all) {
+                if ((null != r) && (report.getReportName() + DELETIONS_SUFFIX)
+                        .equals(r.getReportName())) {
+                    deleted.addAll(Util.extractReportMembers(r));
+                }
+            }
+            state.revert(Util.extractReportMembers(report), deleted);
+        }
+    }
+
+    public synchronized void writeState(DataOutput out) throws IOException {
+        out.writeInt(states.size());
+        for (Map.Entry<String, ReportDelta> e : states.entrySet()) {
+            StateSnapshot.writeString(out, e.getKey());
+            e.getValue().writeState(out);
+        }
+    }
+
+    public synchronized void readState(ByteBuffer in) {
+        final int n = in.getInt();
+        for (int i = 0; i < n; i++) {
+            final String id = StateSnapshot.readString(in);
+            ReportDelta state = new ReportDelta();
+            state.readState(in);
+            states.put(id, state);
+        }
+    }
+
+    /**
+     * reduces the report to the additions and computes the deletions.
+     *
+     * @param specName the spec name of the ECReports.
+     * @param report   the report to transform.
+     * @return a report holding the deletions or null if there are none.
+     */
+    private ECReport delta(String specName, ECReport report) {
+        final String id = specName + "/" + report.getReportName();
+        ReportDelta state = states.get(id);
+        if (null == state) {
+            state = new ReportDelta();
+            states.put(id, state);
+        }
+
+        List<ECReportGroupListMember> current =
+                Util.extractReportMembers(report);
+        int added = 0;
+        for (ECReportGroup group : report.getGroup()) {
+            if ((null == group) || (null == group.getGroupList())) continue;
+
+            List<ECReportGroupListMember> members =
+                    group.getGroupList().getMember();
+            Iterator<ECReportGroupListMember> it = members.iterator();
+            while (it.hasNext()) {
+                if (state.contains(ReportDelta.key(it.next()))) {
+                    it.remove();
+                }
+            }
+            if (null != group.getGroupCount()) {
+                group.getGroupCount().setCount(members.size());
+            }
+            added += members.size();
+        }
+
+        List<ECReportGroupListMember> deleted =
+                new ArrayList<ECReportGroupListMember>();
+        state.advance(current, deleted);
+
+        log.debug(String.format("报告 %s: 新增 %d, 删除 %d, 当前 %d",
+                id, added, deleted.size(), state.size()));
+
+        if (deleted.isEmpty()) {
+            return null;
+        }
+        ECReportGroupList list = new ECReportGroupList();
+        list.getMember().addAll(deleted);
+        ECReportGroupCount count = new ECReportGroupCount();
+        count.setCount(deleted.size());
+        ECReportGroup group = new ECReportGroup();
+        group.setGroupList(list);
+        group.setGroupCount(count);
+
+        ECReport deletions = new ECReport();
+        deletions.setReportName(report.getReportName() + DELETIONS_SUFFIX);
+        deletions.getGroup().add(group);
+        return deletions;
+    }
+}
@@ -0,0 +1,21 @@
+package org.fosstrak.capturingapp;
+
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+
+/**
+ * An ECReportsFilter is invoked by the capture application after an incoming
+ * ECReports has been de-serialized and before the handlers are run. A filter
+ * may modify the ECReports in place (eg. remove members that are of no
+ * interest), replace it by another ECReports or drop it completely.
+ */
+public interface ECReportsFilter {
+
+    /**
+     * filter an incoming ECReports.
+     *
+     * @param reports the ECReports to filter.
+     * @return the ECReports to pass on to the next filter and the handlers or
+     *         <code>null</code> if the ECReports shall be dropped.
+     */
+    public ECReports filter(ECReports reports);
+}
@@ -9,6 +9,7 @@ import org.drools.definition.KnowledgePackage;
 import org.drools.runtime.StatefulKnowledgeSession;
 import org.drools.runtime.StatelessKnowledgeSession;
 import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+import org.fosstrak.capturingapp.util.RoutingTable;
 import org.fosstrak.epcis.model.EPCISDocumentType;
 
 import java.util.ArrayList;
@@ -86,7 +87,7 @@ public abstract class ECReportsHandler {
      * the knowledge session. this is object to allow either state-full or
      * state-less sessions.
      */
-    protected Object ksession;
+    protected volatile Object ksession;
 
     // logger
     private static final Logger log = Logger.getLogger(ECReportsHandler.class);
@@ -100,6 +101,9 @@ public abstract class ECReportsHandler {
     // the change-set to load with the drools rules.
     protected final String changeSet;
 
+    // the reports this handler is interested in.
+    private volatile RoutingTable routingTable = RoutingTable.ACCEPT_ALL;
+
     /**
      * default constructor. sets the rule-set to 'changeset.xml'.
      */
@@ -123,6 +127,45 @@ public abstract class ECReportsHandler {
         return changeSet;
     }
 
+    /**
+     * @return the routing table of this handler.
+     */
+    public RoutingTable getRoutingTable() {
+        return routingTable;
+    }
+
+    /**
+     * sets the routing table of this handler. the capture application only
+     * invokes the handler for ECReports accepted by the routing table.
+     *
+     * @param routingTable the routing table (null accepts all reports).
+     */
+    public void setRoutingTable(RoutingTable routingTable) {
+        this.routingTable = (null == routingTable) ?
+                RoutingTable.ACCEPT_ALL : routingTable;
+    }
+
+    /**
+     * derives the routing table from the rules of the change-set of this
+     * handler (see {@link RoutingTable#fromChangeSet(String)}). handlers not
+     * based on a drools change-set should override this method.
+     *
+     * @return the derived routing table.
+     */
+    public RoutingTable deriveRoutingTable() {
+        return RoutingTable.fromChangeSet(changeSet);
+    }
+
+    /**
+     * checks whether the handler is interested in the reports.
+     *
+     * @param reports the reports.
+     * @return true if the routing table accepts the reports.
+     */
+    public boolean accepts(ECReports reports) {
+        return routingTable.accepts(reports);
+    }
+
     /**
      * this method is invoked from the capture application whenever a new
      * ECReports is received. The resulting EPCIS document will be delivered
@@ -252,6 +295,21 @@ public abstract class ECReportsHandler {
      */
     public abstract void loadRules();
 
+    /**
+     * cancels a running execution of the handler. this method is invoked
+     * from another thread when the execution exceeded its deadline. by
+     * default a <code>StatefulKnowledgeSession</code> is halted, rule helper
+     * functions should in addition check the interrupted flag of the
+     * executing thread.
+     */
+    public void cancel() {
+        final Object session = ksession;
+        if (session instanceof StatefulKnowledgeSession) {
+            log.debug("中止会话.");
+            ((StatefulKnowledgeSession) session).halt();
+        }
+    }
+
     /**
      * in case of a <code>StatefullKnowledgeSession</code> we have to call
      * dispose at the end of execution.
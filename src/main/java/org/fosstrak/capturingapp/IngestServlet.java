@@ -0,0 +1,148 @@
+package org.fosstrak.capturingapp;
+
+import org.apache.log4j.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * shared ingest endpoint of all the capture applications. an ALE delivers
+ * its ECReports by HTTP POST to <code>/ale/{name}</code>, where
+ * <code>name</code> is the name of the capture application
+ * (<code>cap.N.name</code>). The capture application is looked up in the map
+ * of the capture applications, so serving many capture applications needs
+ * no additional ports or accept threads. A capture application configured
+ * with the port <code>-1</code> does not open its own listen socket and
+ * receives its reports through this servlet only.<br/>
+ * Responses:
+ * <ul>
+ * <li>202 the report has been queued.</li>
+ * <li>400 the report could not be deserialized.</li>
+ * <li>404 no capture application with the name.</li>
+ * <li>413 the report exceeds the maximum size (init parameter
+ * <code>maxReportSize</code> in characters, defaults to
+ * {@link #DEFAULT_MAX_REPORT_SIZE}).</li>
+ * <li>503 the capture application is not running or the report has been
+ * rejected by the admission control.</li>
+ * </ul>
+ */
+public class IngestServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * the default maximum size of a report in characters.
+     */
+    public static final int DEFAULT_MAX_REPORT_SIZE = 4 * 1024 * 1024;
+
+    // logger
+    private static final Logger log = Logger.getLogger(IngestServlet.class);
+
+    // the maximum initial capacity of the buffer, it grows beyond when the
+    // report is larger.
+    private static final int MAX_INITIAL_CAPACITY = 64 * 1024;
+
+    // the maximum size of a report in characters.
+    private int maxReportSize = DEFAULT_MAX_REPORT_SIZE;
+
+    @Override
+    public void init() throws ServletException {
+        final String max = getInitParameter("maxReportSize");
+        if (null != max) {
+            try {
+                maxReportSize = Integer.parseInt(max.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("无效的 maxReportSize: " + max);
+            }
+        }
+        log.debug(String.format("报告最大长度: %d", maxReportSize));
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse resp)
+            throws ServletException, IOException {
+
+        String name = req.getPathInfo();
+        if ((null == name) || (name.length() <= 1)) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND, "缺少 CaptureApp 名称");
+            return;
+        }
+        name = name.substring(1);
+
+        final CaptureApp cap = CaptureAppPortTypeImpl.getCaptureApp(name);
+        if (null == cap) {
+            resp.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "未知的 CaptureApp: " + name);
+            return;
+        }
+        if (!cap.isExecuting()) {
+            resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                    "CaptureApp 未运行: " + name);
+            return;
+        }
+
+        // the content length is given by the client, it only sizes the
+        // buffer up to a limit.
+        final int length = req.getContentLength();
+        if (length > maxReportSize) {
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "报告太大: " + length);
+            return;
+        }
+        final StringBuffer buffer = new StringBuffer(
+                Math.min(Math.max(length, 256), MAX_INITIAL_CAPACITY));
+        if (!read(req.getReader(), buffer)) {
+            log.warn(String.format("报告太大 (%s), 来自 %s.", name,
+                    req.getRemoteAddr()));
+            resp.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE,
+                    "报告太大");
+            return;
+        }
+
+        try {
+            if (cap.receive(buffer, req.getRemoteAddr())) {
+                resp.setStatus(HttpServletResponse.SC_ACCEPTED);
+            } else {
+                resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        "报告被拒绝");
+            }
+        } catch (Exception e) {
+            log.error(String.format("不能接收报告 (%s): %s", name,
+                    e.getMessage()));
+            resp.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        }
+    }
+
+    /**
+     * reads the report the same way as the listen socket does (the line
+     * breaks are dropped).
+     *
+     * @param in     the body of the request.
+     * @param buffer where to put the report.
+     * @return false if the report exceeds the maximum size.
+     * @throws IOException when the report could not be read.
+     */
+    private boolean read(Reader in, StringBuffer buffer) throws IOException {
+        final char[] chunk = new char[4096];
+        int n;
+        while (-1 != (n = in.read(chunk))) {
+            int from = 0;
+            for (int i = 0; i < n; i++) {
+                final char c = chunk[i];
+                if (('\r' == c) || ('\n' == c)) {
+                    buffer.append(chunk, from, i - from);
+                    from = i + 1;
+                }
+            }
+            buffer.append(chunk, from, n - from);
+            if (buffer.length() > maxReportSize) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
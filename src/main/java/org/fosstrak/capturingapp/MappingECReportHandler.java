@@ -0,0 +1,236 @@
+package org.fosstrak.capturingapp;
+
+import org.apache.log4j.Logger;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReport;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReportGroupListMember;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+import org.fosstrak.ale.xsd.epcglobal.EPC;
+import org.fosstrak.capturingapp.util.*;
+import org.fosstrak.epcis.model.ActionType;
+import org.fosstrak.epcis.model.EPCISDocumentType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+/**
+ * handler mapping spec name, report name and reader directly to an EPCIS
+ * event without a rule engine. The mappings are read from a properties file
+ * on the class path (given as constructor argument, resp. as
+ * <code>cap.N.changeset</code> in the capture application configuration):
+ * <pre>
+ * # number of mappings
+ * n=1
+ * map.0.spec=fosstrakDemo
+ * map.0.report=additionsReport
+ * # optional, all readers if omitted
+ * map.0.reader=Reader_GoodsReceiving
+ * map.0.action=ADD
+ * map.0.bizStep=urn:fosstrak:demo:bizstep:receiving
+ * map.0.disposition=urn:fosstrak:demo:disp:for_sale
+ * map.0.readPoint=urn:fosstrak:demo:rp:Reader_GoodsReceiving
+ * map.0.bizLocation=urn:fosstrak:demo:loc:GoodsReceiving
+ * # optional: epc (default), tag, rawHex or rawDecimal
+ * map.0.selector=epc
+ * # optional: aggregate the EPCs into quantity events per EPC class
+ * map.0.quantity=false
+ * # optional: number of EPCs to add as sample object event in quantity mode
+ * map.0.sample=0
+ * # optional: serialize the documents with StAX instead of JAXB
+ * streaming=false
+ * </pre>
+ * The mappings are looked up by spec name and report name in a hash table,
+ * the members of a reader through the {@link ReportIndex} of the report. All
+ * the events generated from one ECReports are put into one EPCIS document.
+ * The routing table of the handler is derived from the mappings.
+ */
+public class MappingECReportHandler extends ECReportsHandler {
+
+    /**
+     * the default mapping file.
+     */
+    public static final String DEFAULT_MAPPING = "mapping.properties";
+
+    // logger
+    private static final Logger log = Logger.getLogger(MappingECReportHandler.class);
+
+    /**
+     * one mapping from spec/report/reader to an EPCIS event.
+     */
+    protected static class Mapping {
+        String reader;
+        ActionType action;
+        String bizStep;
+        String disposition;
+        String readPoint;
+        String bizLocation;
+        Util.EPCSelector selector;
+        boolean quantity;
+        int sample;
+    }
+
+    // the mappings by spec name and report name.
+    private final Map<String, Map<String, List<Mapping>>> mappings =
+            new HashMap<String, Map<String, List<Mapping>>>();
+
+    // whether to serialize the documents with StAX.
+    private boolean streaming = false;
+
+    /**
+     * create a new handler with the default mapping file.
+     */
+    public MappingECReportHandler() {
+        this(DEFAULT_MAPPING);
+    }
+
+    /**
+     * create a new handler.
+     *
+     * @param mapping the mapping file as class path resource.
+     */
+    public MappingECReportHandler(String mapping) {
+        super(mapping);
+        try {
+            load(mapping);
+        } catch (IOException e) {
+            throw new RuntimeException("不能加载映射文件 " + mapping + ": " +
+                    e.getMessage(), e);
+        }
+        // the mappings define exactly the reports of interest.
+        setRoutingTable(deriveRoutingTable());
+    }
+
+    /**
+     * loads the mappings.
+     *
+     * @param mapping the mapping file as class path resource.
+     * @throws IOException when the file could not be read.
+     */
+    private void load(String mapping) throws IOException {
+        InputStream in = MappingECReportHandler.class.getResourceAsStream(mapping);
+        if (null == in) {
+            in = MappingECReportHandler.class.getClassLoader()
+                    .getResourceAsStream(mapping);
+        }
+        if (null == in) {
+            throw new IOException("资源不存在");
+        }
+        Properties props = new Properties();
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+
+        streaming = Boolean.parseBoolean(props.getProperty("streaming", "false"));
+        final int n = Integer.parseInt(props.getProperty("n", "0"));
+        for (int i = 0; i < n; i++) {
+            final String prefix = "map." + i + ".";
+            final String spec = props.getProperty(prefix + "spec");
+            final String report = props.getProperty(prefix + "report");
+            if ((null == spec) || (null == report)) {
+                throw new IOException("映射 " + i + " 缺少 spec 或 report");
+            }
+
+            Mapping m = new Mapping();
+            m.reader = props.getProperty(prefix + "reader");
+            m.action = ActionType.fromValue(
+                    props.getProperty(prefix + "action", "OBSERVE"));
+            m.bizStep = props.getProperty(prefix + "bizStep");
+            m.disposition = props.getProperty(prefix + "disposition");
+            m.readPoint = props.getProperty(prefix + "readPoint");
+            m.bizLocation = props.getProperty(prefix + "bizLocation");
+            m.selector = selector(props.getProperty(prefix + "selector", "epc"));
+            m.quantity = Boolean.parseBoolean(
+                    props.getProperty(prefix + "quantity", "false"));
+            m.sample = Integer.parseInt(props.getProperty(prefix + "sample", "0"));
+
+            Map<String, List<Mapping>> byReport = mappings.get(spec);
+            if (null == byReport) {
+                byReport = new HashMap<String, List<Mapping>>();
+                mappings.put(spec, byReport);
+            }
+            List<Mapping> list = byReport.get(report);
+            if (null == list) {
+                list = new ArrayList<Mapping>(1);
+                byReport.put(report, list);
+            }
+            list.add(m);
+        }
+        log.info(String.format("加载 %d 个映射 (%s).", n, mapping));
+    }
+
+    /**
+     * @param name the name of a selector.
+     * @return the selector.
+     * @throws IOException when the name is unknown.
+     */
+    private static Util.EPCSelector selector(String name) throws IOException {
+        if ("epc".equals(name)) return Util.selectEPC;
+        if ("tag".equals(name)) return Util.selectTag;
+        if ("rawHex".equals(name)) return Util.selectRawHex;
+        if ("rawDecimal".equals(name)) return Util.selectRawDecimal;
+        throw new IOException("未知的选择器: " + name);
+    }
+
+    @Override
+    public LinkedList<EPCISDocumentType> handle(ECReports reports) {
+        LinkedList<EPCISDocumentType> results = new LinkedList<EPCISDocumentType>();
+        Map<String, List<Mapping>> byReport = mappings.get(reports.getSpecName());
+        if ((null == byReport) || (null == reports.getReports())) {
+            return results;
+        }
+
+        SimpleEPCISDocument document = null;
+        for (ECReport report : reports.getReports().getReport()) {
+            if (null == report) continue;
+            List<Mapping> list = byReport.get(report.getReportName());
+            if (null == list) continue;
+
+            for (Mapping m : list) {
+                List<ECReportGroupListMember> members = (null == m.reader) ?
+                        Util.extractReportMembers(report) :
+                        ReportIndex.of(report).getMembersFromReader(m.reader);
+                List<EPC> epcs = Util.extractEPC(m.selector, members);
+                if (epcs.isEmpty()) continue;
+
+                if (null == document) {
+                    document = streaming ? new StreamingEPCISDocument() :
+                            new SimpleEPCISDocument();
+                }
+                List<Object> objects = new ArrayList<Object>(epcs);
+                if (m.quantity) {
+                    document.addQuantityEvents(objects, m.bizStep,
+                            m.disposition, m.readPoint, m.bizLocation, m.sample);
+                } else {
+                    document.addObjectEvent(objects, m.action, m.bizStep,
+                            m.disposition, m.readPoint, m.bizLocation);
+                }
+            }
+        }
+        if (null != document) {
+            results.add(document.getDocument());
+        }
+        return results;
+    }
+
+    /**
+     * no rules to load.
+     */
+    @Override
+    public void loadRules() {
+    }
+
+    /**
+     * @return a routing table accepting exactly the mapped spec and report
+     *         names.
+     */
+    @Override
+    public RoutingTable deriveRoutingTable() {
+        Set<String> reportNames = new HashSet<String>();
+        for (Map<String, List<Mapping>> byReport : mappings.values()) {
+            reportNames.addAll(byReport.keySet());
+        }
+        return new RoutingTable(mappings.keySet(), reportNames);
+    }
+}
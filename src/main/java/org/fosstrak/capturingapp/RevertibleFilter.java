@@ -0,0 +1,22 @@
+package org.fosstrak.capturingapp;
+
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+
+/**
+ * An {@link ECReportsFilter} keeping state about the reports it has passed
+ * on (eg. the tags already seen). When the handlers fail to process reports
+ * for good and the reports are put into the dead-letter queue, the capture
+ * application reverts the state the filter recorded for them, such that the
+ * tags are passed on again with the next event cycles instead of being
+ * suppressed as already known.
+ */
+public interface RevertibleFilter extends ECReportsFilter {
+
+    /**
+     * reverts the state recorded for reports the handlers could not process.
+     *
+     * @param reports the reports as passed on to the handlers (the result of
+     *                the last filter).
+     */
+    public void revert(ECReports reports);
+}
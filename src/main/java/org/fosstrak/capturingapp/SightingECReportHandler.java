@@ -0,0 +1,63 @@
+package org.fosstrak.capturingapp;
+
+import org.apache.log4j.Logger;
+import org.drools.runtime.StatefulKnowledgeSession;
+import org.drools.runtime.StatelessKnowledgeSession;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+import org.fosstrak.capturingapp.util.TagSighting;
+import org.fosstrak.capturingapp.util.Util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * handler inserting one {@link TagSighting} fact per tag and reader into the
+ * drools session in addition to the ECReports. Rules can then match on the
+ * fields of the sightings (spec name, report name, reader, ...) which drools
+ * indexes, instead of extracting the EPCs from the whole ECReports with
+ * <code>from</code> function calls. See
+ * <code>drools/SimpleWareHouse-Sightings.drl</code> for an example.<br/>
+ * The facts are inserted in bulk: a stateful session fires the rules once
+ * after all the facts have been inserted, a stateless session is executed
+ * with the whole batch of facts.
+ */
+public class SightingECReportHandler extends DefaultECReportHandler {
+
+    // logger
+    private static final Logger log = Logger.getLogger(SightingECReportHandler.class);
+
+    /**
+     * default constructor.
+     */
+    public SightingECReportHandler() {
+        super();
+    }
+
+    /**
+     * create a new handler with a non default change set.
+     *
+     * @param changeSet
+     */
+    public SightingECReportHandler(String changeSet) {
+        super(changeSet);
+    }
+
+    @Override
+    public void executeSession(ECReports reports) {
+        List<Object> facts = new ArrayList<Object>(
+                Util.countMembers(reports) + 1);
+        facts.add(reports);
+        TagSighting.extract(reports, facts);
+        log.debug(String.format("执行会话 (%d 个事实).", facts.size()));
+
+        if (ksession instanceof StatelessKnowledgeSession) {
+            ((StatelessKnowledgeSession) ksession).execute(facts);
+        } else if (ksession instanceof StatefulKnowledgeSession) {
+            StatefulKnowledgeSession sks = (StatefulKnowledgeSession) ksession;
+            for (Object fact : facts) {
+                sks.insert(fact);
+            }
+            sks.fireAllRules();
+        }
+    }
+}
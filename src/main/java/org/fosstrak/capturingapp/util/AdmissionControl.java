@@ -0,0 +1,358 @@
+package org.fosstrak.capturingapp.util;
+
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * admission control for the incoming reports of a capture application. Every
+ * source (address of the ALE) and every spec name gets a token bucket
+ * limiting the rate of the reports and a cap on the number of reports in
+ * flight (admitted, but not yet handled). A report is admitted only if both
+ * its source and its spec have a token and a free slot. Depending on the
+ * configuration a report over the limits is either rejected immediately or
+ * delayed up to a maximum time and rejected afterwards. A report arriving on
+ * a thread shared by all the sources (e.g. the accept thread of the listen
+ * socket) is never delayed, see {@link #admit(String, String, long)}.<br/>
+ * The check is meant to run on the raw report before it is deserialized,
+ * so a flooding producer costs as little as possible.<br/>
+ * The counters of sources and specs without reports in flight are evicted
+ * after {@link #IDLE_TIME} without reports (resp. the time the rate limit
+ * needs to refill, if longer), so the number of counters is bounded by the
+ * active sources and specs.
+ */
+public class AdmissionControl {
+
+    /**
+     * the counters of a source resp. a spec.
+     */
+    public static class Counters {
+        // rate limit (null = unlimited).
+        private final TokenBucket bucket;
+
+        // the number of reports in flight.
+        private int inFlight = 0;
+
+        // the time the counters have been used last in ms.
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong delayed = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        Counters(TokenBucket bucket) {
+            this.bucket = bucket;
+        }
+
+        /**
+         * @return the number of admitted reports.
+         */
+        public long getAdmitted() {
+            return admitted.get();
+        }
+
+        /**
+         * @return the number of delayed reports.
+         */
+        public long getDelayed() {
+            return delayed.get();
+        }
+
+        /**
+         * @return the number of rejected reports.
+         */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        /**
+         * @return the number of reports in flight.
+         */
+        public synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("admitted=%d, delayed=%d, rejected=%d, inFlight=%d",
+                    getAdmitted(), getDelayed(), getRejected(), getInFlight());
+        }
+    }
+
+    /**
+     * the key used for reports without spec name resp. source.
+     */
+    public static final String UNKNOWN = "?";
+
+    /**
+     * the minimum time in ms without reports before the counters of a source
+     * resp. a spec are evicted.
+     */
+    public static final long IDLE_TIME = 60000;
+
+    // logger
+    private static final Logger log = Logger.getLogger(AdmissionControl.class);
+
+    // the counters by source.
+    private final Map<String, Counters> sources =
+            new ConcurrentHashMap<String, Counters>();
+
+    // the counters by spec name.
+    private final Map<String, Counters> specs =
+            new ConcurrentHashMap<String, Counters>();
+
+    // the limits per source.
+    private double sourceRate = 0;
+    private int sourceBurst = 1;
+    private int sourceConcurrency = 0;
+
+    // the limits per spec.
+    private double specRate = 0;
+    private int specBurst = 1;
+    private int specConcurrency = 0;
+
+    // the maximum time in milliseconds a report is delayed (0 = reject).
+    private long maxDelay = 0;
+
+    // the time of the last eviction of idle counters in ms.
+    private long lastEviction = System.currentTimeMillis();
+
+    /**
+     * sets the limits per source.
+     *
+     * @param rate        reports per second (0 = unlimited).
+     * @param burst       the burst size of the rate limit.
+     * @param concurrency reports in flight (0 = unlimited).
+     */
+    public void setSourceLimits(double rate, int burst, int concurrency) {
+        this.sourceRate = rate;
+        this.sourceBurst = burst;
+        this.sourceConcurrency = concurrency;
+    }
+
+    /**
+     * sets the limits per spec.
+     *
+     * @param rate        reports per second (0 = unlimited).
+     * @param burst       the burst size of the rate limit.
+     * @param concurrency reports in flight (0 = unlimited).
+     */
+    public void setSpecLimits(double rate, int burst, int concurrency) {
+        this.specRate = rate;
+        this.specBurst = burst;
+        this.specConcurrency = concurrency;
+    }
+
+    /**
+     * @param maxDelay the maximum time in milliseconds a report over the
+     *                 limits is delayed before it is rejected (0 = reject
+     *                 immediately).
+     */
+    public void setMaxDelay(long maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * @return the maximum time in milliseconds a report over the limits is
+     *         delayed before it is rejected.
+     */
+    public long getMaxDelay() {
+        return maxDelay;
+    }
+
+    /**
+     * admits a report, delaying it up to the configured maximum time. an
+     * admitted report must be released with {@link #release(String, String)}
+     * once it has been handled.
+     *
+     * @param source the source of the report.
+     * @param spec   the spec name of the report.
+     * @return true if the report is admitted, false if it is rejected.
+     */
+    public boolean admit(String source, String spec) {
+        return admit(source, spec, maxDelay);
+    }
+
+    /**
+     * admits a report. the calling thread sleeps while the report is
+     * delayed, a thread shared by several sources must pass 0, such that a
+     * throttled source does not stall the others.
+     *
+     * @param source   the source of the report.
+     * @param spec     the spec name of the report.
+     * @param maxDelay the maximum time in milliseconds the report is delayed
+     *                 before it is rejected (0 = reject immediately).
+     * @return true if the report is admitted, false if it is rejected.
+     */
+    public boolean admit(String source, String spec, long maxDelay) {
+        evictIdle(System.currentTimeMillis());
+        final Counters src = counters(sources, key(source), sourceRate, sourceBurst);
+        final Counters sp = counters(specs, key(spec), specRate, specBurst);
+        final long deadline = System.currentTimeMillis() + maxDelay;
+        boolean delayed = false;
+
+        while (true) {
+            final long now = System.currentTimeMillis();
+            final long wait = tryAdmit(src, sp, now);
+            if (0 == wait) {
+                src.admitted.incrementAndGet();
+                sp.admitted.incrementAndGet();
+                return true;
+            }
+            if (now >= deadline) {
+                src.rejected.incrementAndGet();
+                sp.rejected.incrementAndGet();
+                log.debug(String.format("拒绝报告 %s 来自 %s.", spec, source));
+                return false;
+            }
+            if (!delayed) {
+                delayed = true;
+                src.delayed.incrementAndGet();
+                sp.delayed.incrementAndGet();
+            }
+            try {
+                Thread.sleep(Math.max(1, Math.min(wait, deadline - now)));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * releases the slots of an admitted report.
+     *
+     * @param source the source of the report.
+     * @param spec   the spec name of the report.
+     */
+    public void release(String source, String spec) {
+        decrement(sources.get(key(source)));
+        decrement(specs.get(key(spec)));
+    }
+
+    /**
+     * @return the counters by source.
+     */
+    public Map<String, Counters> getSourceCounters() {
+        return Collections.unmodifiableMap(sources);
+    }
+
+    /**
+     * @return the counters by spec name.
+     */
+    public Map<String, Counters> getSpecCounters() {
+        return Collections.unmodifiableMap(specs);
+    }
+
+    /**
+     * takes a token and a slot of the source and the spec if both have one.
+     *
+     * @return 0 if admitted, otherwise the time to wait in milliseconds.
+     */
+    private synchronized long tryAdmit(Counters src, Counters sp, long now) {
+        src.lastUsed = now;
+        sp.lastUsed = now;
+        long wait = 0;
+        if ((sourceConcurrency > 0) && (src.getInFlight() >= sourceConcurrency)) {
+            wait = 10;
+        }
+        if ((specConcurrency > 0) && (sp.getInFlight() >= specConcurrency)) {
+            wait = 10;
+        }
+        if (null != src.bucket) {
+            wait = Math.max(wait, src.bucket.waitTime(now));
+        }
+        if (null != sp.bucket) {
+            wait = Math.max(wait, sp.bucket.waitTime(now));
+        }
+        if (wait > 0) {
+            return wait;
+        }
+        if (null != src.bucket) src.bucket.tryTake(now);
+        if (null != sp.bucket) sp.bucket.tryTake(now);
+        synchronized (src) {
+            src.inFlight++;
+        }
+        synchronized (sp) {
+            sp.inFlight++;
+        }
+        return 0;
+    }
+
+    /**
+     * evicts the counters without reports in flight that have not been used
+     * for the idle time. runs at most once per {@link #IDLE_TIME}.
+     *
+     * @param now the current time in ms.
+     */
+    private synchronized void evictIdle(long now) {
+        if (now - lastEviction < IDLE_TIME) {
+            return;
+        }
+        lastEviction = now;
+        final int n = evictIdle(sources, idleTime(sourceRate, sourceBurst), now) +
+                evictIdle(specs, idleTime(specRate, specBurst), now);
+        if (n > 0) {
+            log.debug(String.format("删除 %d 个空闲的准入计数器.", n));
+        }
+    }
+
+    /**
+     * @return the number of evicted counters.
+     */
+    private static int evictIdle(Map<String, Counters> map, long idle,
+                                 long now) {
+        int n = 0;
+        final Iterator<Counters> it = map.values().iterator();
+        while (it.hasNext()) {
+            final Counters c = it.next();
+            if ((now - c.lastUsed >= idle) && (0 == c.getInFlight())) {
+                it.remove();
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * @return the time without reports after which the counters are evicted
+     *         (at least the time the rate limit needs to refill, such that an
+     *         evicted source does not get additional tokens).
+     */
+    private static long idleTime(double rate, int burst) {
+        return (rate > 0) ?
+                Math.max(IDLE_TIME, (long) Math.ceil(burst * 1000 / rate)) :
+                IDLE_TIME;
+    }
+
+    private static void decrement(Counters c) {
+        if (null != c) {
+            synchronized (c) {
+                if (c.inFlight > 0) c.inFlight--;
+            }
+        }
+    }
+
+    private static String key(String key) {
+        return (null == key) ? UNKNOWN : key;
+    }
+
+    private static Counters counters(Map<String, Counters> map, String key,
+                                     double rate, int burst) {
+        Counters c = map.get(key);
+        if (null == c) {
+            synchronized (map) {
+                c = map.get(key);
+                if (null == c) {
+                    c = new Counters((rate > 0) ? new TokenBucket(rate, burst) : null);
+                    map.put(key, c);
+                }
+            }
+        }
+        return c;
+    }
+}
@@ -42,11 +42,21 @@ public class CaptureAppWorker {
     }
 
     /**
-     * stop the execution of the worker.
+     * stop the execution of the worker, the queued items are worked off.
      */
     public void stop() {
+        stop(true);
+    }
+
+    /**
+     * stop the execution of the worker.
+     *
+     * @param drain true to work off the queued items, false to keep them for
+     *              a handover (see {@link CaptureApp#transferTo(CaptureApp)}).
+     */
+    public void stop(boolean drain) {
         try {
-            captureApp.stopCaptureApp();
+            captureApp.stopCaptureApp(CaptureApp.DEFAULT_STOP_TIMEOUT, drain);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,225 @@
+package org.fosstrak.capturingapp.util;
+
+import org.apache.log4j.Logger;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * circuit breaker guarding the calls to a remote endpoint (e.g. the query
+ * interface of the EPCIS repository called from the rules). After a number of
+ * consecutive failures the breaker opens and {@link #allowRequest()} fails
+ * fast for a while. Once that time has passed one trial request is let
+ * through (half open): a success closes the breaker again, a failure opens it
+ * for another period.<br/>
+ * Usage from a rule helper function:
+ * <pre>
+ * CircuitBreaker breaker = CircuitBreaker.forEndpoint(queryURL);
+ * breaker.checkRequest();
+ * try {
+ *     ... client.poll(q) ...
+ *     breaker.recordSuccess();
+ * } catch (Exception e) {
+ *     breaker.recordFailure();
+ *     throw new IllegalStateException(e);
+ * }
+ * </pre>
+ * The helper functions throw instead of returning partial results, such that
+ * the capture application retries the reports resp. puts them into the
+ * dead-letter queue.
+ */
+public class CircuitBreaker {
+
+    /**
+     * the default number of consecutive failures opening the breaker.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+    /**
+     * the default time in milliseconds the breaker stays open.
+     */
+    public static final long DEFAULT_OPEN_TIME = 30000;
+
+    /**
+     * the states of a circuit breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    // logger
+    private static final Logger log = Logger.getLogger(CircuitBreaker.class);
+
+    // the circuit breakers by endpoint.
+    private static final Map<String, CircuitBreaker> breakers =
+            new ConcurrentHashMap<String, CircuitBreaker>();
+
+    // the settings for new circuit breakers.
+    private static volatile int defaultFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+    private static volatile long defaultOpenTime = DEFAULT_OPEN_TIME;
+
+    // the endpoint guarded by the breaker.
+    private final String endpoint;
+
+    // number of consecutive failures opening the breaker.
+    private final int failureThreshold;
+
+    // time in milliseconds the breaker stays open.
+    private final long openTime;
+
+    // the current state.
+    private State state = State.CLOSED;
+
+    // the number of consecutive failures.
+    private int failures = 0;
+
+    // the time when the breaker has been opened.
+    private long openedAt = 0;
+
+    // the number of requests rejected while open.
+    private long rejected = 0;
+
+    /**
+     * create a new circuit breaker.
+     *
+     * @param endpoint         the endpoint guarded by the breaker.
+     * @param failureThreshold number of consecutive failures opening the breaker.
+     * @param openTime         time in milliseconds the breaker stays open.
+     */
+    public CircuitBreaker(String endpoint, int failureThreshold, long openTime) {
+        this.endpoint = endpoint;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openTime = openTime;
+    }
+
+    /**
+     * sets the settings for circuit breakers created afterwards.
+     *
+     * @param failureThreshold number of consecutive failures opening a breaker.
+     * @param openTime         time in milliseconds a breaker stays open.
+     */
+    public static void configure(int failureThreshold, long openTime) {
+        defaultFailureThreshold = failureThreshold;
+        defaultOpenTime = openTime;
+    }
+
+    /**
+     * @param endpoint the endpoint (e.g. the URL of the query interface).
+     * @return the circuit breaker of the endpoint.
+     */
+    public static CircuitBreaker forEndpoint(String endpoint) {
+        CircuitBreaker breaker = breakers.get(endpoint);
+        if (null == breaker) {
+            synchronized (breakers) {
+                breaker = breakers.get(endpoint);
+                if (null == breaker) {
+                    breaker = new CircuitBreaker(endpoint,
+                            defaultFailureThreshold, defaultOpenTime);
+                    breakers.put(endpoint, breaker);
+                }
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * @return an unmodifiable view of all the registered circuit breakers.
+     */
+    public static Map<String, CircuitBreaker> getBreakers() {
+        return Collections.unmodifiableMap(breakers);
+    }
+
+    /**
+     * checks whether a request to the endpoint may be sent.
+     *
+     * @return false if the breaker is open (or a trial request is pending).
+     */
+    public synchronized boolean allowRequest() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (System.currentTimeMillis() - openedAt >= openTime) {
+                    // let one trial request pass.
+                    state = State.HALF_OPEN;
+                    return true;
+                }
+                rejected++;
+                return false;
+            default:
+                // a trial request is already on its way.
+                rejected++;
+                return false;
+        }
+    }
+
+    /**
+     * checks whether a request to the endpoint may be sent and whether the
+     * executing thread is still expected to send it.
+     *
+     * @throws IllegalStateException when the breaker is open or the thread
+     *                               has been interrupted (e.g. the handler
+     *                               exceeded its deadline).
+     */
+    public void checkRequest() throws IllegalStateException {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new IllegalStateException("执行已取消: " + endpoint);
+        }
+        if (!allowRequest()) {
+            throw new IllegalStateException("断路器打开: " + endpoint);
+        }
+    }
+
+    /**
+     * records a successful request.
+     */
+    public synchronized void recordSuccess() {
+        if (State.CLOSED != state) {
+            log.info(String.format("断路器关闭: %s", endpoint));
+        }
+        state = State.CLOSED;
+        failures = 0;
+    }
+
+    /**
+     * records a failed request.
+     */
+    public synchronized void recordFailure() {
+        failures++;
+        if ((State.HALF_OPEN == state) || (failures >= failureThreshold)) {
+            if (State.OPEN != state) {
+                log.warn(String.format("断路器打开: %s (%d 次失败)",
+                        endpoint, failures));
+            }
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return the current state.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the number of requests rejected while open.
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return the endpoint guarded by the breaker.
+     */
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %s", endpoint, getState());
+    }
+}
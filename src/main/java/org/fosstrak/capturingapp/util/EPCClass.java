@@ -0,0 +1,124 @@
+package org.fosstrak.capturingapp.util;
+
+/**
+ * helper to derive the EPC class (company prefix and item reference) of an
+ * SGTIN. The following representations are understood:
+ * <ul>
+ * <li>raw hex as selected by {@link Util#selectRawHex}, eg.
+ * <code>urn:epc:raw:96.x3074257BF7194E4000001A85</code></li>
+ * <li>raw decimal as selected by {@link Util#selectRawDecimal}, eg.
+ * <code>urn:epc:raw:96.15028...</code></li>
+ * <li>pure identity URN, eg. <code>urn:epc:id:sgtin:0614141.812345.6789</code></li>
+ * <li>tag URN, eg. <code>urn:epc:tag:sgtin-96:3.0614141.812345.6789</code></li>
+ * </ul>
+ * The class is returned as EPC pattern URN, eg.
+ * <code>urn:epc:idpat:sgtin:0614141.812345.*</code>.
+ */
+public final class EPCClass {
+
+    /**
+     * the header of an SGTIN-96.
+     */
+    public static final int SGTIN_96_HEADER = 0x30;
+
+    /**
+     * prefix of the EPC class pattern URNs.
+     */
+    public static final String SGTIN_PATTERN_PREFIX = "urn:epc:idpat:sgtin:";
+
+    // SGTIN partition table: company prefix bits and digits, item reference
+    // (including the indicator digit) bits and digits per partition value.
+    static final int[] CP_BITS = {40, 37, 34, 30, 27, 24, 20};
+    static final int[] CP_DIGITS = {12, 11, 10, 9, 8, 7, 6};
+    static final int[] IR_BITS = {4, 7, 10, 14, 17, 20, 24};
+    static final int[] IR_DIGITS = {1, 2, 3, 4, 5, 6, 7};
+
+    private EPCClass() {
+    }
+
+    /**
+     * derives the EPC class of an EPC.
+     *
+     * @param epc the EPC in one of the supported representations.
+     * @return the EPC class pattern URN or null if the EPC is not an SGTIN.
+     */
+    public static String of(String epc) {
+        if (null == epc) {
+            return null;
+        }
+        if (epc.startsWith("urn:epc:id:sgtin:")) {
+            return fromURN(epc, "urn:epc:id:sgtin:".length());
+        }
+        if (epc.startsWith("urn:epc:tag:sgtin-96:")) {
+            // skip the filter value.
+            int dot = epc.indexOf('.', "urn:epc:tag:sgtin-96:".length());
+            return (dot < 0) ? null : fromURN(epc, dot + 1);
+        }
+        if (epc.startsWith("urn:epc:raw:")) {
+            return fromRaw(epc);
+        }
+        return null;
+    }
+
+    /**
+     * @param urn   a pure identity or tag URN.
+     * @param start the position of the company prefix.
+     * @return the class pattern.
+     */
+    private static String fromURN(String urn, int start) {
+        int first = urn.indexOf('.', start);
+        if (first < 0) return null;
+        int second = urn.indexOf('.', first + 1);
+        if (second < 0) return null;
+        return SGTIN_PATTERN_PREFIX + urn.substring(start, second + 1) + "*";
+    }
+
+    /**
+     * @param raw a raw hex or raw decimal URN.
+     * @return the class pattern.
+     */
+    private static String fromRaw(String raw) {
+        EPCValue value = EPCValue.parse(raw);
+        if (96 != value.getBits()) return null;
+        return fromBits(value.getHi(), value.getLo());
+    }
+
+    /**
+     * decodes the class of an SGTIN-96 given as two longs.
+     *
+     * @param hi the upper 32 bits of the tag.
+     * @param lo the lower 64 bits of the tag.
+     * @return the class pattern or null if the tag is not an SGTIN-96.
+     */
+    static String fromBits(long hi, long lo) {
+        if (SGTIN_96_HEADER != (int) ((hi >>> 24) & 0xff)) return null;
+        final int partition = (int) ((hi >>> 18) & 0x7);
+        if (partition >= CP_BITS.length) return null;
+
+        // company prefix and item reference occupy 44 bits right after the
+        // header (8), filter (3) and partition (3) bits, followed by the
+        // 38 bits serial number.
+        final long classBits = ((hi & 0x3ffffL) << 26) | (lo >>> 38);
+        final long itemRef = classBits & ((1L << IR_BITS[partition]) - 1);
+        final long companyPrefix = classBits >>> IR_BITS[partition];
+
+        StringBuilder b = new StringBuilder(SGTIN_PATTERN_PREFIX.length() + 16);
+        b.append(SGTIN_PATTERN_PREFIX);
+        pad(b, companyPrefix, CP_DIGITS[partition]);
+        b.append('.');
+        pad(b, itemRef, IR_DIGITS[partition]);
+        b.append(".*");
+        return b.toString();
+    }
+
+    /**
+     * appends a number zero padded to the given number of digits.
+     */
+    static void pad(StringBuilder b, long value, int digits) {
+        String s = Long.toString(value);
+        for (int i = s.length(); i < digits; i++) {
+            b.append('0');
+        }
+        b.append(s);
+    }
+}
@@ -0,0 +1,319 @@
+package org.fosstrak.capturingapp.util;
+
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReportGroupListMember;
+import org.fosstrak.ale.xsd.epcglobal.EPC;
+
+/**
+ * compact, immutable representation of an EPC for internal processing. Tags
+ * of up to 128 bits are stored as two primitive longs (<code>hi</code> holds
+ * the upper, <code>lo</code> the lower 64 bits). Longer encodings and URNs
+ * that cannot be encoded are kept in an overflow form holding the original
+ * string.<br/>
+ * The parsers understand the representations delivered in an
+ * <code>ECReportGroupListMember</code>:
+ * <ul>
+ * <li>raw hex, eg. <code>urn:epc:raw:96.x3074257BF7194E4000001A85</code></li>
+ * <li>raw decimal, eg. <code>urn:epc:raw:96.15028...</code></li>
+ * <li>SGTIN-96 tag URNs, eg. <code>urn:epc:tag:sgtin-96:3.0614141.812345.6789</code></li>
+ * <li>SGTIN pure identity URNs, eg. <code>urn:epc:id:sgtin:0614141.812345.6789</code>
+ * (encoded as SGTIN-96 with filter value 0)</li>
+ * </ul>
+ * Notice that values parsed from different representations of the same tag
+ * are only equal if the representations carry the same information (a pure
+ * identity URN does not carry the filter value).
+ */
+public final class EPCValue {
+
+    // prefix of the raw representations.
+    private static final String RAW = "urn:epc:raw:";
+
+    // prefix of the SGTIN-96 tag URN.
+    private static final String SGTIN_96_TAG = "urn:epc:tag:sgtin-96:";
+
+    // prefix of the SGTIN pure identity URN.
+    private static final String SGTIN_ID = "urn:epc:id:sgtin:";
+
+    // mask for a 32 bit limb.
+    private static final long LIMB = 0xffffffffL;
+
+    // the upper 64 bits.
+    private final long hi;
+
+    // the lower 64 bits.
+    private final long lo;
+
+    // the number of bits of the encoding (0 for the overflow form).
+    private final int bits;
+
+    // the original string if the value could not be encoded.
+    private final String overflow;
+
+    private EPCValue(long hi, long lo, int bits) {
+        this.hi = hi;
+        this.lo = lo;
+        this.bits = bits;
+        this.overflow = null;
+    }
+
+    private EPCValue(String overflow) {
+        this.hi = 0;
+        this.lo = 0;
+        this.bits = 0;
+        this.overflow = overflow;
+    }
+
+    /**
+     * create a value from its binary encoding.
+     *
+     * @param hi   the upper 64 bits.
+     * @param lo   the lower 64 bits.
+     * @param bits the number of bits of the encoding (1..128).
+     * @return the value.
+     */
+    public static EPCValue of(long hi, long lo, int bits) {
+        if ((bits <= 0) || (bits > 128)) {
+            throw new IllegalArgumentException("invalid length: " + bits);
+        }
+        return new EPCValue(hi, lo, bits);
+    }
+
+    /**
+     * create a value from a member. the raw hex representation is preferred
+     * as it is the cheapest to parse, followed by raw decimal, tag and epc.
+     *
+     * @param member the member.
+     * @return the value or null if the member does not carry any EPC.
+     */
+    public static EPCValue of(ECReportGroupListMember member) {
+        EPC epc = member.getRawHex();
+        if (null == epc) epc = member.getRawDecimal();
+        if (null == epc) epc = member.getTag();
+        if (null == epc) epc = member.getEpc();
+        return (null == epc) ? null : parse(epc.getValue());
+    }
+
+    /**
+     * parses an EPC in one of the supported representations.
+     *
+     * @param epc the EPC.
+     * @return the value (never null, unknown representations are kept in
+     *         the overflow form).
+     */
+    public static EPCValue parse(String epc) {
+        if (null == epc) {
+            throw new IllegalArgumentException("epc must not be null");
+        }
+        EPCValue value = null;
+        if (epc.startsWith(RAW)) {
+            value = parseRaw(epc);
+        } else if (epc.startsWith(SGTIN_96_TAG)) {
+            value = parseSGTIN(epc, SGTIN_96_TAG.length(), true);
+        } else if (epc.startsWith(SGTIN_ID)) {
+            value = parseSGTIN(epc, SGTIN_ID.length(), false);
+        }
+        return (null == value) ? new EPCValue(epc) : value;
+    }
+
+    /**
+     * parses <code>urn:epc:raw:LENGTH.xHEX</code> or
+     * <code>urn:epc:raw:LENGTH.DECIMAL</code>.
+     */
+    private static EPCValue parseRaw(String raw) {
+        int i = RAW.length();
+        int length = 0;
+        while ((i < raw.length()) && (raw.charAt(i) != '.')) {
+            int d = raw.charAt(i++) - '0';
+            if ((d < 0) || (d > 9) || (length > 128)) return null;
+            length = length * 10 + d;
+        }
+        if ((length <= 0) || (length > 128) || (++i >= raw.length())) return null;
+
+        if ((raw.charAt(i) == 'x') || (raw.charAt(i) == 'X')) {
+            return parseHex(raw, i + 1, length);
+        }
+        return parseDecimal(raw, i, length);
+    }
+
+    private static EPCValue parseHex(String s, int from, int length) {
+        final int digits = s.length() - from;
+        if ((digits <= 0) || (digits > 32)) return null;
+        long h = 0;
+        long l = 0;
+        for (int i = from; i < s.length(); i++) {
+            int d = Character.digit(s.charAt(i), 16);
+            if (d < 0) return null;
+            h = (h << 4) | (l >>> 60);
+            l = (l << 4) | d;
+        }
+        return new EPCValue(h, l, length);
+    }
+
+    private static EPCValue parseDecimal(String s, int from, int length) {
+        // 128 bit accumulator in four 32 bit limbs, l0 is the lowest.
+        long l0 = 0, l1 = 0, l2 = 0, l3 = 0;
+        for (int i = from; i < s.length(); i++) {
+            int d = s.charAt(i) - '0';
+            if ((d < 0) || (d > 9)) return null;
+            l0 = l0 * 10 + d;
+            l1 = l1 * 10 + (l0 >>> 32);
+            l0 &= LIMB;
+            l2 = l2 * 10 + (l1 >>> 32);
+            l1 &= LIMB;
+            l3 = l3 * 10 + (l2 >>> 32);
+            l2 &= LIMB;
+            if (l3 > LIMB) return null;
+        }
+        return new EPCValue((l3 << 32) | l2, (l1 << 32) | l0, length);
+    }
+
+    /**
+     * parses the part <code>[FILTER.]COMPANYPREFIX.ITEMREF.SERIAL</code> of
+     * an SGTIN URN and encodes it as SGTIN-96.
+     */
+    private static EPCValue parseSGTIN(String urn, int from, boolean withFilter) {
+        long filter = 0;
+        int pos = from;
+        if (withFilter) {
+            int dot = urn.indexOf('.', pos);
+            if (dot < 0) return null;
+            filter = parseDigits(urn, pos, dot);
+            pos = dot + 1;
+        }
+        int dot1 = urn.indexOf('.', pos);
+        if (dot1 < 0) return null;
+        int dot2 = urn.indexOf('.', dot1 + 1);
+        if (dot2 < 0) return null;
+
+        final int cpDigits = dot1 - pos;
+        int partition = -1;
+        for (int p = 0; p < EPCClass.CP_DIGITS.length; p++) {
+            if (EPCClass.CP_DIGITS[p] == cpDigits) partition = p;
+        }
+        if ((partition < 0) || (filter < 0) || (filter > 7)) return null;
+
+        final long cp = parseDigits(urn, pos, dot1);
+        final long ir = parseDigits(urn, dot1 + 1, dot2);
+        final long serial = parseDigits(urn, dot2 + 1, urn.length());
+        if ((cp < 0) || (ir < 0) || (serial < 0) ||
+                (cp >= (1L << EPCClass.CP_BITS[partition])) ||
+                (ir >= (1L << EPCClass.IR_BITS[partition])) ||
+                (serial >= (1L << 38)) ||
+                // SGTIN-96 serials must not have leading zeros.
+                ((dot2 + 2 < urn.length()) && (urn.charAt(dot2 + 1) == '0'))) {
+            return null;
+        }
+
+        final long classBits = (cp << EPCClass.IR_BITS[partition]) | ir;
+        final long h = ((long) EPCClass.SGTIN_96_HEADER << 24) | (filter << 21) |
+                ((long) partition << 18) | (classBits >>> 26);
+        final long l = ((classBits & ((1L << 26) - 1)) << 38) | serial;
+        return new EPCValue(h, l, 96);
+    }
+
+    /**
+     * @return the number parsed from the digits between from and to or -1
+     *         if there are no digits, other characters or too many digits.
+     */
+    private static long parseDigits(String s, int from, int to) {
+        if ((to <= from) || (to - from > 18)) return -1;
+        long v = 0;
+        for (int i = from; i < to; i++) {
+            int d = s.charAt(i) - '0';
+            if ((d < 0) || (d > 9)) return -1;
+            v = v * 10 + d;
+        }
+        return v;
+    }
+
+    /**
+     * @return true if the value could not be encoded in two longs.
+     */
+    public boolean isOverflow() {
+        return null != overflow;
+    }
+
+    /**
+     * @return the upper 64 bits.
+     */
+    public long getHi() {
+        return hi;
+    }
+
+    /**
+     * @return the lower 64 bits.
+     */
+    public long getLo() {
+        return lo;
+    }
+
+    /**
+     * @return the number of bits of the encoding (0 for the overflow form).
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * @return the EPC class pattern if the value is an SGTIN-96, null
+     *         otherwise.
+     */
+    public String getEPCClass() {
+        if (96 != bits) {
+            return (null == overflow) ? null : EPCClass.of(overflow);
+        }
+        return EPCClass.fromBits(hi, lo);
+    }
+
+    /**
+     * combines the value into a 64 bit fingerprint.
+     *
+     * @param seed a previous fingerprint (see {@link Util#fingerprint(long, String)}).
+     * @return the new fingerprint.
+     */
+    public long fingerprint(long seed) {
+        if (null != overflow) {
+            return Util.fingerprint(seed, overflow);
+        }
+        long h = seed ^ bits;
+        h = (h ^ hi) * 0x9E3779B97F4A7C15L;
+        h = (h ^ (h >>> 29) ^ lo) * 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 32);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof EPCValue)) return false;
+        EPCValue v = (EPCValue) o;
+        if (null != overflow) return overflow.equals(v.overflow);
+        return (null == v.overflow) && (hi == v.hi) && (lo == v.lo) &&
+                (bits == v.bits);
+    }
+
+    @Override
+    public int hashCode() {
+        long h = fingerprint(0);
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the raw hex representation (or the original string for the
+     *         overflow form).
+     */
+    @Override
+    public String toString() {
+        if (null != overflow) {
+            return overflow;
+        }
+        final int digits = (bits + 3) / 4;
+        char[] c = new char[digits];
+        long h = hi;
+        long l = lo;
+        for (int i = digits - 1; i >= 0; i--) {
+            c[i] = Character.toUpperCase(Character.forDigit((int) (l & 0xf), 16));
+            l = (l >>> 4) | (h << 60);
+            h >>>= 4;
+        }
+        return RAW + bits + ".x" + new String(c);
+    }
+}
@@ -0,0 +1,107 @@
+package org.fosstrak.capturingapp.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * lock-free latency histogram with power of two buckets. Bucket
+ * <code>i</code> counts the durations in <code>[2^(i-1), 2^i)</code>
+ * nanoseconds, so recording is one array increment and the percentiles are
+ * exact up to a factor of two, which is sufficient to spot a regression or
+ * a stalled stage.
+ */
+public class LatencyHistogram {
+
+    // the number of buckets (durations up to 2^63 ns).
+    private static final int BUCKETS = 64;
+
+    // the counts of the buckets.
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    // the number of recorded durations.
+    private final AtomicLong count = new AtomicLong();
+
+    // the sum of the recorded durations in ns.
+    private final AtomicLong sum = new AtomicLong();
+
+    // the longest recorded duration in ns.
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * records a duration.
+     *
+     * @param nanos the duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        buckets.incrementAndGet(Math.min(BUCKETS - 1,
+                64 - Long.numberOfLeadingZeros(nanos)));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+        long m = max.get();
+        while ((nanos > m) && !max.compareAndSet(m, nanos)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * records the time elapsed since a start time.
+     *
+     * @param startNanos the start time as of {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the number of recorded durations.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean duration in milliseconds.
+     */
+    public double getMean() {
+        final long c = count.get();
+        return (0 == c) ? 0 : (sum.get() / (double) c) / 1000000.0;
+    }
+
+    /**
+     * @return the longest duration in milliseconds.
+     */
+    public double getMax() {
+        return max.get() / 1000000.0;
+    }
+
+    /**
+     * @param p the percentile (0 - 100).
+     * @return the upper bound of the bucket holding the percentile in
+     *         milliseconds.
+     */
+    public double getPercentile(double p) {
+        final long c = count.get();
+        if (0 == c) {
+            return 0;
+        }
+        final long rank = (long) Math.ceil(c * p / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return Math.min(1L << i, max.get()) / 1000000.0;
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d, mean=%.3f, p50=%.3f, p99=%.3f, max=%.3f ms",
+                getCount(), getMean(), getPercentile(50), getPercentile(99),
+                getMax());
+    }
+}
@@ -0,0 +1,200 @@
+package org.fosstrak.capturingapp.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * a bounded set of 64 bit keys remembering each key for a sliding time
+ * window. keys and time stamps are stored in two primitive arrays using open
+ * addressing with linear probing. the number of probes per operation is
+ * limited, therefore the memory never grows beyond the capacity given at
+ * construction: when neither a free nor an expired slot is found within the
+ * probe sequence, the oldest entry of the sequence is evicted.<br/>
+ * The live entries can be saved in a {@link StateSnapshot}. the time stamps
+ * are wall clock times, so the window continues after a restart.
+ */
+public class LongHashWindow implements Snapshotable {
+
+    // maximum number of slots inspected per operation.
+    private static final int MAX_PROBES = 16;
+
+    // time stamp marking a slot that has never been used.
+    private static final long FREE = 0L;
+
+    // time stamp of a removed key: expired, but keeps the probe sequence.
+    private static final long REMOVED = 1L;
+
+    // the keys.
+    private final long[] keys;
+
+    // the time stamps when the keys have been recorded.
+    private final long[] stamps;
+
+    // mask to map a hash to a slot.
+    private final int mask;
+
+    // the length of the time window in milliseconds.
+    private final long window;
+
+    // number of live entries evicted because the probe sequence was full.
+    private long evictions = 0;
+
+    /**
+     * create a new window.
+     *
+     * @param capacity the number of slots (rounded up to a power of two).
+     * @param window   the length of the time window in milliseconds.
+     */
+    public LongHashWindow(int capacity, long window) {
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+        this.keys = new long[size];
+        this.stamps = new long[size];
+        this.mask = size - 1;
+        this.window = window;
+    }
+
+    /**
+     * records a key at the given time.
+     *
+     * @param key the key to record.
+     * @param now the current time in milliseconds.
+     * @return true if the key has not been recorded within the time window,
+     *         false if the key is a repetition.
+     */
+    public synchronized boolean add(long key, long now) {
+        final int start = slot(key);
+        int victim = -1;
+        boolean reusable = false;
+        for (int p = 0; p < MAX_PROBES; p++) {
+            final int i = (start + p) & mask;
+            final long stamp = stamps[i];
+            if (FREE == stamp) {
+                // slots are never released, so the key cannot be further down.
+                if (!reusable) {
+                    victim = i;
+                }
+                break;
+            }
+            if (keys[i] == key) {
+                if (now - stamp < window) {
+                    return false;
+                }
+                stamps[i] = now;
+                return true;
+            }
+            if (!reusable) {
+                if (now - stamp >= window) {
+                    victim = i;
+                    reusable = true;
+                } else if ((-1 == victim) || (stamp < stamps[victim])) {
+                    victim = i;
+                }
+            }
+        }
+        if ((FREE != stamps[victim]) && (now - stamps[victim] < window)) {
+            evictions++;
+        }
+        keys[victim] = key;
+        stamps[victim] = now;
+        return true;
+    }
+
+    /**
+     * forgets a key, such that it is new the next time it is added.
+     *
+     * @param key the key to forget.
+     */
+    public synchronized void remove(long key) {
+        final int start = slot(key);
+        for (int p = 0; p < MAX_PROBES; p++) {
+            final int i = (start + p) & mask;
+            if (FREE == stamps[i]) {
+                return;
+            }
+            if (keys[i] == key) {
+                // not FREE, the keys further down must stay reachable.
+                stamps[i] = REMOVED;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the number of slots.
+     */
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the length of the time window in milliseconds.
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    /**
+     * @return the number of live entries that have been evicted.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * removes all the keys.
+     */
+    public synchronized void clear() {
+        Arrays.fill(stamps, FREE);
+    }
+
+    /**
+     * writes the live entries: their number followed by the keys and time
+     * stamps.
+     *
+     * @param out where to write the entries.
+     * @throws IOException when the entries could not be written.
+     */
+    public synchronized void writeState(DataOutput out) throws IOException {
+        final long now = System.currentTimeMillis();
+        int n = 0;
+        for (long stamp : stamps) {
+            if ((FREE != stamp) && (now - stamp < window)) n++;
+        }
+        out.writeInt(n);
+        for (int i = 0; i < keys.length; i++) {
+            if ((FREE != stamps[i]) && (now - stamps[i] < window)) {
+                out.writeLong(keys[i]);
+                out.writeLong(stamps[i]);
+            }
+        }
+    }
+
+    /**
+     * adds the entries written by {@link #writeState(DataOutput)} that are
+     * still within the time window.
+     *
+     * @param in the entries.
+     */
+    public synchronized void readState(ByteBuffer in) {
+        final long now = System.currentTimeMillis();
+        final int n = in.getInt();
+        for (int i = 0; i < n; i++) {
+            final long key = in.getLong();
+            final long stamp = in.getLong();
+            if (now - stamp < window) {
+                add(key, stamp);
+            }
+        }
+    }
+
+    /**
+     * @param key a key.
+     * @return the first slot of the probe sequence for the key.
+     */
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,242 @@
+package org.fosstrak.capturingapp.util;
+
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * a set of FIFO queues (lanes) served by smooth weighted round-robin. Every
+ * lane with pending elements gets a share of the polls proportional to its
+ * weight: a heavy lane is served most of the time, yet a light lane is
+ * guaranteed its share and never starves. Empty lanes are skipped, so with
+ * a single lane the queue behaves like a plain FIFO.<br/>
+ * The lanes are guarded by a lock instead of a monitor, so consumers waiting
+ * in {@link #awaitElements(long)} do not pin the carrier of a virtual thread.
+ *
+ * @param <T> the type of the queued elements.
+ */
+public class PriorityLanes<T> {
+
+    // the queues of the lanes.
+    private final LinkedList<Node<T>>[] queues;
+
+    // the weights of the lanes.
+    private final int[] weights;
+
+    // the current credit of the lanes (smooth weighted round-robin).
+    private final int[] credits;
+
+    // guards the lanes.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // signalled when an element is added.
+    private final Condition notEmpty = lock.newCondition();
+
+    // the number of queued elements.
+    private int size = 0;
+
+    // incremented by wakeUp, ends the waits in progress.
+    private int wakeUps = 0;
+
+    // records the time the elements spent in the lanes (may be null).
+    private volatile LatencyHistogram waitHistogram = null;
+
+    /**
+     * a queued element with the time it has been queued.
+     */
+    private static final class Node<T> {
+        final T element;
+        final long queued;
+
+        Node(T element, long queued) {
+            this.element = element;
+            this.queued = queued;
+        }
+    }
+
+    /**
+     * create a single FIFO lane.
+     */
+    public PriorityLanes() {
+        this(new int[]{1});
+    }
+
+    /**
+     * create new lanes.
+     *
+     * @param weights the weights of the lanes (at least 1 each).
+     */
+    @SuppressWarnings("unchecked")
+    public PriorityLanes(int[] weights) {
+        if ((null == weights) || (0 == weights.length)) {
+            throw new IllegalArgumentException("至少需要一个通道");
+        }
+        this.weights = new int[weights.length];
+        this.credits = new int[weights.length];
+        this.queues = new LinkedList[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            this.weights[i] = Math.max(1, weights[i]);
+            this.queues[i] = new LinkedList<Node<T>>();
+        }
+    }
+
+    /**
+     * appends an element to a lane and wakes up a waiting consumer.
+     *
+     * @param lane    the lane (clamped to the available lanes).
+     * @param element the element.
+     */
+    public void offer(int lane, T element) {
+        lane = Math.max(0, Math.min(queues.length - 1, lane));
+        lock.lock();
+        try {
+            queues[lane].addLast(new Node<T>(element,
+                    (null == waitHistogram) ? 0 : System.nanoTime()));
+            size++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * removes the next element according to the weights of the lanes.
+     *
+     * @return the next element or null if all the lanes are empty.
+     */
+    public T poll() {
+        lock.lock();
+        try {
+            if (0 == size) {
+                return null;
+            }
+            if (1 == queues.length) {
+                size--;
+                return unwrap(queues[0].removeFirst());
+            }
+            int total = 0;
+            int best = -1;
+            for (int i = 0; i < queues.length; i++) {
+                if (queues[i].isEmpty()) continue;
+                credits[i] += weights[i];
+                total += weights[i];
+                if ((-1 == best) || (credits[i] > credits[best])) {
+                    best = i;
+                }
+            }
+            credits[best] -= total;
+            size--;
+            return unwrap(queues[best].removeFirst());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the element of the node, records the time it spent queued.
+     */
+    private T unwrap(Node<T> node) {
+        final LatencyHistogram h = waitHistogram;
+        if ((null != h) && (0 != node.queued)) {
+            h.recordSince(node.queued);
+        }
+        return node.element;
+    }
+
+    /**
+     * @param waitHistogram records the time the elements spend in the lanes
+     *                      (null to disable).
+     */
+    public void setWaitHistogram(LatencyHistogram waitHistogram) {
+        this.waitHistogram = waitHistogram;
+    }
+
+    /**
+     * waits until the lanes hold at least one element or
+     * {@link #wakeUp()} is called.
+     *
+     * @param timeout the maximum time to wait in milliseconds (0 = forever).
+     * @return true if the lanes hold an element.
+     * @throws InterruptedException when interrupted while waiting.
+     */
+    public boolean awaitElements(long timeout) throws InterruptedException {
+        lock.lock();
+        try {
+            if (timeout <= 0) {
+                final int w = wakeUps;
+                while ((0 == size) && (w == wakeUps)) {
+                    notEmpty.await();
+                }
+                return 0 != size;
+            }
+            if (0 == size) {
+                notEmpty.await(timeout, TimeUnit.MILLISECONDS);
+            }
+            return 0 != size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * wakes up all the consumers waiting for elements (e.g. to let them see
+     * that they shall stop) without interrupting them.
+     */
+    public void wakeUp() {
+        lock.lock();
+        try {
+            wakeUps++;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if all the lanes are empty.
+     */
+    public boolean isEmpty() {
+        return 0 == size();
+    }
+
+    /**
+     * @return the number of elements in all the lanes.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lane the lane.
+     * @return the number of elements in the lane.
+     */
+    public int size(int lane) {
+        lock.lock();
+        try {
+            return queues[lane].size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of lanes.
+     */
+    public int getLanes() {
+        return queues.length;
+    }
+
+    /**
+     * @param lane the lane.
+     * @return the weight of the lane.
+     */
+    public int getWeight(int lane) {
+        return weights[lane];
+    }
+}
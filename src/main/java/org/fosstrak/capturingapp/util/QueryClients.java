@@ -0,0 +1,121 @@
+package org.fosstrak.capturingapp.util;
+
+import org.apache.cxf.frontend.ClientProxy;
+import org.apache.cxf.transport.http.HTTPConduit;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
+import org.apache.log4j.Logger;
+import org.fosstrak.epcis.queryclient.QueryControlClient;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * the query clients of the EPCIS repositories called from the rules, one
+ * client per query URL. The clients are configured with a connect and a
+ * socket read timeout: interrupting the executing thread does not cancel a
+ * blocking socket read, without a timeout a stuck query keeps the handler
+ * busy long after its deadline.<br/>
+ * The <code>QueryControlClient</code> does not expose its service port, the
+ * timeouts are applied to the port found among the fields of the client. As
+ * long as the client has not created its port (it may do so on the first
+ * request), the timeouts are applied again before every request.
+ */
+public class QueryClients {
+
+    /**
+     * the default connect and read timeout in ms.
+     */
+    public static final long DEFAULT_TIMEOUT = 10000;
+
+    // logger
+    private static final Logger log = Logger.getLogger(QueryClients.class);
+
+    // the clients by query URL.
+    private static final Map<String, Client> clients =
+            new ConcurrentHashMap<String, Client>();
+
+    // the connect and read timeout in ms (0 = the defaults of CXF).
+    private static volatile long timeout = DEFAULT_TIMEOUT;
+
+    /**
+     * a client and whether the timeouts have been applied.
+     */
+    private static class Client {
+        final QueryControlClient client;
+        volatile boolean configured = false;
+
+        Client(QueryControlClient client) {
+            this.client = client;
+        }
+    }
+
+    /**
+     * sets the timeout of the clients created afterwards.
+     *
+     * @param timeout the connect and read timeout in ms (0 = the defaults
+     *                of CXF).
+     */
+    public static void configure(long timeout) {
+        QueryClients.timeout = timeout;
+    }
+
+    /**
+     * @param queryURL the URL of the query interface.
+     * @return the client of the query URL with the timeouts applied.
+     */
+    public static QueryControlClient forEndpoint(String queryURL) {
+        Client client = clients.get(queryURL);
+        if (null == client) {
+            synchronized (clients) {
+                client = clients.get(queryURL);
+                if (null == client) {
+                    client = new Client(new QueryControlClient(queryURL));
+                    clients.put(queryURL, client);
+                }
+            }
+        }
+        if (!client.configured && (timeout > 0)) {
+            client.configured = applyTimeout(client.client, timeout);
+        }
+        return client.client;
+    }
+
+    /**
+     * applies the timeouts to the service port of a client.
+     *
+     * @param client  the client.
+     * @param timeout the connect and read timeout in ms.
+     * @return true if the port has been found.
+     */
+    private static boolean applyTimeout(QueryControlClient client,
+                                        long timeout) {
+        try {
+            for (Field field : QueryControlClient.class.getDeclaredFields()) {
+                if (!field.getType().isInterface()) continue;
+
+                field.setAccessible(true);
+                final Object port = field.get(client);
+                if (!(port instanceof Proxy)) continue;
+
+                final HTTPConduit conduit =
+                        (HTTPConduit) ClientProxy.getClient(port).getConduit();
+                HTTPClientPolicy policy = conduit.getClient();
+                if (null == policy) {
+                    policy = new HTTPClientPolicy();
+                }
+                policy.setConnectionTimeout(timeout);
+                policy.setReceiveTimeout(timeout);
+                conduit.setClient(policy);
+                log.debug(String.format("查询超时 %d ms", timeout));
+                return true;
+            }
+        } catch (Exception e) {
+            log.warn("不能设置查询超时: " + e.getMessage());
+            // do not try again.
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,272 @@
+package org.fosstrak.capturingapp.util;
+
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReportGroupListMember;
+import org.fosstrak.ale.xsd.epcglobal.EPC;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * state holder keeping the tag population of the previous event cycle of one
+ * report. The population is stored in compact form: a sorted array of 64 bit
+ * fingerprints together with the {@link EPCValue}s of the tags, the members
+ * of the reports (extension, tag stats, ...) are not retained.<br/>
+ * The deletions are rebuilt from the values: encoded values are reported in
+ * their raw hex representation, values in the overflow form with the
+ * original string in the field matching its URN (raw, tag or epc).
+ */
+public class ReportDelta implements Snapshotable {
+
+    // prefixes of the representations of the overflow form.
+    private static final String RAW = "urn:epc:raw:";
+    private static final String TAG = "urn:epc:tag:";
+
+    // the sorted fingerprints of the previous cycle.
+    private long[] keys = new long[0];
+
+    // the EPCs of the previous cycle in the order of the fingerprints (null
+    // for members without an EPC).
+    private EPCValue[] values = new EPCValue[0];
+
+    /**
+     * computes the fingerprint of a member.
+     *
+     * @param member the member.
+     * @return the fingerprint of the EPC of the member.
+     */
+    public static long key(ECReportGroupListMember member) {
+        return key(EPCValue.of(member));
+    }
+
+    /**
+     * @return the fingerprint of an EPC (null for a member without EPC).
+     */
+    private static long key(EPCValue epc) {
+        return (null == epc) ? Util.FINGERPRINT_SEED :
+                epc.fingerprint(Util.FINGERPRINT_SEED);
+    }
+
+    /**
+     * checks whether a member was part of the previous cycle.
+     *
+     * @param key the fingerprint of the member.
+     * @return true if the member was part of the previous cycle.
+     */
+    public boolean contains(long key) {
+        return Arrays.binarySearch(keys, key) >= 0;
+    }
+
+    /**
+     * replaces the previous cycle by the current cycle and returns the
+     * members that have disappeared. the returned members are rebuilt from
+     * the stored EPCs and only carry the EPC.
+     *
+     * @param current the members of the current cycle.
+     * @param deleted a list where the disappeared members are added to.
+     */
+    public void advance(List<ECReportGroupListMember> current,
+                        List<ECReportGroupListMember> deleted) {
+
+        final int n = current.size();
+        long[] nkeys = new long[n];
+        EPCValue[] nvalues = new EPCValue[n];
+        int i = 0;
+        for (ECReportGroupListMember member : current) {
+            nvalues[i] = EPCValue.of(member);
+            nkeys[i] = key(nvalues[i]);
+            i++;
+        }
+        sort(nkeys, nvalues, 0, n - 1);
+
+        for (int j = 0; j < keys.length; j++) {
+            if (Arrays.binarySearch(nkeys, keys[j]) < 0) {
+                deleted.add(memberOf(values[j]));
+            }
+        }
+        keys = nkeys;
+        values = nvalues;
+    }
+
+    /**
+     * reverts the changes of a cycle whose delta could not be processed:
+     * the added members are removed from the population and the deleted
+     * members are put back, such that the next cycle reports them again.
+     *
+     * @param added   the members reported as added.
+     * @param deleted the members reported as deleted.
+     */
+    public void revert(List<ECReportGroupListMember> added,
+                       List<ECReportGroupListMember> deleted) {
+
+        final int n = keys.length + deleted.size();
+        long[] nkeys = new long[n];
+        EPCValue[] nvalues = new EPCValue[n];
+        int i = 0;
+        for (int j = 0; j < keys.length; j++) {
+            nkeys[i] = keys[j];
+            nvalues[i++] = values[j];
+        }
+        long[] removed = new long[added.size()];
+        int r = 0;
+        for (ECReportGroupListMember member : added) {
+            removed[r++] = key(member);
+        }
+        Arrays.sort(removed);
+        for (ECReportGroupListMember member : deleted) {
+            final EPCValue value = EPCValue.of(member);
+            final long key = key(value);
+            if (!contains(key)) {
+                nkeys[i] = key;
+                nvalues[i++] = value;
+            }
+        }
+        // drop the added members.
+        int m = 0;
+        for (int j = 0; j < i; j++) {
+            if (Arrays.binarySearch(removed, nkeys[j]) < 0) {
+                nkeys[m] = nkeys[j];
+                nvalues[m++] = nvalues[j];
+            }
+        }
+        nkeys = Arrays.copyOf(nkeys, m);
+        nvalues = Arrays.copyOf(nvalues, m);
+        sort(nkeys, nvalues, 0, m - 1);
+        keys = nkeys;
+        values = nvalues;
+    }
+
+    /**
+     * rebuilds a member from its EPC.
+     *
+     * @param value the EPC (may be null).
+     * @return the member.
+     */
+    private static ECReportGroupListMember memberOf(EPCValue value) {
+        ECReportGroupListMember member = new ECReportGroupListMember();
+        if (null == value) {
+            return member;
+        }
+        final String s = value.toString();
+        if (!value.isOverflow()) {
+            member.setRawHex(epcOf(s));
+        } else if (s.startsWith(RAW)) {
+            if ((s.indexOf(".x") > 0) || (s.indexOf(".X") > 0)) {
+                member.setRawHex(epcOf(s));
+            } else {
+                member.setRawDecimal(epcOf(s));
+            }
+        } else if (s.startsWith(TAG)) {
+            member.setTag(epcOf(s));
+        } else {
+            member.setEpc(epcOf(s));
+        }
+        return member;
+    }
+
+    /**
+     * writes the previous cycle: the number of tags followed by the
+     * fingerprint and the EPC representations of every tag.
+     *
+     * @param out where to write the cycle.
+     * @throws IOException when the cycle could not be written.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        // the arrays are replaced, not modified, by advance.
+        final long[] k = keys;
+        final EPCValue[] v = values;
+        out.writeInt(k.length);
+        for (int i = 0; i < k.length; i++) {
+            final ECReportGroupListMember m = memberOf(v[i]);
+            out.writeLong(k[i]);
+            StateSnapshot.writeString(out, valueOf(m.getEpc()));
+            StateSnapshot.writeString(out, valueOf(m.getTag()));
+            StateSnapshot.writeString(out, valueOf(m.getRawHex()));
+            StateSnapshot.writeString(out, valueOf(m.getRawDecimal()));
+        }
+    }
+
+    /**
+     * replaces the previous cycle by the cycle written by
+     * {@link #writeState(DataOutput)}.
+     *
+     * @param in the cycle.
+     */
+    public void readState(ByteBuffer in) {
+        final int n = in.getInt();
+        long[] nkeys = new long[n];
+        EPCValue[] nvalues = new EPCValue[n];
+        for (int i = 0; i < n; i++) {
+            nkeys[i] = in.getLong();
+            ECReportGroupListMember member = new ECReportGroupListMember();
+            member.setEpc(epcOf(StateSnapshot.readString(in)));
+            member.setTag(epcOf(StateSnapshot.readString(in)));
+            member.setRawHex(epcOf(StateSnapshot.readString(in)));
+            member.setRawDecimal(epcOf(StateSnapshot.readString(in)));
+            nvalues[i] = EPCValue.of(member);
+        }
+        keys = nkeys;
+        values = nvalues;
+    }
+
+    /**
+     * @return the value of an EPC or null.
+     */
+    private static String valueOf(EPC epc) {
+        return (null == epc) ? null : epc.getValue();
+    }
+
+    /**
+     * @return an EPC with the value or null.
+     */
+    private static EPC epcOf(String value) {
+        if (null == value) {
+            return null;
+        }
+        EPC epc = new EPC();
+        epc.setValue(value);
+        return epc;
+    }
+
+    /**
+     * @return the number of tags in the previous cycle.
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * sorts the keys in ascending order and moves the values along.
+     */
+    private static void sort(long[] k, Object[] v, int lo, int hi) {
+        while (lo < hi) {
+            final long pivot = k[(lo + hi) >>> 1];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (k[i] < pivot) i++;
+                while (k[j] > pivot) j--;
+                if (i <= j) {
+                    long tk = k[i];
+                    k[i] = k[j];
+                    k[j] = tk;
+                    Object tv = v[i];
+                    v[i] = v[j];
+                    v[j] = tv;
+                    i++;
+                    j--;
+                }
+            }
+            // recurse into the smaller half, loop on the larger one.
+            if (j - lo < hi - i) {
+                sort(k, v, lo, j);
+                lo = i;
+            } else {
+                sort(k, v, i, hi);
+                hi = j;
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.fosstrak.capturingapp.util;
+
+import org.fosstrak.ale.xsd.ale.epcglobal.*;
+
+import java.util.*;
+
+/**
+ * index over the members of an ECReports (resp. of a single ECReport) by
+ * reader name and by report name. The index is built in one pass over all
+ * the members and all their reader statistics, afterwards looking up the
+ * members read by a given reader does not require to inspect the statistics
+ * again.<br/>
+ * Indices are cached alongside the ECReports resp. ECReport instance they
+ * have been built for, use {@link #of(ECReports)} and {@link #of(ECReport)} to
+ * retrieve them. The index reflects the state of the reports at the time of
+ * the first access, therefore do not modify the reports afterwards (the
+ * capture application runs all the filters before the handlers).
+ */
+public class ReportIndex {
+
+    // the cached indices by report instance.
+    private static final Map<Object, ReportIndex> cache =
+            Collections.synchronizedMap(new WeakHashMap<Object, ReportIndex>());
+
+    // members by reader name.
+    private final Map<String, List<ECReportGroupListMember>> byReader =
+            new HashMap<String, List<ECReportGroupListMember>>();
+
+    // members by report name.
+    private final Map<String, List<ECReportGroupListMember>> byReport =
+            new HashMap<String, List<ECReportGroupListMember>>();
+
+    // visitor filling the maps.
+    private final Util.MemberVisitor indexer = new Util.MemberVisitor() {
+        public boolean visit(ECReport report, ECReportGroupListMember member) {
+            add(byReport, report.getReportName(), member);
+            if ((null == member.getExtension()) ||
+                    (null == member.getExtension().getStats())) {
+                return true;
+            }
+            for (ECTagStat stat : member.getExtension().getStats().getStat()) {
+                if (null == stat.getStatBlocks()) continue;
+                for (ECReaderStat rstat : stat.getStatBlocks().getStatBlock()) {
+                    add(byReader, rstat.getReaderName(), member);
+                }
+            }
+            return true;
+        }
+    };
+
+    /**
+     * @param reports the reports.
+     * @return the index for the reports (built on first access).
+     */
+    public static ReportIndex of(ECReports reports) {
+        ReportIndex index = cache.get(reports);
+        if (null == index) {
+            index = new ReportIndex();
+            Util.visitMembers(reports, index.indexer);
+            cache.put(reports, index);
+        }
+        return index;
+    }
+
+    /**
+     * @param report the report.
+     * @return the index for the report (built on first access).
+     */
+    public static ReportIndex of(ECReport report) {
+        ReportIndex index = cache.get(report);
+        if (null == index) {
+            index = new ReportIndex();
+            Util.visitMembers(report, index.indexer);
+            cache.put(report, index);
+        }
+        return index;
+    }
+
+    /**
+     * drops the cached indices of the reports and all its contained reports.
+     *
+     * @param reports the reports.
+     */
+    public static void release(ECReports reports) {
+        cache.remove(reports);
+        if ((null != reports) && (null != reports.getReports())) {
+            for (ECReport report : reports.getReports().getReport()) {
+                cache.remove(report);
+            }
+        }
+    }
+
+    /**
+     * @param readerName the name of the reader.
+     * @return the members read by the given reader (never null).
+     */
+    public List<ECReportGroupListMember> getMembersFromReader(String readerName) {
+        return get(byReader, readerName);
+    }
+
+    /**
+     * @param reportName the name of the report.
+     * @return the members of the report with the given name (never null).
+     */
+    public List<ECReportGroupListMember> getMembersOfReport(String reportName) {
+        return get(byReport, reportName);
+    }
+
+    /**
+     * @return the names of all the readers that contributed a member.
+     */
+    public Set<String> getReaderNames() {
+        return Collections.unmodifiableSet(byReader.keySet());
+    }
+
+    /**
+     * @return the names of all the reports holding a member.
+     */
+    public Set<String> getReportNames() {
+        return Collections.unmodifiableSet(byReport.keySet());
+    }
+
+    private static List<ECReportGroupListMember> get(
+            Map<String, List<ECReportGroupListMember>> map, String key) {
+
+        List<ECReportGroupListMember> members = map.get(key);
+        if (null == members) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(members);
+    }
+
+    private static void add(Map<String, List<ECReportGroupListMember>> map,
+                            String key, ECReportGroupListMember member) {
+
+        List<ECReportGroupListMember> members = map.get(key);
+        if (null == members) {
+            members = new ArrayList<ECReportGroupListMember>();
+            map.put(key, members);
+        }
+        // a member may list the same reader in several statistics.
+        if (members.isEmpty() || (members.get(members.size() - 1) != member)) {
+            members.add(member);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package org.fosstrak.capturingapp.util;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * appends the raw incoming ECReports with their arrival time and source to
+ * rolling, memory-mapped recording files. Recording a report is a copy into
+ * the mapped file, the operating system writes the pages in the background,
+ * such that the recorder can stay enabled in production. The next file is
+ * created, mapped and the oldest files beyond the configured number of
+ * files are deleted on a background thread while the current file is
+ * written, when a file is full the recorder switches to the prepared one.
+ * Reports arriving while the next file is not prepared yet are not recorded
+ * (see {@link #getFailed()}) instead of delaying the ingest.<br/>
+ * File names: <code>PREFIX-yyyyMMdd-HHmmss-SEQUENCE.rec</code>.<br/>
+ * File format (see {@link ReportRecording}): the magic number
+ * {@link #MAGIC} followed by the records
+ * <code>int length, long arrival time (ms), short source length, source
+ * (UTF-8), payload</code>, where <code>length</code> counts the bytes after
+ * itself. The rest of a file is zero-filled, a length of 0 ends the file.
+ */
+public class ReportRecorder {
+
+    // logger
+    private static final Logger log = Logger.getLogger(ReportRecorder.class);
+
+    /**
+     * the magic number at the start of a recording file.
+     */
+    public static final int MAGIC = 0x43415052;
+
+    /**
+     * the suffix of the recording files.
+     */
+    public static final String SUFFIX = ".rec";
+
+    /**
+     * the default size of a recording file in bytes.
+     */
+    public static final long DEFAULT_FILE_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * the default number of recording files kept.
+     */
+    public static final int DEFAULT_FILES = 16;
+
+    // the fixed size of a record header after the length.
+    private static final int HEADER = 8 + 2;
+
+    // the name of a recording file: prefix, creation time, sequence number.
+    private static final Pattern NAME = Pattern.compile(
+            "(.+)-(\\d{8}-\\d{6})-(\\d{4,})" + Pattern.quote(SUFFIX));
+
+    // the order of the recording files: creation time, sequence number.
+    private static final Comparator<File> ORDER = new Comparator<File>() {
+        public int compare(File a, File b) {
+            final Matcher ma = NAME.matcher(a.getName());
+            final Matcher mb = NAME.matcher(b.getName());
+            if (!ma.matches() || !mb.matches()) {
+                return a.getName().compareTo(b.getName());
+            }
+            int c = ma.group(2).compareTo(mb.group(2));
+            if (0 == c) {
+                final long sa = Long.parseLong(ma.group(3));
+                final long sb = Long.parseLong(mb.group(3));
+                c = (sa < sb) ? -1 : ((sa == sb) ? 0 : 1);
+            }
+            return (0 != c) ? c : ma.group(1).compareTo(mb.group(1));
+        }
+    };
+
+    // the directory of the recording files.
+    private final File directory;
+
+    // the prefix of the recording files (the name of the capture application).
+    private final String prefix;
+
+    // the size of a recording file in bytes.
+    private final long fileSize;
+
+    // the number of recording files kept.
+    private final int files;
+
+    // the current file (null when closed or not yet opened).
+    private MappedByteBuffer buffer = null;
+
+    // the next file being prepared (null when closed).
+    private Future<Prepared> next = null;
+
+    // prepares the next file and writes the full ones to disk.
+    private final ExecutorService preparer;
+
+    // the number of the next file.
+    private int sequence = 0;
+
+    // the number of recorded reports.
+    private long recorded = 0;
+
+    // the number of reports that could not be recorded.
+    private long failed = 0;
+
+    /**
+     * a prepared recording file.
+     */
+    private static class Prepared {
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Prepared(File file, MappedByteBuffer buffer) {
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * create a new recorder. the first recording file is prepared in the
+     * background.
+     *
+     * @param directory the directory of the recording files.
+     * @param prefix    the prefix of the recording files.
+     * @param fileSize  the size of a recording file in bytes.
+     * @param files     the number of recording files kept (0 = all).
+     */
+    public ReportRecorder(File directory, String prefix, long fileSize,
+                          int files) {
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("录制文件过大: " + fileSize);
+        }
+        this.directory = directory;
+        this.prefix = prefix;
+        this.fileSize = fileSize;
+        this.files = files;
+        preparer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CaptureApp-recorder");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        next = prepare();
+    }
+
+    /**
+     * records a raw report.
+     *
+     * @param arrival the arrival time in ms.
+     * @param source  the address of the ALE (may be null).
+     * @param payload the raw report as received.
+     */
+    public synchronized void record(long arrival, String source, byte[] payload) {
+        final byte[] src = encode(source);
+        final int length = HEADER + src.length + payload.length;
+        if (4 + length + 4 > fileSize - 4) {
+            failed++;
+            log.warn(String.format("报告过大, 无法录制: %d 字节", length));
+            return;
+        }
+        // keep room for the terminating 0.
+        if (((null == buffer) || (buffer.remaining() < 4 + length + 4))
+                && !roll()) {
+            failed++;
+            return;
+        }
+        buffer.putInt(length);
+        buffer.putLong(arrival);
+        buffer.putShort((short) src.length);
+        buffer.put(src);
+        buffer.put(payload);
+        recorded++;
+    }
+
+    /**
+     * @return the source as UTF-8 (at most 32767 bytes).
+     */
+    private static byte[] encode(String source) {
+        if (null == source) {
+            return new byte[0];
+        }
+        try {
+            final byte[] b = source.getBytes("UTF-8");
+            return (b.length > Short.MAX_VALUE) ?
+                    Arrays.copyOf(b, Short.MAX_VALUE) : b;
+        } catch (IOException e) {
+            return new byte[0];
+        }
+    }
+
+    /**
+     * switches to the prepared recording file and starts preparing the one
+     * after it. does not wait for the preparation.
+     *
+     * @return false if there is no prepared file.
+     */
+    private boolean roll() {
+        if (null == next) {
+            // closed.
+            return false;
+        }
+        if (!next.isDone()) {
+            log.debug("下一个录制文件尚未准备好.");
+            return false;
+        }
+        final Prepared prepared;
+        try {
+            prepared = next.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            log.error("不能创建录制文件: " + e.getCause().getMessage());
+            next = prepare();
+            return false;
+        }
+        if (null != buffer) {
+            final MappedByteBuffer full = buffer;
+            preparer.execute(new Runnable() {
+                public void run() {
+                    full.force();
+                }
+            });
+        }
+        buffer = prepared.buffer;
+        log.info("开始录制: " + prepared.file);
+        next = prepare();
+        return true;
+    }
+
+    /**
+     * prepares the next recording file in the background.
+     *
+     * @return the prepared file.
+     */
+    private Future<Prepared> prepare() {
+        final int n = sequence++;
+        return preparer.submit(new Callable<Prepared>() {
+            public Prepared call() throws IOException {
+                return create(n);
+            }
+        });
+    }
+
+    /**
+     * creates and maps a recording file and deletes the oldest files.
+     *
+     * @param n the sequence number of the file.
+     * @return the file positioned after the magic number.
+     * @throws IOException when the file could not be created.
+     */
+    private Prepared create(int n) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("不能创建目录: " + directory);
+        }
+        final File file = new File(directory, String.format("%s-%s-%04d%s",
+                prefix, new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()),
+                n, SUFFIX));
+        final MappedByteBuffer b;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(fileSize);
+            b = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    fileSize);
+        } finally {
+            // the mapping stays valid after closing the file.
+            raf.close();
+        }
+        b.putInt(MAGIC);
+        purge();
+        return new Prepared(file, b);
+    }
+
+    /**
+     * deletes the oldest recording files beyond the configured number (the
+     * prepared file not counted).
+     */
+    private void purge() {
+        if (files <= 0) {
+            return;
+        }
+        final File[] recordings = list(directory, prefix);
+        for (int i = 0; i < recordings.length - files - 1; i++) {
+            if (!recordings[i].delete()) {
+                log.warn("不能删除录制文件: " + recordings[i]);
+            }
+        }
+    }
+
+    /**
+     * lists the recording files of a capture application, oldest first.
+     *
+     * @param directory the directory of the recording files.
+     * @param prefix    the exact prefix of the recording files (null = all).
+     * @return the recording files.
+     */
+    public static File[] list(File directory, final String prefix) {
+        File[] recordings = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                final Matcher m = NAME.matcher(name);
+                return m.matches() &&
+                        ((null == prefix) || prefix.equals(m.group(1)));
+            }
+        });
+        if (null == recordings) {
+            return new File[0];
+        }
+        // the names contain the creation time and the sequence number.
+        Arrays.sort(recordings, ORDER);
+        return recordings;
+    }
+
+    /**
+     * @param file a recording file.
+     * @return the prefix of the recording file (null if the name is not the
+     *         name of a recording file).
+     */
+    public static String prefixOf(File file) {
+        final Matcher m = NAME.matcher(file.getName());
+        return m.matches() ? m.group(1) : null;
+    }
+
+    /**
+     * flushes the current recording file to disk.
+     */
+    public synchronized void flush() {
+        if (null != buffer) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * flushes and closes the current recording file and deletes the
+     * prepared one. subsequent reports are not recorded.
+     */
+    public synchronized void close() {
+        flush();
+        buffer = null;
+        if (null != next) {
+            final Future<Prepared> unused = next;
+            next = null;
+            preparer.execute(new Runnable() {
+                public void run() {
+                    try {
+                        final File file = unused.get().file;
+                        if (!file.delete()) {
+                            log.warn("不能删除录制文件: " + file);
+                        }
+                    } catch (Exception e) {
+                        // not created.
+                    }
+                }
+            });
+        }
+        preparer.shutdown();
+    }
+
+    /**
+     * @return the number of recorded reports.
+     */
+    public synchronized long getRecorded() {
+        return recorded;
+    }
+
+    /**
+     * @return the number of reports that could not be recorded.
+     */
+    public synchronized long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the directory of the recording files.
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s/%s-*%s (recorded=%d, failed=%d)", directory,
+                prefix, SUFFIX, getRecorded(), getFailed());
+    }
+}
@@ -0,0 +1,281 @@
+package org.fosstrak.capturingapp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * reads the recording files written by {@link ReportRecorder}. The files
+ * are memory-mapped and iterated in the given order, the records are
+ * returned in the order of their arrival. The recordings of several capture
+ * applications (e.g. a directory shared by them) are merged by arrival
+ * time.
+ */
+public class ReportRecording implements Iterable<ReportRecording.Record> {
+
+    /**
+     * a recorded report.
+     */
+    public static class Record {
+
+        // the arrival time in ms.
+        private final long arrival;
+
+        // the address of the ALE.
+        private final String source;
+
+        // the raw report.
+        private final byte[] payload;
+
+        Record(long arrival, String source, byte[] payload) {
+            this.arrival = arrival;
+            this.source = source;
+            this.payload = payload;
+        }
+
+        /**
+         * @return the arrival time in ms.
+         */
+        public long getArrival() {
+            return arrival;
+        }
+
+        /**
+         * @return the address of the ALE (empty if unknown).
+         */
+        public String getSource() {
+            return source;
+        }
+
+        /**
+         * @return the raw report as received.
+         */
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    // the recording files of each capture application in the order of
+    // recording.
+    private final List<File[]> recordings;
+
+    /**
+     * create a new recording.
+     *
+     * @param files the recording files of one capture application in the
+     *              order of recording (see
+     *              {@link ReportRecorder#list(File, String)}).
+     */
+    public ReportRecording(File[] files) {
+        this.recordings = new ArrayList<File[]>(1);
+        this.recordings.add(files.clone());
+    }
+
+    /**
+     * create a recording of several capture applications.
+     *
+     * @param recordings the recording files of each capture application.
+     */
+    private ReportRecording(List<File[]> recordings) {
+        this.recordings = recordings;
+    }
+
+    /**
+     * create a recording from all the recording files in a directory resp.
+     * from a single file. the recording files in a directory are grouped by
+     * capture application.
+     *
+     * @param path a recording file or a directory of recording files.
+     * @return the recording.
+     */
+    public static ReportRecording open(File path) {
+        if (!path.isDirectory()) {
+            return new ReportRecording(new File[]{path});
+        }
+        final Map<String, List<File>> byPrefix =
+                new LinkedHashMap<String, List<File>>();
+        for (File f : ReportRecorder.list(path, null)) {
+            final String prefix = ReportRecorder.prefixOf(f);
+            List<File> files = byPrefix.get(prefix);
+            if (null == files) {
+                files = new ArrayList<File>();
+                byPrefix.put(prefix, files);
+            }
+            files.add(f);
+        }
+        final List<File[]> recordings = new ArrayList<File[]>();
+        for (List<File> files : byPrefix.values()) {
+            recordings.add(files.toArray(new File[files.size()]));
+        }
+        return new ReportRecording(recordings);
+    }
+
+    /**
+     * @return the recording files.
+     */
+    public File[] getFiles() {
+        final List<File> files = new ArrayList<File>();
+        for (File[] r : recordings) {
+            for (File f : r) {
+                files.add(f);
+            }
+        }
+        return files.toArray(new File[files.size()]);
+    }
+
+    public Iterator<Record> iterator() {
+        if (1 == recordings.size()) {
+            return new RecordIterator(recordings.get(0));
+        }
+        return new MergingIterator();
+    }
+
+    /**
+     * merges the records of several capture applications by arrival time.
+     */
+    private class MergingIterator implements Iterator<Record> {
+
+        // the records of each capture application.
+        private final RecordIterator[] iterators;
+
+        // the next record of each capture application (null if not read yet).
+        private final Record[] heads;
+
+        MergingIterator() {
+            iterators = new RecordIterator[recordings.size()];
+            for (int i = 0; i < iterators.length; i++) {
+                iterators[i] = new RecordIterator(recordings.get(i));
+            }
+            heads = new Record[iterators.length];
+        }
+
+        public boolean hasNext() {
+            boolean any = false;
+            for (int i = 0; i < iterators.length; i++) {
+                if ((null == heads[i]) && iterators[i].hasNext()) {
+                    heads[i] = iterators[i].next();
+                }
+                any |= (null != heads[i]);
+            }
+            return any;
+        }
+
+        public Record next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            int first = -1;
+            for (int i = 0; i < heads.length; i++) {
+                if ((null != heads[i]) && ((-1 == first) ||
+                        (heads[i].arrival < heads[first].arrival))) {
+                    first = i;
+                }
+            }
+            final Record r = heads[first];
+            heads[first] = null;
+            return r;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * iterates the records of the files of one capture application.
+     */
+    private class RecordIterator implements Iterator<Record> {
+
+        // the recording files.
+        private final File[] files;
+
+        // the index of the next file.
+        private int file = 0;
+
+        // the current file.
+        private MappedByteBuffer buffer = null;
+
+        // the next record (null if not read yet).
+        private Record next = null;
+
+        RecordIterator(File[] files) {
+            this.files = files;
+        }
+
+        public boolean hasNext() {
+            while (null == next) {
+                if ((null != buffer) && (buffer.remaining() >= 4)) {
+                    final int length = buffer.getInt();
+                    if ((length > 0) && (length <= buffer.remaining())) {
+                        next = read(length);
+                        continue;
+                    }
+                }
+                // end of the current file.
+                if (file >= files.length) {
+                    return false;
+                }
+                buffer = map(files[file++]);
+            }
+            return true;
+        }
+
+        public Record next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            final Record r = next;
+            next = null;
+            return r;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * reads the record after the length.
+         */
+        private Record read(int length) {
+            final long arrival = buffer.getLong();
+            final byte[] src = new byte[buffer.getShort()];
+            buffer.get(src);
+            final byte[] payload = new byte[length - 8 - 2 - src.length];
+            buffer.get(payload);
+            try {
+                return new Record(arrival, new String(src, "UTF-8"), payload);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * maps a recording file.
+         *
+         * @return the file positioned after the magic number (null for an
+         *         empty or foreign file).
+         */
+        private MappedByteBuffer map(File f) {
+            try {
+                final RandomAccessFile raf = new RandomAccessFile(f, "r");
+                try {
+                    final MappedByteBuffer b = raf.getChannel().map(
+                            FileChannel.MapMode.READ_ONLY, 0, raf.length());
+                    if ((b.remaining() < 4) ||
+                            (ReportRecorder.MAGIC != b.getInt())) {
+                        return null;
+                    }
+                    return b;
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("不能读取录制文件: " + f, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+package org.fosstrak.capturingapp.util;
+
+import org.apache.log4j.Logger;
+import org.fosstrak.capturingapp.CaptureApp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * replays a recording of raw ECReports (see {@link ReportRecorder}) into a
+ * capture application, either in-process ({@link #toCaptureApp(CaptureApp)})
+ * or over the network like an ALE ({@link #toURI(URI)}). The reports are
+ * sent with the recorded spacing divided by the speed factor: 1 replays in
+ * real time, N compresses the recording N times and 0 replays as fast as
+ * possible.<br/>
+ * Usage:
+ * <code>java org.fosstrak.capturingapp.util.ReportReplay RECORDING TARGET
+ * [SPEED|max] [CONCURRENCY]</code>, where RECORDING is a recording file or
+ * a directory of recording files and TARGET is
+ * <code>socket://HOST:PORT</code> (listen port of a capture application)
+ * or <code>http://HOST:PORT/CONTEXT/ale/NAME</code> (shared ingest
+ * endpoint).
+ */
+public class ReportReplay {
+
+    // logger
+    private static final Logger log = Logger.getLogger(ReportReplay.class);
+
+    /**
+     * the receiver of the replayed reports.
+     */
+    public interface Target {
+        /**
+         * delivers a recorded report.
+         *
+         * @param record the recorded report.
+         * @return false if the report has been rejected.
+         * @throws Exception when the report could not be delivered.
+         */
+        boolean deliver(ReportRecording.Record record) throws Exception;
+    }
+
+    // the recording.
+    private final ReportRecording recording;
+
+    // the speed factor (0 = as fast as possible).
+    private final double speed;
+
+    // the number of reports delivered concurrently.
+    private final int concurrency;
+
+    // counters.
+    private final AtomicLong replayed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    // the maximum delay behind the schedule in ms.
+    private long maxLag = 0;
+
+    // the duration of the recording resp. of the replay in ms.
+    private long recordedTime = 0;
+    private long replayTime = 0;
+
+    /**
+     * create a new replay.
+     *
+     * @param recording   the recording.
+     * @param speed       the speed factor (1 = real time, 0 = as fast as
+     *                    possible).
+     * @param concurrency the number of reports delivered concurrently (1
+     *                    keeps the order of the recording).
+     */
+    public ReportReplay(ReportRecording recording, double speed, int concurrency) {
+        this.recording = recording;
+        this.speed = Math.max(0, speed);
+        this.concurrency = Math.max(1, concurrency);
+    }
+
+    /**
+     * replays the recording.
+     *
+     * @param target the receiver of the reports.
+     * @throws InterruptedException when interrupted.
+     */
+    public void replay(final Target target) throws InterruptedException {
+        final ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final Semaphore slots = new Semaphore(concurrency);
+        final long start = System.currentTimeMillis();
+        long first = -1;
+        long last = -1;
+        try {
+            for (final ReportRecording.Record record : recording) {
+                if (-1 == first) {
+                    first = record.getArrival();
+                }
+                last = record.getArrival();
+                if (speed > 0) {
+                    final long due = start +
+                            (long) ((record.getArrival() - first) / speed);
+                    final long now = System.currentTimeMillis();
+                    if (due > now) {
+                        TimeUnit.MILLISECONDS.sleep(due - now);
+                    } else {
+                        maxLag = Math.max(maxLag, now - due);
+                    }
+                }
+                slots.acquire();
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            if (target.deliver(record)) {
+                                replayed.incrementAndGet();
+                            } else {
+                                rejected.incrementAndGet();
+                            }
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                            log.warn("不能回放报告: " + e.getMessage());
+                        } finally {
+                            slots.release();
+                        }
+                    }
+                });
+            }
+            // wait for the outstanding deliveries.
+            slots.acquire(concurrency);
+            slots.release(concurrency);
+        } finally {
+            executor.shutdownNow();
+            recordedTime = (-1 == first) ? 0 : last - first;
+            replayTime = System.currentTimeMillis() - start;
+        }
+    }
+
+    /**
+     * @param cap the capture application.
+     * @return a target feeding the reports directly into the capture
+     *         application (with the recorded source address).
+     */
+    public static Target toCaptureApp(final CaptureApp cap) {
+        return new Target() {
+            public boolean deliver(ReportRecording.Record record)
+                    throws Exception {
+                return cap.receive(new String(record.getPayload()),
+                        record.getSource());
+            }
+        };
+    }
+
+    /**
+     * @param target <code>socket://HOST:PORT</code> or an http URL of the
+     *               shared ingest endpoint.
+     * @return a target sending the reports over the network.
+     */
+    public static Target toURI(final URI target) {
+        return new Target() {
+            public boolean deliver(ReportRecording.Record record)
+                    throws IOException {
+                return send(target, record.getPayload());
+            }
+        };
+    }
+
+    /**
+     * sends a raw report to a capture application like an ALE.
+     *
+     * @param target  <code>socket://HOST:PORT</code> (listen port of the
+     *                capture application) or an http URL of the shared
+     *                ingest endpoint.
+     * @param payload the raw report.
+     * @return false if the report has been rejected by the admission control.
+     * @throws IOException when the report could not be sent.
+     */
+    public static boolean send(URI target, byte[] payload) throws IOException {
+        if ("socket".equals(target.getScheme())) {
+            sendSocket(target, payload);
+            return true;
+        }
+        return sendHttp(target, payload);
+    }
+
+    /**
+     * sends a report the way the fosstrak ALE does (an HTTP POST with four
+     * header lines on a plain socket).
+     */
+    private static void sendSocket(URI target, byte[] payload)
+            throws IOException {
+        final Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(target.getHost(),
+                    target.getPort()), 5000);
+            final OutputStream out = socket.getOutputStream();
+            out.write(String.format("POST / HTTP/1.0\r\n" +
+                    "Host: %s\r\n" +
+                    "Content-Type: text/xml\r\n" +
+                    "Content-Length: %d\r\n" +
+                    "\r\n", target.getHost(), payload.length).getBytes());
+            out.write(payload);
+            out.flush();
+            socket.shutdownOutput();
+            // the capture application closes the connection when done.
+            final InputStream in = socket.getInputStream();
+            while (-1 != in.read()) {
+                // discard
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * posts a report to the shared ingest endpoint.
+     */
+    private static boolean sendHttp(URI target, byte[] payload)
+            throws IOException {
+        final HttpURLConnection c = (HttpURLConnection)
+                target.toURL().openConnection();
+        try {
+            c.setDoOutput(true);
+            c.setRequestMethod("POST");
+            c.setRequestProperty("Content-Type", "text/xml");
+            c.setFixedLengthStreamingMode(payload.length);
+            final OutputStream out = c.getOutputStream();
+            out.write(payload);
+            out.close();
+            final int code = c.getResponseCode();
+            if (HttpURLConnection.HTTP_UNAVAILABLE == code) {
+                return false;
+            }
+            if (HttpURLConnection.HTTP_ACCEPTED != code) {
+                throw new IOException("HTTP " + code);
+            }
+            return true;
+        } finally {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * @return the number of delivered reports.
+     */
+    public long getReplayed() {
+        return replayed.get();
+    }
+
+    /**
+     * @return the number of reports rejected by the capture application.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of reports that could not be delivered.
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return the maximum delay behind the schedule in ms (the target did not
+     *         keep up with the speed).
+     */
+    public long getMaxLag() {
+        return maxLag;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("replayed=%d, rejected=%d, failed=%d, " +
+                "recorded %d ms in %d ms (x%.1f), max lag=%d ms",
+                getReplayed(), getRejected(), getFailed(), recordedTime,
+                replayTime, (0 == replayTime) ? 0.0 :
+                        recordedTime / (double) replayTime, maxLag);
+    }
+
+    /**
+     * replays a recording over the network.
+     *
+     * @param args RECORDING TARGET [SPEED|max] [CONCURRENCY]
+     * @throws Exception when the replay failed.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("usage: ReportReplay RECORDING TARGET " +
+                    "[SPEED|max] [CONCURRENCY]");
+            return;
+        }
+        double speed = 1;
+        if (args.length > 2) {
+            speed = "max".equalsIgnoreCase(args[2]) ? 0 :
+                    Double.parseDouble(args[2]);
+        }
+        final int concurrency = (args.length > 3) ?
+                Integer.parseInt(args[3]) : 1;
+        final ReportReplay replay = new ReportReplay(
+                ReportRecording.open(new File(args[0])), speed, concurrency);
+        replay.replay(toURI(URI.create(args[1])));
+        System.out.println(replay);
+    }
+}
@@ -0,0 +1,230 @@
+package org.fosstrak.capturingapp.util;
+
+import org.apache.log4j.Logger;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReport;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URL;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * declarative routing table of a handler: the spec names and report names a
+ * handler is interested in. The capture application does not invoke a
+ * handler for ECReports that its routing table does not accept, so no
+ * drools session is created for reports no rule can match.<br/>
+ * A routing table can either be configured explicitly or derived from the
+ * rules in a change-set (see {@link #fromChangeSet(String)}).
+ */
+public class RoutingTable {
+
+    /**
+     * routing table accepting all the reports.
+     */
+    public static final RoutingTable ACCEPT_ALL = new RoutingTable(null, null);
+
+    // logger
+    private static final Logger log = Logger.getLogger(RoutingTable.class);
+
+    // DRL resources referenced in a change-set.
+    private static final Pattern CHANGESET_RESOURCE = Pattern.compile(
+            "<resource[^>]*source\\s*=\\s*['\"]classpath:([^'\"]+)['\"][^>]*type\\s*=\\s*['\"]DRL['\"]");
+
+    // XML comments.
+    private static final Pattern XML_COMMENT = Pattern.compile("<!--.*?-->",
+            Pattern.DOTALL);
+
+    // DRL comments.
+    private static final Pattern DRL_COMMENT = Pattern.compile(
+            "//[^\\n]*|/\\*.*?\\*/", Pattern.DOTALL);
+
+    // start of a rule.
+    private static final Pattern DRL_RULE = Pattern.compile(
+            "(?m)^\\s*rule\\s");
+
+    // constraints on the spec name resp. report name.
+    private static final Pattern SPEC_CONSTRAINT = Pattern.compile(
+            "specName\\s*==\\s*\"([^\"]+)\"");
+    private static final Pattern REPORT_CONSTRAINT = Pattern.compile(
+            "reportName\\s*==\\s*\"([^\"]+)\"");
+
+    // the accepted spec names (null accepts all).
+    private final Set<String> specNames;
+
+    // the accepted report names (null accepts all).
+    private final Set<String> reportNames;
+
+    /**
+     * create a new routing table.
+     *
+     * @param specNames   the accepted spec names or null to accept all.
+     * @param reportNames the accepted report names or null to accept all.
+     */
+    public RoutingTable(Collection<String> specNames,
+                        Collection<String> reportNames) {
+        this.specNames = (null == specNames) ? null :
+                Collections.unmodifiableSet(new HashSet<String>(specNames));
+        this.reportNames = (null == reportNames) ? null :
+                Collections.unmodifiableSet(new HashSet<String>(reportNames));
+    }
+
+    /**
+     * create a routing table from comma separated lists.
+     *
+     * @param specNames   comma separated spec names or null to accept all.
+     * @param reportNames comma separated report names or null to accept all.
+     * @return the routing table.
+     */
+    public static RoutingTable parse(String specNames, String reportNames) {
+        return new RoutingTable(split(specNames), split(reportNames));
+    }
+
+    /**
+     * checks whether a handler with this routing table is interested in the
+     * reports.
+     *
+     * @param reports the reports.
+     * @return true if the spec name is accepted and at least one report
+     *         name is accepted.
+     */
+    public boolean accepts(ECReports reports) {
+        if ((null != specNames) && !specNames.contains(reports.getSpecName())) {
+            return false;
+        }
+        if (null == reportNames) {
+            return true;
+        }
+        if (null == reports.getReports()) {
+            return false;
+        }
+        for (ECReport report : reports.getReports().getReport()) {
+            if ((null != report) && reportNames.contains(report.getReportName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the accepted spec names or null if all are accepted.
+     */
+    public Set<String> getSpecNames() {
+        return specNames;
+    }
+
+    /**
+     * @return the accepted report names or null if all are accepted.
+     */
+    public Set<String> getReportNames() {
+        return reportNames;
+    }
+
+    /**
+     * derives the routing table from the rules of a change-set. the DRL
+     * resources of the change-set are scanned for constraints of the form
+     * <code>specName == "..."</code> and <code>reportName == "..."</code>.
+     * as soon as one rule does not constrain the spec name (resp. the report
+     * name), all spec names (resp. report names) are accepted.
+     *
+     * @param changeSet the change-set as class path resource.
+     * @return the derived routing table or {@link #ACCEPT_ALL} if the
+     *         change-set could not be analyzed.
+     */
+    public static RoutingTable fromChangeSet(String changeSet) {
+        try {
+            String xml = XML_COMMENT.matcher(read(changeSet)).replaceAll("");
+            Set<String> specs = new HashSet<String>();
+            Set<String> reports = new HashSet<String>();
+            boolean anySpec = false;
+            boolean anyReport = false;
+            boolean anyRule = false;
+
+            Matcher resources = CHANGESET_RESOURCE.matcher(xml);
+            while (resources.find()) {
+                String drl = DRL_COMMENT.matcher(read(resources.group(1)))
+                        .replaceAll("");
+                String[] rules = DRL_RULE.split(drl);
+                // the first chunk holds the header of the file.
+                for (int i = 1; i < rules.length; i++) {
+                    anyRule = true;
+                    anySpec |= !collect(SPEC_CONSTRAINT, rules[i], specs);
+                    anyReport |= !collect(REPORT_CONSTRAINT, rules[i], reports);
+                }
+            }
+            if (!anyRule) {
+                return ACCEPT_ALL;
+            }
+            RoutingTable table = new RoutingTable(
+                    anySpec ? null : specs, anyReport ? null : reports);
+            log.info(String.format("从 %s 生成路由表: %s", changeSet, table));
+            return table;
+        } catch (IOException e) {
+            log.error(String.format("不能分析变更集 %s: %s", changeSet,
+                    e.getMessage()));
+            return ACCEPT_ALL;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("specs=%s, reports=%s",
+                (null == specNames) ? "*" : specNames,
+                (null == reportNames) ? "*" : reportNames);
+    }
+
+    /**
+     * adds all the values matched by the pattern.
+     *
+     * @return true if at least one value was found.
+     */
+    private static boolean collect(Pattern p, String text, Set<String> values) {
+        boolean found = false;
+        Matcher m = p.matcher(text);
+        while (m.find()) {
+            values.add(m.group(1));
+            found = true;
+        }
+        return found;
+    }
+
+    /**
+     * @return the values of a comma separated list or null if empty.
+     */
+    private static List<String> split(String list) {
+        if ((null == list) || (0 == list.trim().length())) {
+            return null;
+        }
+        return Arrays.asList(list.trim().split("\\s*,\\s*"));
+    }
+
+    /**
+     * reads a class path resource the same way the handlers load it.
+     */
+    private static String read(String resource) throws IOException {
+        URL url = RoutingTable.class.getResource(resource);
+        if (null == url) {
+            url = RoutingTable.class.getClassLoader().getResource(resource);
+        }
+        if (null == url) {
+            throw new IOException("资源不存在: " + resource);
+        }
+        InputStream in = url.openStream();
+        try {
+            Reader reader = new InputStreamReader(in, "UTF-8");
+            StringBuilder b = new StringBuilder();
+            char[] buffer = new char[4096];
+            int n;
+            while ((n = reader.read(buffer)) > 0) {
+                b.append(buffer, 0, n);
+            }
+            return b.toString();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.fosstrak.capturingapp.util;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * bounded thread pool shared by the rule and delivery stages of all the
+ * capture applications of a JVM. Instead of dedicated worker threads every
+ * stage of a capture application submits a drain task when it has work.
+ * A drain task processes at most <code>quota</code> items and then
+ * re-submits itself behind the tasks of the other capture applications, so
+ * a busy capture application cannot monopolize the pool. Since every stage
+ * has at most one drain task queued or running, one capture application
+ * occupies at most one thread per stage.
+ */
+public class SharedScheduler {
+
+    /**
+     * the default number of items a drain task processes before yielding.
+     */
+    public static final int DEFAULT_QUOTA = 16;
+
+    // logger
+    private static final Logger log = Logger.getLogger(SharedScheduler.class);
+
+    // the worker threads.
+    private final ThreadPoolExecutor pool;
+
+    // the timer for delayed tasks.
+    private final ScheduledExecutorService timer;
+
+    // the number of items a drain task processes before yielding.
+    private final int quota;
+
+    // the number of submitted tasks.
+    private final AtomicLong submitted = new AtomicLong();
+
+    /**
+     * create a new scheduler.
+     *
+     * @param threads the number of worker threads.
+     * @param quota   the number of items a drain task processes before
+     *                yielding.
+     */
+    public SharedScheduler(int threads, int quota) {
+        final ThreadFactory factory = new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CaptureApp-scheduler-" +
+                        count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+        this.pool = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+        this.timer = Executors.newSingleThreadScheduledExecutor(factory);
+        this.quota = Math.max(1, quota);
+        log.info(String.format("共享调度器: %d 个线程, 配额 %d.", threads,
+                this.quota));
+    }
+
+    /**
+     * executes a task on the pool.
+     *
+     * @param task the task.
+     */
+    public void execute(Runnable task) {
+        submitted.incrementAndGet();
+        pool.execute(task);
+    }
+
+    /**
+     * executes a task on the pool after a delay.
+     *
+     * @param task  the task.
+     * @param delay the delay in milliseconds.
+     */
+    public void schedule(final Runnable task, long delay) {
+        timer.schedule(new Runnable() {
+            public void run() {
+                execute(task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the number of items a drain task processes before yielding.
+     */
+    public int getQuota() {
+        return quota;
+    }
+
+    /**
+     * @return the number of threads in the pool.
+     */
+    public int getPoolSize() {
+        return pool.getPoolSize();
+    }
+
+    /**
+     * @return the number of threads currently executing a task.
+     */
+    public int getActiveCount() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * @return the largest number of threads that have been in the pool.
+     */
+    public int getLargestPoolSize() {
+        return pool.getLargestPoolSize();
+    }
+
+    /**
+     * @return the number of tasks waiting for a thread.
+     */
+    public int getQueueSize() {
+        return pool.getQueue().size();
+    }
+
+    /**
+     * @return the number of submitted tasks.
+     */
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    /**
+     * @return the number of completed tasks.
+     */
+    public long getCompletedCount() {
+        return pool.getCompletedTaskCount();
+    }
+
+    /**
+     * stops the scheduler.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        pool.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("threads=%d, active=%d, largest=%d, queued=%d, completed=%d",
+                getPoolSize(), getActiveCount(), getLargestPoolSize(),
+                getQueueSize(), getCompletedCount());
+    }
+}
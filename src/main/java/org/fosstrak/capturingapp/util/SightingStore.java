@@ -0,0 +1,687 @@
+package org.fosstrak.capturingapp.util;
+
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReaderStat;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReport;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReportGroupListMember;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+import org.fosstrak.ale.xsd.ale.epcglobal.ECTagStat;
+import org.fosstrak.ale.xsd.epcglobal.EPC;
+import org.fosstrak.epcis.model.EPCISDocumentType;
+import org.fosstrak.epcis.model.ObjectEventType;
+
+import javax.xml.bind.JAXBElement;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * a bounded in-memory store of the recent history of the EPCs: where and
+ * when an EPC has been seen last (reader and spec name of the reports) and
+ * the last EPCIS object event captured for it (bizStep, disposition, read
+ * point, business location and event time). The rules consult the store
+ * before they query the EPCIS repository, such that the history of the hot
+ * EPCs does not cost a remote request per report (see
+ * {@link Util#capturedLocally(String, String, String, String, String)}).
+ * <br/>
+ * The entries are stored in primitive arrays using open addressing with
+ * linear probing keyed by the fingerprint of the EPC (see
+ * {@link EPCValue#fingerprint(long)}), the strings are interned into a
+ * table of codes. An entry expires when it has not been updated for the
+ * time to live. The number of probes per operation is limited, therefore
+ * the memory never grows beyond the capacity given at construction: when
+ * neither a free nor an expired slot is found within the probe sequence,
+ * the oldest entry of the sequence is evicted.<br/>
+ * The EPCs are keyed by the representation delivered to the store, the
+ * sightings are recorded with the first representation of a member (epc,
+ * tag, raw hex or raw decimal, see {@link Util#selectAny}). The store only
+ * knows the events captured (or queried) since it has been started,
+ * therefore a missing entry means "unknown" and not "never happened". A
+ * {@link StateSnapshot} keeps that knowledge over a restart.
+ */
+public class SightingStore implements Snapshotable {
+
+    /**
+     * the default time to live of an entry in ms.
+     */
+    public static final long DEFAULT_TTL = 60L * 60 * 1000;
+
+    // maximum number of slots inspected per operation.
+    private static final int MAX_PROBES = 16;
+
+    // time stamp marking a slot that has never been used.
+    private static final long FREE = 0L;
+
+    // code of a missing string.
+    private static final int NONE = -1;
+
+    // the maximum number of interned strings.
+    private static final int MAX_STRINGS = 65536;
+
+    // the store shared by all the capture applications (null = off).
+    private static volatile SightingStore instance = null;
+
+    /**
+     * the history of an EPC.
+     */
+    public static class Sighting {
+
+        // the EPC.
+        private final String epc;
+
+        // the last sighting.
+        private final String reader;
+        private final String specName;
+        private final long seen;
+
+        // the last captured event.
+        private final String bizStep;
+        private final String disposition;
+        private final String readPoint;
+        private final String bizLocation;
+        private final long eventTime;
+
+        Sighting(String epc, String reader, String specName, long seen,
+                 String bizStep, String disposition, String readPoint,
+                 String bizLocation, long eventTime) {
+            this.epc = epc;
+            this.reader = reader;
+            this.specName = specName;
+            this.seen = seen;
+            this.bizStep = bizStep;
+            this.disposition = disposition;
+            this.readPoint = readPoint;
+            this.bizLocation = bizLocation;
+            this.eventTime = eventTime;
+        }
+
+        /**
+         * @return the EPC.
+         */
+        public String getEpc() {
+            return epc;
+        }
+
+        /**
+         * @return the reader that has seen the EPC last (may be null).
+         */
+        public String getReader() {
+            return reader;
+        }
+
+        /**
+         * @return the spec name of the reports that have seen the EPC last
+         *         (may be null).
+         */
+        public String getSpecName() {
+            return specName;
+        }
+
+        /**
+         * @return the time the EPC has been seen last in ms (0 = not seen).
+         */
+        public long getSeen() {
+            return seen;
+        }
+
+        /**
+         * @return true if a captured event is known.
+         */
+        public boolean isCaptured() {
+            return 0 != eventTime;
+        }
+
+        /**
+         * @return the bizStep of the last captured event (may be null).
+         */
+        public String getBizStep() {
+            return bizStep;
+        }
+
+        /**
+         * @return the disposition of the last captured event (may be null).
+         */
+        public String getDisposition() {
+            return disposition;
+        }
+
+        /**
+         * @return the read point of the last captured event (may be null).
+         */
+        public String getReadPoint() {
+            return readPoint;
+        }
+
+        /**
+         * @return the business location of the last captured event (may be
+         *         null).
+         */
+        public String getBizLocation() {
+            return bizLocation;
+        }
+
+        /**
+         * @return the event time of the last captured event in ms (0 = no
+         *         event captured).
+         */
+        public long getEventTime() {
+            return eventTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (reader=%s, spec=%s, seen=%d, " +
+                    "bizStep=%s, disposition=%s, readPoint=%s, " +
+                    "bizLocation=%s, eventTime=%d)", epc, reader, specName,
+                    seen, bizStep, disposition, readPoint, bizLocation,
+                    eventTime);
+        }
+    }
+
+    // the fingerprints of the EPCs.
+    private final long[] keys;
+
+    // the time the entries have been updated last (FREE = never used).
+    private final long[] touched;
+
+    // the last sighting.
+    private final long[] seen;
+    private final int[] readers;
+    private final int[] specs;
+
+    // the last captured event.
+    private final long[] eventTimes;
+    private final int[] bizSteps;
+    private final int[] dispositions;
+    private final int[] readPoints;
+    private final int[] bizLocations;
+
+    // mask to map a hash to a slot.
+    private final int mask;
+
+    // the time to live of an entry in ms.
+    private final long ttl;
+
+    // the codes of the interned strings.
+    private final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+    // the interned strings by code.
+    private final List<String> strings = new ArrayList<String>();
+
+    // counters.
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * create a new store.
+     *
+     * @param capacity the number of slots (rounded up to a power of two).
+     * @param ttl      the time to live of an entry in ms.
+     */
+    public SightingStore(int capacity, long ttl) {
+        int size = Integer.highestOneBit(Math.max(capacity, MAX_PROBES) - 1) << 1;
+        this.keys = new long[size];
+        this.touched = new long[size];
+        this.seen = new long[size];
+        this.readers = new int[size];
+        this.specs = new int[size];
+        this.eventTimes = new long[size];
+        this.bizSteps = new int[size];
+        this.dispositions = new int[size];
+        this.readPoints = new int[size];
+        this.bizLocations = new int[size];
+        this.mask = size - 1;
+        this.ttl = ttl;
+    }
+
+    /**
+     * sets up the store shared by all the capture applications.
+     *
+     * @param capacity the number of slots (0 = off).
+     * @param ttl      the time to live of an entry in ms.
+     */
+    public static void configure(int capacity, long ttl) {
+        instance = (capacity > 0) ? new SightingStore(capacity, ttl) : null;
+    }
+
+    /**
+     * @return the store shared by all the capture applications or null if
+     *         there is none.
+     */
+    public static SightingStore getInstance() {
+        return instance;
+    }
+
+    /**
+     * records the sightings of all the members of a report.
+     *
+     * @param reports the reports.
+     * @param now     the current time in ms.
+     */
+    public void recordSightings(final ECReports reports, final long now) {
+        final String spec = reports.getSpecName();
+        Util.visitMembers(reports, new Util.MemberVisitor() {
+            public boolean visit(ECReport report, ECReportGroupListMember member) {
+                final EPC epc = Util.selectAny.select(member);
+                if (null != epc) {
+                    recordSighting(epc.getValue(), readerOf(member), spec, now);
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * records a sighting of an EPC.
+     *
+     * @param epc      the EPC.
+     * @param reader   the reader (may be null).
+     * @param specName the spec name of the reports (may be null).
+     * @param now      the current time in ms.
+     */
+    public synchronized void recordSighting(String epc, String reader,
+                                            String specName, long now) {
+        if (null == epc) {
+            return;
+        }
+        final int i = slotFor(key(epc), now);
+        seen[i] = now;
+        readers[i] = intern(reader);
+        specs[i] = intern(specName);
+    }
+
+    /**
+     * records the object events of a captured EPCIS document. documents
+     * without an object model (see {@link StreamedEPCISDocument}) are
+     * skipped.
+     *
+     * @param doc the EPCIS document.
+     * @param now the current time in ms.
+     */
+    public void recordDocument(EPCISDocumentType doc, long now) {
+        if ((null == doc.getEPCISBody()) ||
+                (null == doc.getEPCISBody().getEventList())) {
+            return;
+        }
+        for (Object o : doc.getEPCISBody().getEventList()
+                .getObjectEventOrAggregationEventOrQuantityEvent()) {
+            recordEvent(o, now);
+        }
+    }
+
+    /**
+     * records an object event, e.g. from the results of an EPCIS query.
+     * other events are ignored.
+     *
+     * @param event the event (an <code>ObjectEventType</code> or a
+     *              <code>JAXBElement</code> holding it).
+     * @param now   the current time in ms.
+     */
+    public void recordEvent(Object event, long now) {
+        if (event instanceof JAXBElement) {
+            event = ((JAXBElement) event).getValue();
+        }
+        if (!(event instanceof ObjectEventType)) {
+            return;
+        }
+        final ObjectEventType e = (ObjectEventType) event;
+        if (null == e.getEpcList()) {
+            return;
+        }
+        final long eventTime = (null == e.getEventTime()) ? now :
+                e.getEventTime().toGregorianCalendar().getTimeInMillis();
+        final String readPoint = (null == e.getReadPoint()) ? null :
+                e.getReadPoint().getId();
+        final String bizLocation = (null == e.getBizLocation()) ? null :
+                e.getBizLocation().getId();
+        for (org.fosstrak.epcis.model.EPC epc : e.getEpcList().getEpc()) {
+            recordEvent(epc.getValue(), e.getBizStep(), e.getDisposition(),
+                    readPoint, bizLocation, eventTime, now);
+        }
+    }
+
+    /**
+     * records a captured event of an EPC. an event older than the last
+     * known event of the EPC is ignored.
+     *
+     * @param epc         the EPC.
+     * @param bizStep     the bizStep (may be null).
+     * @param disposition the disposition (may be null).
+     * @param readPoint   the read point (may be null).
+     * @param bizLocation the business location (may be null).
+     * @param eventTime   the event time in ms.
+     * @param now         the current time in ms.
+     */
+    public synchronized void recordEvent(String epc, String bizStep,
+                                         String disposition, String readPoint,
+                                         String bizLocation, long eventTime,
+                                         long now) {
+        if (null == epc) {
+            return;
+        }
+        final int i = slotFor(key(epc), now);
+        if (eventTime < eventTimes[i]) {
+            return;
+        }
+        eventTimes[i] = Math.max(1, eventTime);
+        bizSteps[i] = intern(bizStep);
+        dispositions[i] = intern(disposition);
+        readPoints[i] = intern(readPoint);
+        bizLocations[i] = intern(bizLocation);
+    }
+
+    /**
+     * looks up the history of an EPC.
+     *
+     * @param epc the EPC.
+     * @param now the current time in ms.
+     * @return the history or null if the EPC is unknown resp. expired.
+     */
+    public synchronized Sighting get(String epc, long now) {
+        final int i = find(key(epc), now);
+        if (-1 == i) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new Sighting(epc, string(readers[i]), string(specs[i]),
+                seen[i], string(bizSteps[i]), string(dispositions[i]),
+                string(readPoints[i]), string(bizLocations[i]), eventTimes[i]);
+    }
+
+    /**
+     * writes the interned strings followed by the live entries.
+     *
+     * @param out where to write the entries.
+     * @throws IOException when the entries could not be written.
+     */
+    public synchronized void writeState(DataOutput out) throws IOException {
+        final long now = System.currentTimeMillis();
+        out.writeInt(strings.size());
+        for (String string : strings) {
+            StateSnapshot.writeString(out, string);
+        }
+        int n = 0;
+        for (long stamp : touched) {
+            if ((FREE != stamp) && (now - stamp < ttl)) n++;
+        }
+        out.writeInt(n);
+        for (int i = 0; i < keys.length; i++) {
+            if ((FREE == touched[i]) || (now - touched[i] >= ttl)) continue;
+            out.writeLong(keys[i]);
+            out.writeLong(touched[i]);
+            out.writeLong(seen[i]);
+            out.writeInt(readers[i]);
+            out.writeInt(specs[i]);
+            out.writeLong(eventTimes[i]);
+            out.writeInt(bizSteps[i]);
+            out.writeInt(dispositions[i]);
+            out.writeInt(readPoints[i]);
+            out.writeInt(bizLocations[i]);
+        }
+    }
+
+    /**
+     * adds the entries written by {@link #writeState(DataOutput)} that have
+     * not expired.
+     *
+     * @param in the entries.
+     */
+    public synchronized void readState(ByteBuffer in) {
+        final long now = System.currentTimeMillis();
+        // the codes of the snapshot mapped to the codes of this store.
+        final int[] map = new int[in.getInt()];
+        for (int c = 0; c < map.length; c++) {
+            map[c] = intern(StateSnapshot.readString(in));
+        }
+        final int n = in.getInt();
+        for (int j = 0; j < n; j++) {
+            final long key = in.getLong();
+            final long stamp = in.getLong();
+            final long lastSeen = in.getLong();
+            final int reader = in.getInt();
+            final int spec = in.getInt();
+            final long eventTime = in.getLong();
+            final int bizStep = in.getInt();
+            final int disposition = in.getInt();
+            final int readPoint = in.getInt();
+            final int bizLocation = in.getInt();
+            if ((now - stamp >= ttl) || (-1 != find(key, now))) {
+                // expired resp. already updated since the start.
+                continue;
+            }
+            final int i = slotFor(key, stamp);
+            seen[i] = lastSeen;
+            readers[i] = code(map, reader);
+            specs[i] = code(map, spec);
+            eventTimes[i] = eventTime;
+            bizSteps[i] = code(map, bizStep);
+            dispositions[i] = code(map, disposition);
+            readPoints[i] = code(map, readPoint);
+            bizLocations[i] = code(map, bizLocation);
+        }
+    }
+
+    /**
+     * @return the code of this store for a code of a snapshot.
+     */
+    private static int code(int[] map, int code) {
+        return ((code < 0) || (code >= map.length)) ? NONE : map[code];
+    }
+
+    /**
+     * @param epc the EPC.
+     * @return the fingerprint of the EPC.
+     */
+    private static long key(String epc) {
+        return EPCValue.parse(epc).fingerprint(Util.FINGERPRINT_SEED);
+    }
+
+    /**
+     * @param key the fingerprint of an EPC.
+     * @param now the current time in ms.
+     * @return the slot of the live entry or -1 if there is none.
+     */
+    private int find(long key, long now) {
+        final int start = slot(key);
+        for (int p = 0; p < MAX_PROBES; p++) {
+            final int i = (start + p) & mask;
+            final long stamp = touched[i];
+            if (FREE == stamp) {
+                // slots are never released, so the key cannot be further down.
+                return -1;
+            }
+            if (keys[i] == key) {
+                return (now - stamp < ttl) ? i : -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * finds the slot of a key for an update. an expired entry of the key is
+     * reset, a new entry takes a free or expired slot or evicts the oldest
+     * entry of the probe sequence.
+     *
+     * @param key the fingerprint of an EPC.
+     * @param now the current time in ms.
+     * @return the slot (touched at the given time).
+     */
+    private int slotFor(long key, long now) {
+        final int start = slot(key);
+        int victim = -1;
+        boolean reusable = false;
+        for (int p = 0; p < MAX_PROBES; p++) {
+            final int i = (start + p) & mask;
+            final long stamp = touched[i];
+            if (FREE == stamp) {
+                if (!reusable) {
+                    victim = i;
+                }
+                break;
+            }
+            if (keys[i] == key) {
+                if (now - stamp >= ttl) {
+                    reset(i);
+                }
+                touched[i] = Math.max(stamp, now);
+                return i;
+            }
+            if (!reusable) {
+                if (now - stamp >= ttl) {
+                    victim = i;
+                    reusable = true;
+                } else if ((-1 == victim) || (stamp < touched[victim])) {
+                    victim = i;
+                }
+            }
+        }
+        if ((FREE != touched[victim]) && (now - touched[victim] < ttl)) {
+            evictions++;
+        }
+        reset(victim);
+        keys[victim] = key;
+        touched[victim] = now;
+        return victim;
+    }
+
+    /**
+     * clears the history of a slot.
+     */
+    private void reset(int i) {
+        seen[i] = 0;
+        readers[i] = NONE;
+        specs[i] = NONE;
+        eventTimes[i] = 0;
+        bizSteps[i] = NONE;
+        dispositions[i] = NONE;
+        readPoints[i] = NONE;
+        bizLocations[i] = NONE;
+    }
+
+    /**
+     * @param s a string (may be null).
+     * @return the code of the string (NONE for null or when the table is
+     *         full).
+     */
+    private int intern(String s) {
+        if (null == s) {
+            return NONE;
+        }
+        Integer code = codes.get(s);
+        if (null == code) {
+            if (strings.size() >= MAX_STRINGS) {
+                return NONE;
+            }
+            code = strings.size();
+            strings.add(s);
+            codes.put(s, code);
+        }
+        return code;
+    }
+
+    /**
+     * @param code the code of a string.
+     * @return the string or null.
+     */
+    private String string(int code) {
+        return (NONE == code) ? null : strings.get(code);
+    }
+
+    /**
+     * @param member a member.
+     * @return the first reader that has seen the member or null.
+     */
+    private static String readerOf(ECReportGroupListMember member) {
+        if ((null == member.getExtension()) ||
+                (null == member.getExtension().getStats())) {
+            return null;
+        }
+        for (ECTagStat stat : member.getExtension().getStats().getStat()) {
+            if (null == stat.getStatBlocks()) continue;
+            for (ECReaderStat rstat : stat.getStatBlocks().getStatBlock()) {
+                if (null != rstat.getReaderName()) {
+                    return rstat.getReaderName();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param key a key.
+     * @return the first slot of the probe sequence for the key.
+     */
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * @param now the current time in ms.
+     * @return the number of live entries.
+     */
+    public synchronized int size(long now) {
+        int n = 0;
+        for (long stamp : touched) {
+            if ((FREE != stamp) && (now - stamp < ttl)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * removes all the entries.
+     */
+    public synchronized void clear() {
+        Arrays.fill(touched, FREE);
+    }
+
+    /**
+     * @return the number of slots.
+     */
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the time to live of an entry in ms.
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * @return the number of lookups finding an entry.
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups finding no entry.
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of live entries that have been evicted.
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("capacity=%d, ttl=%d ms (hits=%d, misses=%d, " +
+                "evictions=%d)", getCapacity(), ttl, getHits(), getMisses(),
+                getEvictions());
+    }
+}
@@ -1,34 +1,150 @@
 package org.fosstrak.capturingapp.util;
 
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
 import org.fosstrak.ale.xsd.epcglobal.EPC;
 import org.fosstrak.epcis.model.*;
 
 import javax.xml.datatype.DatatypeConfigurationException;
+import javax.xml.datatype.DatatypeConstants;
 import javax.xml.datatype.DatatypeFactory;
 import javax.xml.datatype.XMLGregorianCalendar;
 import java.math.BigDecimal;
-import java.text.DecimalFormat;
-import java.util.GregorianCalendar;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 /**
- * Helper class to assemble an EPCIS document. you can add object events and
+ * Helper class to assemble an EPCIS document. you can add object events (or
+ * quantity events aggregated by EPC class) and
  * when you have all the events together, you can compile the final
- * EPCIS document for further processing.
+ * EPCIS document for further processing.<br/>
+ * The events are appended directly to the event list of the document. The
+ * datatype factory and the time zone offset strings are shared between all
+ * instances (and threads), so creating many small documents is cheap. An
+ * instance itself is not meant to be shared between threads, but it can be
+ * reused for several documents: {@link #getDocument()} hands the events over
+ * to the document and starts the next one.<br/>
+ * By default the event time is the wall clock time when the event is added.
+ * Use {@link #SimpleEPCISDocument(ECReports)} or
+ * {@link #setEventTime(XMLGregorianCalendar)} to use the time of the
+ * ECReports instead.
  */
 public class SimpleEPCISDocument {
 
     /**
-     * a list of all the object events in the EPCIS document.
+     * the schema version of the generated documents.
      */
+    public static final BigDecimal SCHEMA_VERSION = new BigDecimal("1.0");
+
+    // maximum time zone offset in minutes covered by the precomputed offsets.
+    private static final int MAX_OFFSET = 14 * 60;
+
+    // precomputed offset strings from -14:00 to +14:00.
+    private static final String[] OFFSETS = new String[2 * MAX_OFFSET + 1];
+
+    static {
+        for (int i = -MAX_OFFSET; i <= MAX_OFFSET; i++) {
+            OFFSETS[i + MAX_OFFSET] = formatOffset(i);
+        }
+    }
+
+    // one datatype factory per thread (the factory is not guaranteed to be
+    // thread-safe and the lookup is expensive).
+    private static final ThreadLocal<DatatypeFactory> FACTORY =
+            new ThreadLocal<DatatypeFactory>() {
+                @Override
+                protected DatatypeFactory initialValue() {
+                    try {
+                        return DatatypeFactory.newInstance();
+                    } catch (DatatypeConfigurationException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+
+    /**
+     * the list of all the events in the EPCIS document.
+     */
+    protected EventListType eventList = new EventListType();
+
+    /**
+     * object events added by subclasses of earlier versions. the events are
+     * appended to the event list by {@link #getDocument()}.
+     *
+     * @deprecated add the events to {@link #eventList} instead.
+     */
+    @Deprecated
     protected LinkedList<ObjectEventType> objectEvents =
             new LinkedList<ObjectEventType>();
 
+    /**
+     * the event time to use for the events or null to use the current time.
+     */
+    protected XMLGregorianCalendar eventTime = null;
+
+    /**
+     * the time zone offset of the event time.
+     */
+    protected String eventTimeZoneOffset = null;
+
+    /**
+     * create a new document using the current time as event time.
+     */
+    public SimpleEPCISDocument() {
+    }
+
+    /**
+     * create a new document using the date of the reports as event time. if
+     * the reports do not carry a date, the current time is used.
+     *
+     * @param reports the reports the events are generated from.
+     */
+    public SimpleEPCISDocument(ECReports reports) {
+        if (null != reports) {
+            setEventTime(reports.getDate());
+        }
+    }
+
+    /**
+     * sets the event time for all subsequently added events. a time without
+     * time zone is taken as local time of the JVM.
+     *
+     * @param eventTime the event time or null to use the current time.
+     */
+    public void setEventTime(XMLGregorianCalendar eventTime) {
+        this.eventTime = withTimezone(eventTime);
+        this.eventTimeZoneOffset = (null == this.eventTime) ? null :
+                getTimeOffset(this.eventTime);
+    }
+
+    /**
+     * @param time a time (may be null).
+     * @return the time if it carries a time zone, otherwise a copy with the
+     *         offset of the default time zone of the JVM.
+     */
+    protected static XMLGregorianCalendar withTimezone(XMLGregorianCalendar time) {
+        if ((null == time) ||
+                (DatatypeConstants.FIELD_UNDEFINED != time.getTimezone())) {
+            return time;
+        }
+        XMLGregorianCalendar copy = (XMLGregorianCalendar) time.clone();
+        copy.setTimezone(defaultOffset(time));
+        return copy;
+    }
+
+    /**
+     * @param time a time without time zone.
+     * @return the offset of the default time zone at that time in minutes.
+     */
+    private static int defaultOffset(XMLGregorianCalendar time) {
+        // without time zone the calendar is converted in the default zone.
+        final long millis = time.toGregorianCalendar().getTimeInMillis();
+        return TimeZone.getDefault().getOffset(millis) / 60000;
+    }
+
     /**
      * add a new object event to the EPCIS document.
      *
-     * @param epcs          a list of EPCs to put into the report.
+     * @param epcs          a list of EPCs (or {@link TagSighting}s) to put
+     *                      into the report.
      * @param action        the kind of action triggered by this object even.
      * @param bizSteps      the <code>bizsteps</code> to set in the event.
      * @param disposition   the disposition.
@@ -40,23 +156,23 @@ public class SimpleEPCISDocument {
                                String readPointId, String bizLocationId) {
 
         EPCListType epcList = new EPCListType();
+        List<org.fosstrak.epcis.model.EPC> target = epcList.getEpc();
 
         // add the epcs
         for (Object o : epcs) {
-            if (o instanceof EPC) {
-                EPC epc = (EPC) o;
+            String value = epcValue(o);
+            if (null != value) {
                 org.fosstrak.epcis.model.EPC nepc =
                         new org.fosstrak.epcis.model.EPC();
-                nepc.setValue(epc.getValue());
-                epcList.getEpc().add(nepc);
+                nepc.setValue(value);
+                target.add(nepc);
             }
         }
 
         ObjectEventType objEvent = new ObjectEventType();
         objEvent.setEpcList(epcList);
 
-        objEvent.setEventTime(getNow());
-        objEvent.setEventTimeZoneOffset(getTimeOffset(objEvent.getEventTime()));
+        applyEventTime(objEvent);
 
         // set action
         objEvent.setAction(action);
@@ -77,7 +193,126 @@ public class SimpleEPCISDocument {
         bizLocation.setId(bizLocationId);
         objEvent.setBizLocation(bizLocation);
 
-        objectEvents.add(objEvent);
+        eventList.getObjectEventOrAggregationEventOrQuantityEvent().add(objEvent);
+    }
+
+    /**
+     * aggregates the EPCs by EPC class and adds one quantity event per class
+     * holding the number of EPCs of the class (see {@link EPCClass} for the
+     * supported EPC representations). EPCs that cannot be classified are
+     * added as object event with action <code>OBSERVE</code>. Optionally a
+     * sample of the classified EPCs is added as object event as well.
+     *
+     * @param epcs          a list of EPCs.
+     * @param bizSteps      the <code>bizsteps</code> to set in the events.
+     * @param disposition   the disposition.
+     * @param readPointId   the id of the read point.
+     * @param bizLocationId the id of the location.
+     * @param sampleSize    the maximum number of classified EPCs to add as
+     *                      object event (0 for none).
+     */
+    public void addQuantityEvents(List<Object> epcs,
+                                  String bizSteps, String disposition,
+                                  String readPointId, String bizLocationId,
+                                  int sampleSize) {
+
+        Map<String, int[]> counts = new LinkedHashMap<String, int[]>();
+        List<Object> unclassified = new ArrayList<Object>();
+        List<Object> sample = new ArrayList<Object>(Math.max(0, sampleSize));
+        for (Object o : epcs) {
+            String value = epcValue(o);
+            if (null == value) continue;
+
+            String epcClass = EPCClass.of(value);
+            if (null == epcClass) {
+                unclassified.add(o);
+                continue;
+            }
+            int[] count = counts.get(epcClass);
+            if (null == count) {
+                count = new int[1];
+                counts.put(epcClass, count);
+            }
+            count[0]++;
+            if (sample.size() < sampleSize) {
+                sample.add(o);
+            }
+        }
+
+        for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+            addQuantityEvent(entry.getKey(), entry.getValue()[0], bizSteps,
+                    disposition, readPointId, bizLocationId);
+        }
+        if (!unclassified.isEmpty()) {
+            addObjectEvent(unclassified, ActionType.OBSERVE, bizSteps,
+                    disposition, readPointId, bizLocationId);
+        }
+        if (!sample.isEmpty()) {
+            addObjectEvent(sample, ActionType.OBSERVE, bizSteps,
+                    disposition, readPointId, bizLocationId);
+        }
+    }
+
+    /**
+     * add a new quantity event to the EPCIS document.
+     *
+     * @param epcClass      the EPC class (eg. an SGTIN pattern).
+     * @param quantity      the number of objects of the class.
+     * @param bizSteps      the <code>bizsteps</code> to set in the event.
+     * @param disposition   the disposition.
+     * @param readPointId   the id of the read point.
+     * @param bizLocationId the id of the location.
+     */
+    public void addQuantityEvent(String epcClass, int quantity,
+                                 String bizSteps, String disposition,
+                                 String readPointId, String bizLocationId) {
+
+        QuantityEventType event = new QuantityEventType();
+        applyEventTime(event);
+        event.setEpcClass(epcClass);
+        event.setQuantity(quantity);
+        event.setBizStep(bizSteps);
+        event.setDisposition(disposition);
+
+        ReadPointType readPoint = new ReadPointType();
+        readPoint.setId(readPointId);
+        event.setReadPoint(readPoint);
+
+        BusinessLocationType bizLocation = new BusinessLocationType();
+        bizLocation.setId(bizLocationId);
+        event.setBizLocation(bizLocation);
+
+        eventList.getObjectEventOrAggregationEventOrQuantityEvent().add(event);
+    }
+
+    /**
+     * @param o an {@link EPC} or a {@link TagSighting}.
+     * @return the EPC value or null if the object does not provide an EPC.
+     */
+    protected static String epcValue(Object o) {
+        if (o instanceof EPC) {
+            return ((EPC) o).getValue();
+        }
+        if (o instanceof TagSighting) {
+            return ((TagSighting) o).getEpc().getValue();
+        }
+        return null;
+    }
+
+    /**
+     * sets event time and time zone offset of an event.
+     *
+     * @param event the event.
+     */
+    protected void applyEventTime(EPCISEventType event) {
+        if (null != eventTime) {
+            event.setEventTime(eventTime);
+            event.setEventTimeZoneOffset(eventTimeZoneOffset);
+        } else {
+            XMLGregorianCalendar now = getNow();
+            event.setEventTime(now);
+            event.setEventTimeZoneOffset(getTimeOffset(now));
+        }
     }
 
     /**
@@ -87,51 +322,77 @@ public class SimpleEPCISDocument {
      * @return a time offset string.
      */
     protected String getTimeOffset(XMLGregorianCalendar eventTime) {
-        String offset = "";
-        // get the current time zone and set the eventTimeZoneOffset
-        if (null != eventTime) {
-            int timezone = eventTime.getTimezone();
-            int h = Math.abs(timezone / 60);
-            int m = Math.abs(timezone % 60);
-            DecimalFormat format = new DecimalFormat("00");
-            String sign = (timezone < 0) ? "-" : "+";
-            offset = sign + format.format(h) + ":" + format.format(m);
+        if (null == eventTime) {
+            return "";
+        }
+        int timezone = eventTime.getTimezone();
+        if (DatatypeConstants.FIELD_UNDEFINED == timezone) {
+            timezone = defaultOffset(eventTime);
+        }
+        if ((timezone >= -MAX_OFFSET) && (timezone <= MAX_OFFSET)) {
+            return OFFSETS[timezone + MAX_OFFSET];
         }
-        return offset;
+        return formatOffset(timezone);
+    }
+
+    /**
+     * @param timezone the time zone offset in minutes.
+     * @return the offset formatted as <code>+hh:mm</code>.
+     */
+    private static String formatOffset(int timezone) {
+        final int h = Math.abs(timezone / 60);
+        final int m = Math.abs(timezone % 60);
+        StringBuilder b = new StringBuilder(6);
+        b.append((timezone < 0) ? '-' : '+');
+        b.append((char) ('0' + h / 10)).append((char) ('0' + h % 10));
+        b.append(':');
+        b.append((char) ('0' + m / 10)).append((char) ('0' + m % 10));
+        return b.toString();
     }
 
     /**
      * @return a gregorian calendar describing the current time.
      */
     protected XMLGregorianCalendar getNow() {
-        // get the current time and set the eventTime
-        XMLGregorianCalendar now = null;
-        try {
-            DatatypeFactory dataFactory = DatatypeFactory.newInstance();
-            now = dataFactory.newXMLGregorianCalendar(new GregorianCalendar());
-        } catch (DatatypeConfigurationException e) {
-            e.printStackTrace();
-        }
-        return now;
+        return FACTORY.get().newXMLGregorianCalendar(new GregorianCalendar());
+    }
+
+    /**
+     * @return the number of events added so far.
+     */
+    public int size() {
+        return eventList.getObjectEventOrAggregationEventOrQuantityEvent().size() +
+                objectEvents.size();
+    }
+
+    /**
+     * starts a new document. documents returned earlier are not affected.
+     */
+    public void reset() {
+        eventList = new EventListType();
+        objectEvents.clear();
     }
 
     /**
+     * assembles the EPCIS document. the event list is handed over to the
+     * document, the events added afterwards go to the next document.
+     *
      * @return the assembled EPCIS document.
      */
     public EPCISDocumentType getDocument() {
+        if (!objectEvents.isEmpty()) {
+            eventList.getObjectEventOrAggregationEventOrQuantityEvent()
+                    .addAll(objectEvents);
+            objectEvents.clear();
+        }
         // create the EPCISDocument
         EPCISDocumentType epcisDoc = new EPCISDocumentType();
         EPCISBodyType epcisBody = new EPCISBodyType();
-        EventListType eventList = new EventListType();
-
-        for (ObjectEventType objEvent : objectEvents) {
-            eventList.getObjectEventOrAggregationEventOrQuantityEvent().
-                    add(objEvent);
-        }
         epcisBody.setEventList(eventList);
+        eventList = new EventListType();
         epcisDoc.setEPCISBody(epcisBody);
-        epcisDoc.setSchemaVersion(new BigDecimal("1.0"));
+        epcisDoc.setSchemaVersion(SCHEMA_VERSION);
         epcisDoc.setCreationDate(getNow());
         return epcisDoc;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,31 @@
+package org.fosstrak.capturingapp.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * in-memory state that survives a restart through a {@link StateSnapshot}.
+ * Filters and handlers registered with a capture application implementing
+ * this interface are included in the snapshots of the capture application.
+ */
+public interface Snapshotable {
+
+    /**
+     * writes the state.
+     *
+     * @param out where to write the state.
+     * @throws IOException when the state could not be written.
+     */
+    public void writeState(DataOutput out) throws IOException;
+
+    /**
+     * restores the state written by {@link #writeState(DataOutput)}. the
+     * buffer holds exactly the written state (usually a memory-mapped
+     * snapshot file). entries that have expired in the meantime should be
+     * skipped.
+     *
+     * @param in the state.
+     */
+    public void readState(ByteBuffer in);
+}
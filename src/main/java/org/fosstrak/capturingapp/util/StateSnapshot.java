@@ -0,0 +1,366 @@
+package org.fosstrak.capturingapp.util;
+
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * snapshot of the in-memory state of a capture application (de-duplication
+ * windows, delta populations, the sighting store, ...) in a local file, so a
+ * restart does not begin with cold state. The state is written periodically
+ * and on shutdown and restored at startup (small files are read into the
+ * heap, large ones are memory-mapped).<br/>
+ * File format: the magic number {@link #MAGIC}, the format version, the time
+ * of the snapshot (ms) and the number of sections, followed by the sections
+ * <code>UTF name, int length, state</code>. Every section holds the state of
+ * one {@link Snapshotable}, sections without a registered state (e.g. after
+ * a reconfiguration) are skipped. The file is written to a temporary file
+ * first and renamed, so a crash during a snapshot keeps the previous one; a
+ * crash between removing the previous snapshot and the rename leaves the
+ * complete temporary file, which is restored instead.
+ */
+public class StateSnapshot {
+
+    // logger
+    private static final Logger log = Logger.getLogger(StateSnapshot.class);
+
+    /**
+     * the magic number at the start of a snapshot file.
+     */
+    public static final int MAGIC = 0x43415053;
+
+    /**
+     * the version of the file format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * the suffix of the snapshot files.
+     */
+    public static final String SUFFIX = ".snap";
+
+    /**
+     * the default interval between the periodic snapshots in ms.
+     */
+    public static final long DEFAULT_INTERVAL = 60000;
+
+    /**
+     * the size in bytes up to which a snapshot file is read into the heap,
+     * larger files are memory-mapped.
+     */
+    public static final int MAP_THRESHOLD = 16 * 1024 * 1024;
+
+    // the snapshot file.
+    private final File file;
+
+    // the states by section name.
+    private final Map<String, Snapshotable> states =
+            new LinkedHashMap<String, Snapshotable>();
+
+    // the timer of the periodic snapshots (null = not started).
+    private ScheduledExecutorService timer = null;
+
+    // the number of snapshots written.
+    private long saved = 0;
+
+    // the duration of the last snapshot in ms.
+    private long lastDuration = 0;
+
+    /**
+     * create a new snapshot.
+     *
+     * @param file the snapshot file.
+     */
+    public StateSnapshot(File file) {
+        this.file = file;
+    }
+
+    /**
+     * adds a state to the snapshot.
+     *
+     * @param name  the name of the section (unique within the snapshot and
+     *              stable across restarts).
+     * @param state the state.
+     */
+    public synchronized void register(String name, Snapshotable state) {
+        states.put(name, state);
+    }
+
+    /**
+     * removes all the states.
+     */
+    public synchronized void clear() {
+        states.clear();
+    }
+
+    /**
+     * writes the snapshot file.
+     *
+     * @throws IOException when the snapshot could not be written.
+     */
+    public synchronized void save() throws IOException {
+        final long start = System.currentTimeMillis();
+        final File dir = file.getAbsoluteFile().getParentFile();
+        if ((null != dir) && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("不能创建目录: " + dir);
+        }
+        final File tmp = tmpFile();
+        final FileOutputStream fos = new FileOutputStream(tmp);
+        final DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(fos, 65536));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(start);
+            out.writeInt(states.size());
+            // each section is written to memory first for its length, the
+            // locks of the states are only held while serializing.
+            final ByteArrayOutputStream section = new ByteArrayOutputStream();
+            for (Map.Entry<String, Snapshotable> e : states.entrySet()) {
+                section.reset();
+                e.getValue().writeState(new DataOutputStream(section));
+                out.writeUTF(e.getKey());
+                out.writeInt(section.size());
+                section.writeTo(out);
+            }
+            // on disk before the previous snapshot is removed.
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        // replace the previous snapshot (atomic where the platform renames
+        // over an existing file). otherwise the previous snapshot is removed
+        // first, until the rename the temporary file is restored instead
+        // (see restore()).
+        if (!tmp.renameTo(file)) {
+            if (file.exists() && !file.delete()) {
+                throw new IOException("不能替换快照: " + file);
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("不能替换快照: " + file);
+            }
+        }
+        saved++;
+        lastDuration = System.currentTimeMillis() - start;
+        log.debug(String.format("快照 %s: %d 字节, %d ms", file,
+                file.length(), lastDuration));
+    }
+
+    /**
+     * @return the temporary file a snapshot is written to.
+     */
+    private File tmpFile() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    /**
+     * restores the registered states from the snapshot file. a missing file
+     * is not an error, a corrupt section is skipped. when the snapshot file
+     * is missing, the temporary file of an interrupted replacement is
+     * restored (and renamed to the snapshot file).
+     *
+     * @return the number of restored sections.
+     */
+    public synchronized int restore() {
+        File source = file;
+        if (!file.isFile()) {
+            final File tmp = tmpFile();
+            if (!tmp.isFile()) {
+                return 0;
+            }
+            log.warn("快照丢失, 使用临时文件: " + tmp);
+            source = tmp.renameTo(file) ? file : tmp;
+        }
+        final ByteBuffer buffer;
+        try {
+            buffer = read(source);
+        } catch (IOException e) {
+            log.error("不能读取快照: " + source + ": " + e.getMessage());
+            return 0;
+        }
+        int restored = 0;
+        try {
+            if ((MAGIC != buffer.getInt()) || (VERSION != buffer.getInt())) {
+                log.warn("未知的快照格式: " + source);
+                return 0;
+            }
+            final long time = buffer.getLong();
+            final int sections = buffer.getInt();
+            for (int i = 0; i < sections; i++) {
+                final String name = readUTF(buffer);
+                final int length = buffer.getInt();
+                final ByteBuffer state = buffer.slice();
+                state.limit(length);
+                buffer.position(buffer.position() + length);
+
+                final Snapshotable s = states.get(name);
+                if (null == s) {
+                    log.debug("忽略快照中的状态: " + name);
+                    continue;
+                }
+                try {
+                    s.readState(state);
+                    restored++;
+                } catch (RuntimeException e) {
+                    log.warn(String.format("不能恢复状态 %s: %s", name, e));
+                }
+            }
+            log.info(String.format("从快照 %s 恢复 %d 个状态 (%d ms 之前).",
+                    source, restored, System.currentTimeMillis() - time));
+        } catch (RuntimeException e) {
+            // truncated file.
+            log.warn(String.format("快照不完整 %s: %s", source, e));
+        }
+        return restored;
+    }
+
+    /**
+     * reads a snapshot file into the heap, resp. maps it if it is larger
+     * than {@link #MAP_THRESHOLD}.
+     *
+     * @param f the snapshot file.
+     * @return the content of the file.
+     * @throws IOException when the file could not be read.
+     */
+    private static ByteBuffer read(File f) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            final long length = raf.length();
+            if (length > MAP_THRESHOLD) {
+                // the mapping stays valid after closing the file.
+                return raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                        0, length);
+            }
+            final byte[] b = new byte[(int) length];
+            raf.readFully(b);
+            return ByteBuffer.wrap(b);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * starts the periodic snapshots.
+     *
+     * @param interval the interval between the snapshots in ms.
+     */
+    public synchronized void start(long interval) {
+        if ((null != timer) || (interval <= 0)) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "CaptureApp-snapshot");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        timer.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    save();
+                } catch (Exception e) {
+                    log.error("不能写入快照: " + e.getMessage());
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * stops the periodic snapshots and writes a final snapshot.
+     */
+    public void stop() {
+        synchronized (this) {
+            if (null != timer) {
+                timer.shutdownNow();
+                timer = null;
+            }
+        }
+        try {
+            save();
+        } catch (IOException e) {
+            log.error("不能写入快照: " + e.getMessage());
+        }
+    }
+
+    /**
+     * writes a string that may be null.
+     *
+     * @param out where to write the string.
+     * @param s   the string (may be null).
+     * @throws IOException when the string could not be written.
+     */
+    public static void writeString(DataOutput out, String s)
+            throws IOException {
+        if (null == s) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * reads a string written by {@link #writeString(DataOutput, String)}.
+     *
+     * @param in the buffer.
+     * @return the string (may be null).
+     */
+    public static String readString(ByteBuffer in) {
+        final int length = in.getInt();
+        if (-1 == length) {
+            return null;
+        }
+        final byte[] b = new byte[length];
+        in.get(b);
+        try {
+            return new String(b, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * reads a string written by <code>DataOutput.writeUTF</code> (plain
+     * ASCII section names).
+     */
+    private static String readUTF(ByteBuffer in) {
+        final byte[] b = new byte[in.getShort() & 0xffff];
+        in.get(b);
+        try {
+            return new String(b, "UTF-8");
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the snapshot file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s (states=%d, saved=%d, last=%d ms)", file,
+                states.size(), saved, lastDuration);
+    }
+}
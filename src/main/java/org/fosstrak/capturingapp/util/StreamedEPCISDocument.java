@@ -0,0 +1,55 @@
+package org.fosstrak.capturingapp.util;
+
+import org.fosstrak.epcis.model.EPCISDocumentType;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * an EPCIS document that has already been serialized to XML. The document
+ * is a regular <code>EPCISDocumentType</code>, so it can be returned from
+ * handlers and rules like any other document, but it does not carry an
+ * EPCIS body: the capture application delivers the serialized XML as is,
+ * without marshalling an object graph.
+ */
+public class StreamedEPCISDocument extends EPCISDocumentType {
+
+    // the serialized document (UTF-8).
+    private final byte[] xml;
+
+    // the number of events in the document.
+    private final int eventCount;
+
+    /**
+     * create a new streamed document.
+     *
+     * @param xml        the serialized document (UTF-8).
+     * @param eventCount the number of events in the document.
+     */
+    public StreamedEPCISDocument(byte[] xml, int eventCount) {
+        this.xml = xml;
+        this.eventCount = eventCount;
+        setSchemaVersion(SimpleEPCISDocument.SCHEMA_VERSION);
+    }
+
+    /**
+     * @return a stream on the serialized document.
+     */
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(xml);
+    }
+
+    /**
+     * @return the serialized document (UTF-8). do not modify.
+     */
+    public byte[] getXml() {
+        return xml;
+    }
+
+    /**
+     * @return the number of events in the document.
+     */
+    public int getEventCount() {
+        return eventCount;
+    }
+}
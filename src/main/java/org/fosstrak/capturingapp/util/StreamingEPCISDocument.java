@@ -0,0 +1,295 @@
+package org.fosstrak.capturingapp.util;
+
+import org.fosstrak.ale.xsd.ale.epcglobal.ECReports;
+import org.fosstrak.capturingapp.CaptureApp;
+import org.fosstrak.epcis.model.ActionType;
+import org.fosstrak.epcis.model.EPCISDocumentType;
+
+import javax.xml.datatype.XMLGregorianCalendar;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * drop-in replacement for {@link SimpleEPCISDocument} that does not build a
+ * JAXB object graph. The object and quantity events are kept in a compact
+ * form (the EPCs as plain strings) and {@link #getDocument()} serializes
+ * them with StAX into a {@link StreamedEPCISDocument} that the capture
+ * application delivers without marshalling. A document serialized while a
+ * handler is executed carries the ID of the current {@link Trace} in the
+ * attribute {@link CaptureApp#TRACE_ID_ATTRIBUTE} of the root element.<br/>
+ * Use the {@link SimpleEPCISDocument} when a handler needs to inspect or
+ * modify the events after they have been added.
+ */
+public class StreamingEPCISDocument extends SimpleEPCISDocument {
+
+    /**
+     * the EPCIS 1.0 name space.
+     */
+    public static final String EPCIS_NS = "urn:epcglobal:epcis:xsd:1";
+
+    // the StAX factory is thread-safe once configured.
+    private static final XMLOutputFactory OUTPUT_FACTORY =
+            XMLOutputFactory.newInstance();
+
+    // initial size of the per thread serialization buffer.
+    private static final int BUFFER_SIZE = 8192;
+
+    // serialization buffer per thread.
+    private static final ThreadLocal<Buffer> BUFFER = new ThreadLocal<Buffer>() {
+        @Override
+        protected Buffer initialValue() {
+            return new Buffer();
+        }
+    };
+
+    /**
+     * compact representation of an object event (<code>epcs</code> set) or
+     * a quantity event (<code>epcClass</code> set).
+     */
+    protected static class Event {
+        final String[] epcs;
+        final String epcClass;
+        final int quantity;
+        final ActionType action;
+        final String bizStep;
+        final String disposition;
+        final String readPoint;
+        final String bizLocation;
+        final XMLGregorianCalendar eventTime;
+        final String eventTimeZoneOffset;
+
+        Event(String[] epcs, String epcClass, int quantity,
+              ActionType action, String bizStep,
+              String disposition, String readPoint, String bizLocation,
+              XMLGregorianCalendar eventTime, String eventTimeZoneOffset) {
+            this.epcs = epcs;
+            this.epcClass = epcClass;
+            this.quantity = quantity;
+            this.action = action;
+            this.bizStep = bizStep;
+            this.disposition = disposition;
+            this.readPoint = readPoint;
+            this.bizLocation = bizLocation;
+            this.eventTime = eventTime;
+            this.eventTimeZoneOffset = eventTimeZoneOffset;
+        }
+    }
+
+    /**
+     * the events of the document.
+     */
+    protected List<Event> events = new ArrayList<Event>();
+
+    /**
+     * create a new document using the current time as event time.
+     */
+    public StreamingEPCISDocument() {
+        super();
+    }
+
+    /**
+     * create a new document using the date of the reports as event time.
+     *
+     * @param reports the reports the events are generated from.
+     */
+    public StreamingEPCISDocument(ECReports reports) {
+        super(reports);
+    }
+
+    @Override
+    public void addObjectEvent(List<Object> epcs,
+                               ActionType action, String bizSteps, String disposition,
+                               String readPointId, String bizLocationId) {
+
+        String[] values = new String[epcs.size()];
+        int n = 0;
+        for (Object o : epcs) {
+            String value = epcValue(o);
+            if (null != value) {
+                values[n++] = value;
+            }
+        }
+        if (n < values.length) {
+            String[] shrunk = new String[n];
+            System.arraycopy(values, 0, shrunk, 0, n);
+            values = shrunk;
+        }
+
+        addEvent(values, null, 0, action, bizSteps, disposition,
+                readPointId, bizLocationId);
+    }
+
+    @Override
+    public void addQuantityEvent(String epcClass, int quantity,
+                                 String bizSteps, String disposition,
+                                 String readPointId, String bizLocationId) {
+
+        addEvent(null, epcClass, quantity, null, bizSteps, disposition,
+                readPointId, bizLocationId);
+    }
+
+    /**
+     * adds a compact event stamped with the event time.
+     */
+    private void addEvent(String[] epcs, String epcClass, int quantity,
+                          ActionType action, String bizSteps, String disposition,
+                          String readPointId, String bizLocationId) {
+
+        XMLGregorianCalendar time = eventTime;
+        String offset = eventTimeZoneOffset;
+        if (null == time) {
+            time = getNow();
+            offset = getTimeOffset(time);
+        }
+        events.add(new Event(epcs, epcClass, quantity, action, bizSteps,
+                disposition, readPointId, bizLocationId, time, offset));
+    }
+
+    @Override
+    public int size() {
+        return events.size();
+    }
+
+    @Override
+    public void reset() {
+        events = new ArrayList<Event>();
+    }
+
+    /**
+     * serializes the document, the events added afterwards go to the next
+     * document.
+     *
+     * @return a {@link StreamedEPCISDocument} holding the XML.
+     */
+    @Override
+    public EPCISDocumentType getDocument() {
+        Buffer buffer = BUFFER.get();
+        buffer.reset();
+        try {
+            writeTo(buffer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        final int size = events.size();
+        reset();
+        return new StreamedEPCISDocument(buffer.toByteArray(), size);
+    }
+
+    /**
+     * serializes the document as EPCIS 1.0 capture XML into a stream. the
+     * bytes are delivered as they are, the trace ID is written here as the
+     * attributes set on the {@link StreamedEPCISDocument} are not
+     * serialized.
+     *
+     * @param out the stream.
+     * @throws IOException when the document could not be written.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        try {
+            XMLStreamWriter w = OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+            w.writeStartDocument("UTF-8", "1.0");
+            w.writeStartElement("epcis", "EPCISDocument", EPCIS_NS);
+            w.writeNamespace("epcis", EPCIS_NS);
+            final Trace trace = Trace.current();
+            if (null != trace) {
+                final QName attribute = CaptureApp.TRACE_ID_ATTRIBUTE;
+                w.writeNamespace("cap", attribute.getNamespaceURI());
+                w.writeAttribute("cap", attribute.getNamespaceURI(),
+                        attribute.getLocalPart(), trace.getId());
+            }
+            w.writeAttribute("schemaVersion", SCHEMA_VERSION.toPlainString());
+            w.writeAttribute("creationDate", getNow().toXMLFormat());
+            w.writeStartElement("EPCISBody");
+            w.writeStartElement("EventList");
+            for (Event event : events) {
+                writeEvent(w, event);
+            }
+            w.writeEndElement();
+            w.writeEndElement();
+            w.writeEndElement();
+            w.writeEndDocument();
+            w.flush();
+            w.close();
+        } catch (XMLStreamException e) {
+            IOException ioe = new IOException(e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    /**
+     * writes one object or quantity event.
+     */
+    private static void writeEvent(XMLStreamWriter w, Event event)
+            throws XMLStreamException {
+
+        final boolean object = (null != event.epcs);
+        w.writeStartElement(object ? "ObjectEvent" : "QuantityEvent");
+        writeElement(w, "eventTime", event.eventTime.toXMLFormat());
+        writeElement(w, "eventTimeZoneOffset", event.eventTimeZoneOffset);
+        if (object) {
+            w.writeStartElement("epcList");
+            for (String epc : event.epcs) {
+                writeElement(w, "epc", epc);
+            }
+            w.writeEndElement();
+            writeElement(w, "action",
+                    (null == event.action) ? null : event.action.value());
+        } else {
+            writeElement(w, "epcClass", event.epcClass);
+            writeElement(w, "quantity", Integer.toString(event.quantity));
+        }
+        writeElement(w, "bizStep", event.bizStep);
+        writeElement(w, "disposition", event.disposition);
+        if (null != event.readPoint) {
+            w.writeStartElement("readPoint");
+            writeElement(w, "id", event.readPoint);
+            w.writeEndElement();
+        }
+        if (null != event.bizLocation) {
+            w.writeStartElement("bizLocation");
+            writeElement(w, "id", event.bizLocation);
+            w.writeEndElement();
+        }
+        w.writeEndElement();
+    }
+
+    /**
+     * writes a simple element unless the value is null.
+     */
+    private static void writeElement(XMLStreamWriter w, String name, String value)
+            throws XMLStreamException {
+
+        if (null == value) {
+            return;
+        }
+        w.writeStartElement(name);
+        w.writeCharacters(value);
+        w.writeEndElement();
+    }
+
+    /**
+     * reusable output buffer.
+     */
+    private static final class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super(BUFFER_SIZE);
+        }
+
+        @Override
+        public synchronized void reset() {
+            // do not keep huge buffers around after an exceptional document.
+            if (buf.length > 64 * BUFFER_SIZE) {
+                buf = new byte[BUFFER_SIZE];
+            }
+            super.reset();
+        }
+    }
+}
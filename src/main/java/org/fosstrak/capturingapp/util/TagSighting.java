@@ -0,0 +1,152 @@
+package org.fosstrak.capturingapp.util;
+
+import org.fosstrak.ale.xsd.ale.epcglobal.*;
+import org.fosstrak.ale.xsd.epcglobal.EPC;
+
+import java.util.Collection;
+
+/**
+ * lightweight fact describing one tag sighting: a member of an ECReport read
+ * by one reader. A member read by several readers results in one sighting
+ * per reader, a member without reader statistics in one sighting with the
+ * reader set to <code>null</code>.<br/>
+ * Rules can match on the plain fields of the sighting (which Drools is able
+ * to index) instead of extracting the EPCs from the whole ECReports. The
+ * sightings can be passed to
+ * {@link SimpleEPCISDocument#addObjectEvent(java.util.List, org.fosstrak.epcis.model.ActionType, String, String, String, String)}
+ * in place of EPCs.
+ */
+public class TagSighting {
+
+    // the EPC of the member (the pure identity, if available).
+    private final EPC epc;
+
+    // the compact value of the member.
+    private final EPCValue value;
+
+    // the name of the reader.
+    private final String reader;
+
+    // the spec name of the ECReports.
+    private final String specName;
+
+    // the report name of the ECReport.
+    private final String reportName;
+
+    // the time of the ECReports in milliseconds.
+    private final long timestamp;
+
+    /**
+     * create a new sighting.
+     *
+     * @param epc        the EPC.
+     * @param value      the compact value of the EPC.
+     * @param reader     the name of the reader.
+     * @param specName   the spec name.
+     * @param reportName the report name.
+     * @param timestamp  the time of the sighting in milliseconds.
+     */
+    public TagSighting(EPC epc, EPCValue value, String reader,
+                       String specName, String reportName, long timestamp) {
+        this.epc = epc;
+        this.value = value;
+        this.reader = reader;
+        this.specName = specName;
+        this.reportName = reportName;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * creates the sightings of all the members in the reports.
+     *
+     * @param reports the reports.
+     * @param target  the collection where to add the sightings to.
+     * @return the number of sightings added.
+     */
+    public static int extract(final ECReports reports,
+                              final Collection<? super TagSighting> target) {
+        final long timestamp = (null == reports.getDate()) ?
+                System.currentTimeMillis() :
+                reports.getDate().toGregorianCalendar().getTimeInMillis();
+        final int[] count = new int[1];
+
+        Util.visitMembers(reports, new Util.MemberVisitor() {
+            public boolean visit(ECReport report, ECReportGroupListMember member) {
+                final EPC epc = Util.selectAny.select(member);
+                if (null == epc) return true;
+                final EPCValue value = EPCValue.of(member);
+
+                boolean hasReader = false;
+                if ((null != member.getExtension()) &&
+                        (null != member.getExtension().getStats())) {
+                    for (ECTagStat stat : member.getExtension().getStats().getStat()) {
+                        if (null == stat.getStatBlocks()) continue;
+                        for (ECReaderStat rstat : stat.getStatBlocks().getStatBlock()) {
+                            hasReader = true;
+                            target.add(new TagSighting(epc, value,
+                                    rstat.getReaderName(), reports.getSpecName(),
+                                    report.getReportName(), timestamp));
+                            count[0]++;
+                        }
+                    }
+                }
+                if (!hasReader) {
+                    target.add(new TagSighting(epc, value, null,
+                            reports.getSpecName(), report.getReportName(),
+                            timestamp));
+                    count[0]++;
+                }
+                return true;
+            }
+        });
+        return count[0];
+    }
+
+    /**
+     * @return the EPC (the pure identity, if available).
+     */
+    public EPC getEpc() {
+        return epc;
+    }
+
+    /**
+     * @return the compact value of the EPC.
+     */
+    public EPCValue getValue() {
+        return value;
+    }
+
+    /**
+     * @return the name of the reader (null if not reported by the ALE).
+     */
+    public String getReader() {
+        return reader;
+    }
+
+    /**
+     * @return the spec name of the ECReports.
+     */
+    public String getSpecName() {
+        return specName;
+    }
+
+    /**
+     * @return the report name of the ECReport.
+     */
+    public String getReportName() {
+        return reportName;
+    }
+
+    /**
+     * @return the time of the sighting in milliseconds.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s@%s (%s/%s)", epc.getValue(), reader,
+                specName, reportName);
+    }
+}
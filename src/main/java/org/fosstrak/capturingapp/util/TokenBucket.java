@@ -0,0 +1,74 @@
+package org.fosstrak.capturingapp.util;
+
+/**
+ * token bucket rate limiter. The bucket holds up to <code>burst</code> tokens
+ * and is refilled with <code>rate</code> tokens per second. Every admitted
+ * request takes one token.
+ */
+public class TokenBucket {
+
+    // the refill rate in tokens per millisecond.
+    private final double ratePerMilli;
+
+    // the capacity of the bucket.
+    private final double capacity;
+
+    // the tokens currently in the bucket.
+    private double tokens;
+
+    // the time of the last refill.
+    private long last;
+
+    /**
+     * create a new full token bucket.
+     *
+     * @param rate  the refill rate in tokens per second.
+     * @param burst the capacity of the bucket (at least 1).
+     */
+    public TokenBucket(double rate, int burst) {
+        this.ratePerMilli = rate / 1000.0;
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+        this.last = System.currentTimeMillis();
+    }
+
+    /**
+     * refills the bucket up to the given time.
+     */
+    private void refill(long now) {
+        if (now > last) {
+            tokens = Math.min(capacity, tokens + (now - last) * ratePerMilli);
+            last = now;
+        }
+    }
+
+    /**
+     * takes one token if available.
+     *
+     * @param now the current time in milliseconds.
+     * @return true if a token has been taken.
+     */
+    public synchronized boolean tryTake(long now) {
+        refill(now);
+        if (tokens >= 1.0) {
+            tokens -= 1.0;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param now the current time in milliseconds.
+     * @return the time in milliseconds until the next token is available.
+     */
+    public synchronized long waitTime(long now) {
+        refill(now);
+        if (tokens >= 1.0) {
+            return 0;
+        }
+        if (ratePerMilli <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long) Math.ceil((1.0 - tokens) / ratePerMilli);
+    }
+}
@@ -0,0 +1,294 @@
+package org.fosstrak.capturingapp.util;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * the trace of one ECReports through the pipeline of a capture application:
+ * a correlation ID and the time stamps of the stage boundaries. The trace
+ * is created at ingest and follows the reports through the handlers to the
+ * EPCIS documents they produce. It is complete when the reports and all
+ * their documents have left the pipeline, the {@link Tracer} then decides
+ * whether to export it.<br/>
+ * While a handler is executed, its trace is available to the handler and
+ * the rules via {@link #current()}.
+ */
+public class Trace {
+
+    /**
+     * the stage boundaries. the stages a report passes several times (one
+     * handler execution resp. capture request per document) keep the first
+     * start and the last end.
+     */
+    public enum Stage {
+        /** the connection of the ALE has been accepted. */
+        ACCEPTED,
+        /** the raw report has been read. */
+        RECEIVED,
+        /** the report has been deserialized. */
+        PARSED,
+        /** the report has been queued for the handlers. */
+        QUEUED,
+        /** the report has been taken from the queue. */
+        DEQUEUED,
+        /** the filters have been applied. */
+        FILTERED,
+        /** the first handler has started. */
+        RULES_START,
+        /** the last handler has finished. */
+        RULES_END,
+        /** the first EPCIS document has been taken from the queue. */
+        DELIVERY_START,
+        /** the last EPCIS document has been captured. */
+        CAPTURED
+    }
+
+    // the trace of the handler executing on the current thread.
+    private static final ThreadLocal<Trace> CURRENT = new ThreadLocal<Trace>();
+
+    // the correlation ID.
+    private final String id;
+
+    // the tracer completing the trace.
+    private final Tracer tracer;
+
+    // whether the trace has been sampled at ingest.
+    private final boolean sampled;
+
+    // the wall clock time of the first stage in ms.
+    private final long startMillis;
+
+    // the time stamps of the stages in ns (0 = not reached).
+    private final AtomicLongArray stages =
+            new AtomicLongArray(Stage.values().length);
+
+    // the parts of the trace still in the pipeline (the reports, the
+    // pending retries and the documents).
+    private final AtomicInteger open = new AtomicInteger(1);
+
+    // the number of documents produced.
+    private final AtomicInteger documents = new AtomicInteger();
+
+    // the outcome of the trace (null = captured resp. no documents).
+    private volatile String outcome = null;
+
+    // the spec name of the reports.
+    private volatile String specName = null;
+
+    // the address of the ALE.
+    private final String source;
+
+    /**
+     * create a new trace (see {@link Tracer#start(String, long)}).
+     *
+     * @param id      the correlation ID.
+     * @param tracer  the tracer.
+     * @param sampled whether the trace has been sampled.
+     * @param source  the address of the ALE.
+     * @param start   the time of the first stage in ns.
+     */
+    Trace(String id, Tracer tracer, boolean sampled, String source, long start) {
+        this.id = id;
+        this.tracer = tracer;
+        this.sampled = sampled;
+        this.source = source;
+        this.startMillis = System.currentTimeMillis() -
+                (System.nanoTime() - start) / 1000000L;
+        stages.set(Stage.ACCEPTED.ordinal(), start);
+    }
+
+    /**
+     * @return the trace of the handler executing on the current thread or
+     *         null if there is none.
+     */
+    public static Trace current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * sets the trace of the current thread.
+     *
+     * @param trace the trace (null to clear it).
+     */
+    public static void setCurrent(Trace trace) {
+        if (null == trace) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(trace);
+        }
+    }
+
+    /**
+     * records the first time a stage has been reached.
+     *
+     * @param stage the stage.
+     */
+    public void mark(Stage stage) {
+        stages.compareAndSet(stage.ordinal(), 0, System.nanoTime());
+    }
+
+    /**
+     * records the last time a stage has been reached.
+     *
+     * @param stage the stage.
+     */
+    public void markLast(Stage stage) {
+        stages.set(stage.ordinal(), System.nanoTime());
+    }
+
+    /**
+     * a part of the trace (a retry or a document) enters the pipeline.
+     */
+    public void acquire() {
+        open.incrementAndGet();
+    }
+
+    /**
+     * a part of the trace leaves the pipeline. completes the trace when it
+     * was the last part.
+     */
+    public void release() {
+        if (0 == open.decrementAndGet()) {
+            tracer.complete(this);
+        }
+    }
+
+    /**
+     * counts a produced EPCIS document.
+     */
+    public void addDocument() {
+        documents.incrementAndGet();
+    }
+
+    /**
+     * @param outcome the outcome of the trace (e.g. dropped, failed).
+     */
+    public void setOutcome(String outcome) {
+        this.outcome = outcome;
+    }
+
+    /**
+     * @param specName the spec name of the reports.
+     */
+    public void setSpecName(String specName) {
+        this.specName = specName;
+    }
+
+    /**
+     * @return the correlation ID.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return true if the trace has been sampled at ingest.
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @param stage the stage.
+     * @return the time of the stage relative to the first stage in ms or -1
+     *         if the stage has not been reached.
+     */
+    public double getOffset(Stage stage) {
+        final long t = stages.get(stage.ordinal());
+        return (0 == t) ? -1 :
+                (t - stages.get(Stage.ACCEPTED.ordinal())) / 1000000.0;
+    }
+
+    /**
+     * @return the time from the first to the last reached stage in ms.
+     */
+    public double getDuration() {
+        double max = 0;
+        for (Stage stage : Stage.values()) {
+            max = Math.max(max, getOffset(stage));
+        }
+        return max;
+    }
+
+    /**
+     * @return the trace as one JSON object.
+     */
+    public String toJSON() {
+        StringBuilder b = new StringBuilder(256);
+        b.append("{\"trace\":");
+        appendString(b, id);
+        b.append(",\"app\":");
+        appendString(b, tracer.getName());
+        b.append(",\"start\":").append(startMillis);
+        if (null != specName) {
+            b.append(",\"spec\":");
+            appendString(b, specName);
+        }
+        if (null != source) {
+            b.append(",\"source\":");
+            appendString(b, source);
+        }
+        b.append(",\"documents\":").append(documents.get());
+        b.append(",\"outcome\":");
+        appendString(b, (null == outcome) ? "ok" : outcome);
+        b.append(",\"sampled\":").append(sampled);
+        b.append(",\"duration\":").append(
+                String.format(Locale.ROOT, "%.3f", getDuration()));
+        b.append(",\"stages\":{");
+        boolean first = true;
+        for (Stage stage : Stage.values()) {
+            final double offset = getOffset(stage);
+            if (offset < 0) continue;
+            if (!first) b.append(',');
+            first = false;
+            b.append('"').append(stage.name().toLowerCase()).append("\":")
+                    .append(String.format(Locale.ROOT, "%.3f", offset));
+        }
+        b.append("}}");
+        return b.toString();
+    }
+
+    /**
+     * appends a string as a quoted and escaped JSON string (the spec name
+     * and the source come from the ALE).
+     *
+     * @param b the JSON.
+     * @param s the string.
+     */
+    private static void appendString(StringBuilder b, String s) {
+        b.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    b.append("\\\"");
+                    break;
+                case '\\':
+                    b.append("\\\\");
+                    break;
+                case '\n':
+                    b.append("\\n");
+                    break;
+                case '\r':
+                    b.append("\\r");
+                    break;
+                case '\t':
+                    b.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        b.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        b.append(c);
+                    }
+            }
+        }
+        b.append('"');
+    }
+
+    @Override
+    public String toString() {
+        return id;
+    }
+}
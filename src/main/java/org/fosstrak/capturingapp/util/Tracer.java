@@ -0,0 +1,154 @@
+package org.fosstrak.capturingapp.util;
+
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * creates the {@link Trace}s of a capture application and exports the
+ * completed ones. A trace is exported when it has been sampled at ingest
+ * (the configured share of all the reports, spread evenly) or when it took
+ * longer than the slow threshold. The traces are written as one JSON object
+ * per line to the logger <code>org.fosstrak.capturingapp.trace</code>,
+ * which log4j.properties routes into a file of its own.<br/>
+ * All the traces record their time stamps, so the slow traces are captured
+ * independent of the sampling.
+ */
+public class Tracer {
+
+    /**
+     * the name of the trace logger.
+     */
+    public static final String LOGGER = "org.fosstrak.capturingapp.trace";
+
+    // the trace logger.
+    private static final Logger traceLog = Logger.getLogger(LOGGER);
+
+    // the name of the capture application.
+    private final String name;
+
+    // the share of the sampled traces (0 - 1).
+    private final double sampleRate;
+
+    // the duration of a slow trace in ms (0 = off).
+    private final long slowThreshold;
+
+    // the prefix of the correlation IDs (distinguishes restarts).
+    private final String prefix;
+
+    // the number of started traces.
+    private final AtomicLong started = new AtomicLong();
+
+    // the number of completed traces.
+    private final AtomicLong completed = new AtomicLong();
+
+    // the number of exported traces.
+    private final AtomicLong exported = new AtomicLong();
+
+    // the number of slow traces.
+    private final AtomicLong slow = new AtomicLong();
+
+    /**
+     * create a new tracer.
+     *
+     * @param name          the name of the capture application.
+     * @param sampleRate    the share of the sampled traces (0 - 1).
+     * @param slowThreshold the duration of a slow trace in ms (0 = off).
+     */
+    public Tracer(String name, double sampleRate, long slowThreshold) {
+        this.name = name;
+        this.sampleRate = Math.max(0, Math.min(1, sampleRate));
+        this.slowThreshold = slowThreshold;
+        this.prefix = Long.toHexString(System.currentTimeMillis());
+    }
+
+    /**
+     * starts the trace of a report.
+     *
+     * @param source the address of the ALE.
+     * @param start  the time the connection has been accepted in ns.
+     * @return the new trace.
+     */
+    public Trace start(String source, long start) {
+        final long n = started.getAndIncrement();
+        // samples exactly the share of the traces without a random number.
+        final boolean sampled = (sampleRate > 0) &&
+                ((long) ((n + 1) * sampleRate) > (long) (n * sampleRate));
+        return new Trace(prefix + "-" + n, this, sampled, source, start);
+    }
+
+    /**
+     * exports a completed trace if it has been sampled or is slow.
+     *
+     * @param trace the trace.
+     */
+    void complete(Trace trace) {
+        completed.incrementAndGet();
+        final boolean isSlow = (slowThreshold > 0) &&
+                (trace.getDuration() >= slowThreshold);
+        if (isSlow) {
+            slow.incrementAndGet();
+        }
+        if ((trace.isSampled() || isSlow) && traceLog.isInfoEnabled()) {
+            exported.incrementAndGet();
+            traceLog.info(trace.toJSON());
+        }
+    }
+
+    /**
+     * @return the name of the capture application.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the share of the sampled traces.
+     */
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * @return the duration of a slow trace in ms (0 = off).
+     */
+    public long getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    /**
+     * @return the number of started traces.
+     */
+    public long getStarted() {
+        return started.get();
+    }
+
+    /**
+     * @return the number of completed traces.
+     */
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the number of exported traces.
+     */
+    public long getExported() {
+        return exported.get();
+    }
+
+    /**
+     * @return the number of slow traces.
+     */
+    public long getSlow() {
+        return slow.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sample=%.3f, slow=%d ms (started=%d, " +
+                "completed=%d, exported=%d, slow=%d)", sampleRate,
+                slowThreshold, getStarted(), getCompleted(), getExported(),
+                getSlow());
+    }
+}
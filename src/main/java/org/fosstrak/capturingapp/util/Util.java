@@ -2,9 +2,9 @@ package org.fosstrak.capturingapp.util;
 
 import org.fosstrak.ale.xsd.ale.epcglobal.*;
 import org.fosstrak.ale.xsd.epcglobal.EPC;
+import org.fosstrak.epcis.model.QueryResults;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.*;
 
 /**
  * helper class to perform transformations on ECReports.
@@ -55,11 +55,53 @@ public class Util {
         }
     };
 
+    /**
+     * selector that returns the first representation available in the
+     * member (epc, tag, raw hex or raw decimal in this order).
+     */
+    public static final EPCSelector selectAny = new EPCSelector() {
+        public EPC select(ECReportGroupListMember member) {
+            if (null != member.getEpc()) return member.getEpc();
+            if (null != member.getTag()) return member.getTag();
+            if (null != member.getRawHex()) return member.getRawHex();
+            return member.getRawDecimal();
+        }
+    };
+
     /**
      * the default selector.
      */
     public static final EPCSelector DEFAULT_SELECTOR = selectRawHex;
 
+    /**
+     * initial value for {@link #fingerprint(long, String)}.
+     */
+    public static final long FINGERPRINT_SEED = 0xcbf29ce484222325L;
+
+    /**
+     * computes a 64 bit FNV-1a fingerprint of a string continuing from a
+     * previous fingerprint. this allows to combine several strings (eg. spec
+     * name, reader name and EPC) into one primitive key without assembling
+     * an intermediate string.
+     *
+     * @param seed  the previous fingerprint or {@link #FINGERPRINT_SEED}.
+     * @param value the string to add to the fingerprint (null is allowed).
+     * @return the new fingerprint.
+     */
+    public static long fingerprint(long seed, String value) {
+        long h = seed;
+        if (null != value) {
+            for (int i = 0; i < value.length(); i++) {
+                h ^= value.charAt(i);
+                h *= 0x100000001b3L;
+            }
+        }
+        // separator, such that ("ab", "c") and ("a", "bc") differ.
+        h ^= 0xff;
+        h *= 0x100000001b3L;
+        return h;
+    }
+
     /**
      * checks if a member was retrieved by a given reader.
      *
@@ -68,20 +110,219 @@ public class Util {
      * @return true if read from the reader, false otherwise.
      */
     public static boolean fromReader(String readerName, ECReportGroupListMember member) {
-        try {
-            for (ECTagStat stat : member.getExtension().getStats().getStat()) {
-                for (ECReaderStat rstat : stat.getStatBlocks().getStatBlock()) {
-                    if (rstat.getReaderName().equals(readerName)) {
-                        return true;
-                    }
+        if ((null == member.getExtension()) ||
+                (null == member.getExtension().getStats())) {
+            return false;
+        }
+        for (ECTagStat stat : member.getExtension().getStats().getStat()) {
+            if (null == stat.getStatBlocks()) continue;
+            for (ECReaderStat rstat : stat.getStatBlocks().getStatBlock()) {
+                if ((null != rstat.getReaderName()) &&
+                        rstat.getReaderName().equals(readerName)) {
+                    return true;
                 }
             }
-        } catch (Exception e) {
-            return false;
         }
         return false;
     }
 
+    /**
+     * extracts the EPCs read by a given reader from the report. the members
+     * are looked up in the {@link ReportIndex} of the report, therefore
+     * several invocations for different readers only scan the report once.
+     *
+     * @param selector   the selector selecting the matching EPCs.
+     * @param readerName the name of the reader.
+     * @param report     the report from where to select the EPCs.
+     * @return returns a list of selected EPCs.
+     */
+    public static List<EPC> extractEPCFromReader(EPCSelector selector,
+                                                 String readerName, ECReport report) {
+        return extractEPC(selector,
+                ReportIndex.of(report).getMembersFromReader(readerName));
+    }
+
+    /**
+     * extracts EPC values from a list of members. when the selector is set
+     * to <code>null</code>, then the default selector will be chosen.
+     *
+     * @param selector the selector selecting the matching EPCs.
+     * @param members  the members from where to select the EPCs.
+     * @return returns a list of selected EPCs.
+     */
+    public static List<EPC> extractEPC(EPCSelector selector,
+                                       List<ECReportGroupListMember> members) {
+        final EPCSelector s = (null == selector) ? DEFAULT_SELECTOR : selector;
+        final List<EPC> epcs = new ArrayList<EPC>(members.size());
+        for (ECReportGroupListMember member : members) {
+            EPC epc = s.select(member);
+            if (null != epc) epcs.add(epc);
+        }
+        return epcs;
+    }
+
+    /**
+     * callback invoked for every member of an ECReports resp. ECReport.
+     */
+    public interface MemberVisitor {
+        /**
+         * visit a member.
+         *
+         * @param report the report containing the member.
+         * @param member the member.
+         * @return true to continue the traversal, false to stop it.
+         */
+        public boolean visit(ECReport report, ECReportGroupListMember member);
+    }
+
+    /**
+     * invokes the visitor for every member of the reports. no intermediate
+     * collections are created.
+     *
+     * @param reports the reports to traverse.
+     * @param visitor the visitor.
+     * @return false if the visitor stopped the traversal, true otherwise.
+     */
+    public static boolean visitMembers(ECReports reports, MemberVisitor visitor) {
+        if ((null == reports) || (null == reports.getReports())) return true;
+        for (ECReport report : reports.getReports().getReport()) {
+            if (!visitMembers(report, visitor)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * invokes the visitor for every member of the report. no intermediate
+     * collections are created.
+     *
+     * @param report  the report to traverse.
+     * @param visitor the visitor.
+     * @return false if the visitor stopped the traversal, true otherwise.
+     */
+    public static boolean visitMembers(ECReport report, MemberVisitor visitor) {
+        if ((null == report) || (null == report.getGroup())) return true;
+        for (ECReportGroup group : report.getGroup()) {
+            if ((null == group) || (null == group.getGroupList())) continue;
+            for (ECReportGroupListMember member : group.getGroupList().getMember()) {
+                if (!visitor.visit(report, member)) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param reports the reports.
+     * @return the number of members in the reports.
+     */
+    public static int countMembers(ECReports reports) {
+        int n = 0;
+        if ((null == reports) || (null == reports.getReports())) return n;
+        for (ECReport report : reports.getReports().getReport()) {
+            n += countMembers(report);
+        }
+        return n;
+    }
+
+    /**
+     * @param report the report.
+     * @return the number of members in the report.
+     */
+    public static int countMembers(ECReport report) {
+        int n = 0;
+        if ((null == report) || (null == report.getGroup())) return n;
+        for (ECReportGroup group : report.getGroup()) {
+            if ((null != group) && (null != group.getGroupList())) {
+                n += group.getGroupList().getMember().size();
+            }
+        }
+        return n;
+    }
+
+    /**
+     * provides a lazy view on all the members of the reports. the returned
+     * iterators walk the reports directly without copying the members.
+     *
+     * @param reports the reports.
+     * @return an iterable over the members.
+     */
+    public static Iterable<ECReportGroupListMember> members(final ECReports reports) {
+        return new Iterable<ECReportGroupListMember>() {
+            public Iterator<ECReportGroupListMember> iterator() {
+                if ((null == reports) || (null == reports.getReports())) {
+                    return new MemberIterator(
+                            Collections.<ECReport>emptyList());
+                }
+                return new MemberIterator(reports.getReports().getReport());
+            }
+        };
+    }
+
+    /**
+     * provides a lazy view on all the members of the report.
+     *
+     * @param report the report.
+     * @return an iterable over the members.
+     */
+    public static Iterable<ECReportGroupListMember> members(final ECReport report) {
+        return new Iterable<ECReportGroupListMember>() {
+            public Iterator<ECReportGroupListMember> iterator() {
+                return new MemberIterator(Collections.singletonList(report));
+            }
+        };
+    }
+
+    /**
+     * iterator walking report -> group -> member.
+     */
+    private static final class MemberIterator
+            implements Iterator<ECReportGroupListMember> {
+
+        // the reports to walk.
+        private final List<ECReport> reports;
+
+        // the current position.
+        private int report = 0;
+        private int group = 0;
+        private int member = 0;
+
+        // the members of the current group or null.
+        private List<ECReportGroupListMember> current = null;
+
+        MemberIterator(List<ECReport> reports) {
+            this.reports = reports;
+        }
+
+        public boolean hasNext() {
+            while ((null == current) || (member >= current.size())) {
+                current = null;
+                member = 0;
+                if (report >= reports.size()) return false;
+
+                ECReport r = reports.get(report);
+                if ((null == r) || (null == r.getGroup()) ||
+                        (group >= r.getGroup().size())) {
+                    report++;
+                    group = 0;
+                    continue;
+                }
+                ECReportGroup g = r.getGroup().get(group++);
+                if ((null != g) && (null != g.getGroupList())) {
+                    current = g.getGroupList().getMember();
+                }
+            }
+            return true;
+        }
+
+        public ECReportGroupListMember next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            return current.get(member++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /**
      * extracts all the members containing the EPCs from the reports.
      *
@@ -89,14 +330,14 @@ public class Util {
      * @return a list of members providing access to the EPC data.
      */
     public static List<ECReportGroupListMember> extractReportMembers(ECReports reports) {
-        List<ECReportGroupListMember> members =
-                new LinkedList<ECReportGroupListMember>();
-
-        if (null == reports) return members;
-        if (null == reports.getReports()) return members;
-        for (ECReport report : reports.getReports().getReport()) {
-            members.addAll(extractReportMembers(report));
-        }
+        final List<ECReportGroupListMember> members =
+                new ArrayList<ECReportGroupListMember>(countMembers(reports));
+        visitMembers(reports, new MemberVisitor() {
+            public boolean visit(ECReport report, ECReportGroupListMember member) {
+                members.add(member);
+                return true;
+            }
+        });
         return members;
     }
 
@@ -108,20 +349,14 @@ public class Util {
      */
     public static List<ECReportGroupListMember> extractReportMembers(ECReport report) {
         List<ECReportGroupListMember> members =
-                new LinkedList<ECReportGroupListMember>();
+                new ArrayList<ECReportGroupListMember>(countMembers(report));
 
-        if (null == report) return members;
-        if (null == report.getGroup()) return members;
+        if ((null == report) || (null == report.getGroup())) return members;
         for (ECReportGroup group : report.getGroup()) {
-            if ((null != group) && (null != group.getGroupList()) &&
-                    (null != group.getGroupList().getMember())) {
-
-                for (ECReportGroupListMember member : group.getGroupList().getMember()) {
-                    members.add(member);
-                }
+            if ((null != group) && (null != group.getGroupList())) {
+                members.addAll(group.getGroupList().getMember());
             }
         }
-
         return members;
     }
 
@@ -134,11 +369,8 @@ public class Util {
      * @return returns a list of selected EPCs.
      */
     public static List<EPC> extractEPC(EPCSelector selector, ECReports reports) {
-        List<EPC> epcs = new LinkedList<EPC>();
-        if (null == reports.getReports()) return epcs;
-        for (ECReport report : reports.getReports().getReport()) {
-            epcs.addAll(extractEPC(selector, report));
-        }
+        final List<EPC> epcs = new ArrayList<EPC>(countMembers(reports));
+        visitMembers(reports, new SelectingVisitor(selector, epcs));
         return epcs;
     }
 
@@ -151,15 +383,106 @@ public class Util {
      * @return returns a list of selected EPCs.
      */
     public static List<EPC> extractEPC(EPCSelector selector, ECReport report) {
-        List<EPC> epcs = new LinkedList<EPC>();
-        for (ECReportGroupListMember member : extractReportMembers(report)) {
-            EPCSelector s = selector;
-            if (null == selector) s = DEFAULT_SELECTOR;
+        final List<EPC> epcs = new ArrayList<EPC>(countMembers(report));
+        visitMembers(report, new SelectingVisitor(selector, epcs));
+        return epcs;
+    }
 
-            EPC epc = s.select(member);
+    /**
+     * visitor collecting the EPCs chosen by a selector.
+     */
+    private static final class SelectingVisitor implements MemberVisitor {
+
+        // the selector, resolved once per traversal.
+        private final EPCSelector selector;
+
+        // the collected EPCs.
+        private final List<EPC> epcs;
+
+        SelectingVisitor(EPCSelector selector, List<EPC> epcs) {
+            this.selector = (null == selector) ? DEFAULT_SELECTOR : selector;
+            this.epcs = epcs;
+        }
+
+        public boolean visit(ECReport report, ECReportGroupListMember member) {
+            EPC epc = selector.select(member);
             if (null != epc) epcs.add(epc);
+            return true;
         }
-        return epcs;
+    }
+
+    /**
+     * looks up the recent history of an EPC in the {@link SightingStore}.
+     *
+     * @param epc the EPC.
+     * @return the history or null if the EPC is unknown or the store is
+     *         off.
+     */
+    public static SightingStore.Sighting lastSighting(String epc) {
+        final SightingStore store = SightingStore.getInstance();
+        return (null == store) ? null :
+                store.get(epc, System.currentTimeMillis());
+    }
+
+    /**
+     * checks in the {@link SightingStore} if the last captured event of an
+     * EPC matches the given values. a null value matches any value. as the
+     * store only knows the recent events, false means "unknown": the rules
+     * have to ask the EPCIS repository then.
+     *
+     * @param epc         the EPC.
+     * @param bizStep     the bizStep.
+     * @param disposition the disposition.
+     * @param readPoint   the read point.
+     * @param bizLocation the business location.
+     * @return true if the last captured event matches.
+     */
+    public static boolean capturedLocally(String epc, String bizStep,
+                                          String disposition, String readPoint,
+                                          String bizLocation) {
+        final SightingStore.Sighting s = lastSighting(epc);
+        return (null != s) && s.isCaptured() &&
+                matches(bizStep, s.getBizStep()) &&
+                matches(disposition, s.getDisposition()) &&
+                matches(readPoint, s.getReadPoint()) &&
+                matches(bizLocation, s.getBizLocation());
+    }
+
+    /**
+     * @param epc the EPC.
+     * @return the disposition of the last captured event of the EPC known to
+     *         the {@link SightingStore} or null if unknown.
+     */
+    public static String lastDisposition(String epc) {
+        final SightingStore.Sighting s = lastSighting(epc);
+        return (null == s) ? null : s.getDisposition();
+    }
+
+    /**
+     * records the object events of the results of an EPCIS query in the
+     * {@link SightingStore}, such that the next lookup of the EPCs does not
+     * need to query the repository again.
+     *
+     * @param results the results of the query.
+     */
+    public static void rememberEvents(QueryResults results) {
+        final SightingStore store = SightingStore.getInstance();
+        if ((null == store) || (null == results.getResultsBody()) ||
+                (null == results.getResultsBody().getEventList())) {
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        for (Object o : results.getResultsBody().getEventList()
+                .getObjectEventOrAggregationEventOrQuantityEvent()) {
+            store.recordEvent(o, now);
+        }
+    }
+
+    /**
+     * @return true if the expected value is null or equals the actual value.
+     */
+    private static boolean matches(String expected, String actual) {
+        return (null == expected) || expected.equals(actual);
     }
 
     /**
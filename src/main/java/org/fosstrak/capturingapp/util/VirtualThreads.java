@@ -0,0 +1,62 @@
+package org.fosstrak.capturingapp.util;
+
+import org.apache.log4j.Logger;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * factory for executors running every task on its own virtual thread. The
+ * capture application is compiled for Java 6, so the virtual thread executor
+ * of Java 21 (<code>Executors.newVirtualThreadPerTaskExecutor()</code>) is
+ * looked up by reflection. Older runtimes do not support the virtual thread
+ * mode (a platform thread per task would be unbounded), the capture
+ * application stays in platform mode there (see {@link #isAvailable()}).
+ */
+public final class VirtualThreads {
+
+    // logger
+    private static final Logger log = Logger.getLogger(VirtualThreads.class);
+
+    // the factory method of the virtual thread executor (null if unavailable).
+    private static final Method FACTORY = lookup();
+
+    private VirtualThreads() {
+    }
+
+    private static Method lookup() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return true if the runtime supports virtual threads.
+     */
+    public static boolean isAvailable() {
+        return null != FACTORY;
+    }
+
+    /**
+     * creates an executor starting a new virtual thread per task.
+     *
+     * @return the executor.
+     * @throws UnsupportedOperationException when the runtime does not
+     *                                       support virtual threads.
+     */
+    public static ExecutorService newThreadPerTaskExecutor() {
+        if (null == FACTORY) {
+            throw new UnsupportedOperationException("运行环境不支持虚拟线程.");
+        }
+        try {
+            return (ExecutorService) FACTORY.invoke(null);
+        } catch (Exception e) {
+            log.error("不能创建虚拟线程执行器: " + e.getMessage());
+            throw new UnsupportedOperationException(
+                    "不能创建虚拟线程执行器: " + e.getMessage(), e);
+        }
+    }
+}
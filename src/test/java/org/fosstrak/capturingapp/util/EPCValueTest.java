@@ -0,0 +1,168 @@
+package org.fosstrak.capturingapp.util;
+
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * round trips of {@link EPCValue} between the raw hex, raw decimal and SGTIN
+ * URN representations and the class decoding of {@link EPCClass}.
+ */
+public class EPCValueTest {
+
+    // the SGTIN-96 example of the tag data standard.
+    private static final String TAG = "urn:epc:tag:sgtin-96:3.0614141.812345.6789";
+    private static final String HEX = "urn:epc:raw:96.x3074257BF7194E4000001A85";
+    private static final String DECIMAL = "urn:epc:raw:96.14995692880814596164774009477";
+
+    @Test
+    public void hexDecimalAndTagAreEqual() {
+        final EPCValue hex = EPCValue.parse(HEX);
+        assertFalse(hex.isOverflow());
+        assertEquals(96, hex.getBits());
+        assertEquals(hex, EPCValue.parse(DECIMAL));
+        assertEquals(hex, EPCValue.parse(TAG));
+        assertEquals(hex.hashCode(), EPCValue.parse(TAG).hashCode());
+        assertEquals(HEX, hex.toString());
+        assertEquals(HEX, EPCValue.parse(DECIMAL).toString());
+        assertEquals(hex, EPCValue.parse(hex.toString()));
+    }
+
+    @Test
+    public void hexIsCaseInsensitive() {
+        assertEquals(EPCValue.parse(HEX),
+                EPCValue.parse("urn:epc:raw:96.x3074257bf7194e4000001a85"));
+    }
+
+    @Test
+    public void pureIdentityHasFilterZero() {
+        final EPCValue id = EPCValue.parse("urn:epc:id:sgtin:0614141.812345.6789");
+        assertEquals(EPCValue.parse("urn:epc:tag:sgtin-96:0.0614141.812345.6789"), id);
+        assertFalse(EPCValue.parse(TAG).equals(id));
+        assertEquals(EPCValue.parse(TAG).getEPCClass(), id.getEPCClass());
+    }
+
+    @Test
+    public void classOfTheExample() {
+        assertEquals("urn:epc:idpat:sgtin:0614141.812345.*",
+                EPCValue.parse(HEX).getEPCClass());
+        assertEquals("urn:epc:idpat:sgtin:0614141.812345.*",
+                EPCValue.parse(DECIMAL).getEPCClass());
+        assertEquals("urn:epc:idpat:sgtin:0614141.812345.*",
+                EPCClass.of(HEX));
+        assertEquals("urn:epc:idpat:sgtin:0614141.812345.*",
+                EPCClass.of(DECIMAL));
+    }
+
+    @Test
+    public void allPartitions() {
+        for (int p = 0; p < EPCClass.CP_DIGITS.length; p++) {
+            // leading zeros in the company prefix and the item reference.
+            final String cp = digits(EPCClass.CP_DIGITS[p], p);
+            final String ir = digits(EPCClass.IR_DIGITS[p], p + 1);
+            final String tag = "urn:epc:tag:sgtin-96:1." + cp + "." + ir + ".274877906943";
+            final EPCValue v = EPCValue.parse(tag);
+            assertFalse(tag, v.isOverflow());
+            assertEquals(tag, p, (int) ((v.getHi() >>> 18) & 0x7));
+            assertEquals(tag, "urn:epc:idpat:sgtin:" + cp + "." + ir + ".*",
+                    v.getEPCClass());
+            assertEquals(tag, v.getEPCClass(), EPCClass.of(tag));
+
+            // hex and decimal of the same bits.
+            final String hex = v.toString();
+            assertEquals(tag, v, EPCValue.parse(hex));
+            final String decimal = "urn:epc:raw:96." +
+                    new BigInteger(hex.substring(hex.indexOf('x') + 1), 16);
+            assertEquals(tag, v, EPCValue.parse(decimal));
+            assertEquals(tag, v.getEPCClass(), EPCClass.of(decimal));
+        }
+    }
+
+    @Test
+    public void leadingZeros() {
+        final EPCValue one = EPCValue.parse("urn:epc:raw:96.x1");
+        assertEquals(one, EPCValue.parse("urn:epc:raw:96.x000000000000000000000001"));
+        assertEquals(one, EPCValue.parse("urn:epc:raw:96.0001"));
+        assertEquals("urn:epc:raw:96.x000000000000000000000001", one.toString());
+        assertEquals(0, one.getHi());
+        assertEquals(1, one.getLo());
+        // a serial of a single zero is allowed, leading zeros are not.
+        assertFalse(EPCValue.parse("urn:epc:tag:sgtin-96:3.0614141.812345.0").isOverflow());
+        assertTrue(EPCValue.parse("urn:epc:tag:sgtin-96:3.0614141.812345.06789").isOverflow());
+    }
+
+    @Test
+    public void largestValues() {
+        final EPCValue max = EPCValue.parse("urn:epc:raw:128.x" + repeat('F', 32));
+        assertEquals(-1L, max.getHi());
+        assertEquals(-1L, max.getLo());
+        assertEquals(max, EPCValue.parse("urn:epc:raw:128." +
+                BigInteger.ONE.shiftLeft(128).subtract(BigInteger.ONE)));
+        assertEquals(max, EPCValue.parse(max.toString()));
+        // the largest serial of an SGTIN-96 (38 bits).
+        assertFalse(EPCValue.parse("urn:epc:tag:sgtin-96:3.0614141.812345.274877906943").isOverflow());
+    }
+
+    @Test
+    public void overflow() {
+        final String[] overflows = {
+                // more than 128 bits.
+                "urn:epc:raw:128.x1" + repeat('0', 32),
+                "urn:epc:raw:128." + BigInteger.ONE.shiftLeft(128),
+                "urn:epc:raw:129.x1",
+                // not a number.
+                "urn:epc:raw:96.x30G4",
+                "urn:epc:raw:96.12a",
+                "urn:epc:raw:96.",
+                // serial, filter or company prefix out of range.
+                "urn:epc:tag:sgtin-96:3.0614141.812345.274877906944",
+                "urn:epc:tag:sgtin-96:8.0614141.812345.6789",
+                "urn:epc:tag:sgtin-96:3.0614.812345.6789",
+                "urn:epc:id:sgtin:0614141.812345",
+                // unknown scheme.
+                "urn:epc:id:sscc:0614141.1234567890"
+        };
+        for (String epc : overflows) {
+            final EPCValue v = EPCValue.parse(epc);
+            assertTrue(epc, v.isOverflow());
+            assertEquals(epc, 0, v.getBits());
+            assertEquals(epc, epc, v.toString());
+            assertEquals(epc, v, EPCValue.parse(epc));
+        }
+        // the class of an overflowing URN is derived from the string.
+        assertEquals("urn:epc:idpat:sgtin:0614141.812345.*", EPCValue.parse(
+                "urn:epc:tag:sgtin-96:3.0614141.812345.06789").getEPCClass());
+    }
+
+    @Test
+    public void fromBitsRejectsOtherTags() {
+        final EPCValue v = EPCValue.parse(HEX);
+        // another header (SSCC-96).
+        assertNull(EPCClass.fromBits((v.getHi() & 0xffffffL) | (0x31L << 24),
+                v.getLo()));
+        // partition 7 is reserved.
+        assertNull(EPCClass.fromBits(v.getHi() | (0x7L << 18), v.getLo()));
+        assertNull(EPCValue.parse("urn:epc:raw:64.x3074257BF7194E40").getEPCClass());
+    }
+
+    /**
+     * @return a number of the given digits with leading zeros.
+     */
+    private static String digits(int digits, int seed) {
+        final StringBuilder b = new StringBuilder();
+        b.append('0');
+        for (int i = 1; i < digits; i++) {
+            b.append((char) ('1' + (i + seed) % 9));
+        }
+        return b.toString();
+    }
+
+    private static String repeat(char c, int n) {
+        final char[] s = new char[n];
+        Arrays.fill(s, c);
+        return new String(s);
+    }
+}
@@ -0,0 +1,180 @@
+package org.fosstrak.capturingapp.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * the open addressing of {@link SightingStore}: expiry, eviction within the
+ * probe sequence, the order of the recorded events and the snapshot round
+ * trip.
+ */
+public class SightingStoreTest {
+
+    private static final long TTL = 1000;
+
+    private static String epc(int serial) {
+        return "urn:epc:id:sgtin:0614141.812345." + serial;
+    }
+
+    @Test
+    public void expiry() {
+        final SightingStore store = new SightingStore(64, TTL);
+        store.recordSighting(epc(1), "reader1", "spec1", 100);
+        store.recordEvent(epc(1), "shipping", "in_transit", "rp1", "loc1",
+                50, 100);
+
+        final SightingStore.Sighting s = store.get(epc(1), 100 + TTL - 1);
+        assertNotNull(s);
+        assertEquals("reader1", s.getReader());
+        assertEquals("spec1", s.getSpecName());
+        assertEquals(100, s.getSeen());
+        assertEquals("shipping", s.getBizStep());
+        assertEquals(50, s.getEventTime());
+        assertEquals(1, store.size(100 + TTL - 1));
+
+        assertNull(store.get(epc(1), 100 + TTL));
+        assertEquals(0, store.size(100 + TTL));
+        assertEquals(1, store.getHits());
+        assertEquals(1, store.getMisses());
+
+        // a new sighting of an expired EPC starts a new history.
+        store.recordSighting(epc(1), "reader2", null, 2000);
+        final SightingStore.Sighting renewed = store.get(epc(1), 2000);
+        assertEquals("reader2", renewed.getReader());
+        assertNull(renewed.getSpecName());
+        assertFalse(renewed.isCaptured());
+        assertNull(renewed.getBizStep());
+    }
+
+    @Test
+    public void updateKeepsTheEntryAlive() {
+        final SightingStore store = new SightingStore(64, TTL);
+        store.recordSighting(epc(1), "reader1", "spec1", 100);
+        store.recordSighting(epc(1), "reader2", "spec1", 900);
+        final SightingStore.Sighting s = store.get(epc(1), 1500);
+        assertNotNull(s);
+        assertEquals("reader2", s.getReader());
+        assertEquals(1, store.size(1500));
+    }
+
+    @Test
+    public void evictsTheOldestEntryOfTheProbeSequence() {
+        // 16 slots, all of them within the probe sequence of every key.
+        final SightingStore store = new SightingStore(16, 1000000);
+        assertEquals(16, store.getCapacity());
+        for (int i = 0; i < 16; i++) {
+            store.recordSighting(epc(i), "reader", null, 1 + i);
+        }
+        assertEquals(16, store.size(100));
+        assertEquals(0, store.getEvictions());
+
+        // the oldest entry makes room.
+        store.recordSighting(epc(16), "reader", null, 100);
+        assertEquals(1, store.getEvictions());
+        assertEquals(16, store.size(100));
+        assertNull(store.get(epc(0), 100));
+        for (int i = 1; i <= 16; i++) {
+            assertNotNull(epc(i), store.get(epc(i), 100));
+        }
+
+        // an expired entry is reused before a live one is evicted.
+        final SightingStore expiring = new SightingStore(16, 1000);
+        expiring.recordSighting(epc(0), "reader", null, 1);
+        for (int i = 1; i < 16; i++) {
+            expiring.recordSighting(epc(i), "reader", null, 500 + i);
+        }
+        expiring.recordSighting(epc(16), "reader", null, 1001);
+        assertEquals(0, expiring.getEvictions());
+        assertEquals(16, expiring.size(1001));
+    }
+
+    @Test
+    public void neverGrowsBeyondTheCapacity() {
+        final SightingStore store = new SightingStore(1000, 1000000);
+        assertEquals(1024, store.getCapacity());
+        final int n = 8192;
+        for (int i = 0; i < n; i++) {
+            store.recordSighting(epc(i), "reader", null, 1 + i);
+            // the latest entry is always found.
+            assertNotNull(epc(i), store.get(epc(i), 1 + i));
+        }
+        final int size = store.size(n);
+        assertTrue(String.valueOf(size), size <= store.getCapacity());
+        // every insert either took a free slot or evicted a live entry.
+        assertEquals(n - size, store.getEvictions());
+    }
+
+    @Test
+    public void outOfOrderEvents() {
+        final SightingStore store = new SightingStore(64, TTL);
+        store.recordSighting(epc(1), "reader1", "spec1", 1000);
+        store.recordEvent(epc(1), "receiving", "in_progress", "rp1", "loc1",
+                500, 1000);
+        // an older event arriving later is ignored.
+        store.recordEvent(epc(1), "shipping", "in_transit", "rp0", "loc0",
+                400, 1100);
+        SightingStore.Sighting s = store.get(epc(1), 1100);
+        assertEquals("receiving", s.getBizStep());
+        assertEquals("in_progress", s.getDisposition());
+        assertEquals("rp1", s.getReadPoint());
+        assertEquals("loc1", s.getBizLocation());
+        assertEquals(500, s.getEventTime());
+        // the sighting is kept.
+        assertEquals("reader1", s.getReader());
+
+        // a newer (or equally old) event replaces it.
+        store.recordEvent(epc(1), "shipping", null, "rp2", null, 500, 1200);
+        s = store.get(epc(1), 1200);
+        assertEquals("shipping", s.getBizStep());
+        assertNull(s.getDisposition());
+        assertEquals("rp2", s.getReadPoint());
+        assertNull(s.getBizLocation());
+
+        // an event at time 0 still counts as captured.
+        store.recordEvent(epc(2), "commissioning", null, null, null, 0, 1200);
+        assertTrue(store.get(epc(2), 1200).isCaptured());
+    }
+
+    @Test
+    public void snapshotRoundTrip() throws IOException {
+        final long ttl = 60L * 60 * 1000;
+        final long now = System.currentTimeMillis();
+        final SightingStore store = new SightingStore(256, ttl);
+        for (int i = 0; i < 100; i++) {
+            store.recordSighting(epc(i), "reader" + (i % 3), "spec" + (i % 2),
+                    now - i);
+            if (0 == i % 2) {
+                store.recordEvent(epc(i), "bizStep" + (i % 5), null,
+                        "rp" + (i % 7), "loc", now - 1000 - i, now - i);
+            }
+        }
+        // expired when the snapshot is written.
+        store.recordSighting(epc(1000), "reader", null, now - ttl - 1);
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        store.writeState(new DataOutputStream(bytes));
+
+        // another order of the interned strings and an entry updated since
+        // the start.
+        final SightingStore restored = new SightingStore(256, ttl);
+        restored.recordSighting(epc(0), "readerX", "specX", now + 1);
+        restored.readState(ByteBuffer.wrap(bytes.toByteArray()));
+
+        assertEquals(100, restored.size(now));
+        assertNull(restored.get(epc(1000), now));
+        final SightingStore.Sighting kept = restored.get(epc(0), now + 1);
+        assertEquals("readerX", kept.getReader());
+        assertEquals("specX", kept.getSpecName());
+        assertFalse(kept.isCaptured());
+        for (int i = 1; i < 100; i++) {
+            assertEquals(epc(i), store.get(epc(i), now).toString(),
+                    restored.get(epc(i), now).toString());
+        }
+    }
+}